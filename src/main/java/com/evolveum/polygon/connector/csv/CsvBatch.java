@@ -0,0 +1,159 @@
+package com.evolveum.polygon.connector.csv;
+
+import com.evolveum.polygon.connector.csv.util.Util;
+import org.identityconnectors.framework.common.objects.Attribute;
+import org.identityconnectors.framework.common.objects.Uid;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Collects changes of one object class and applies all of them by one pass over csv file, instead of rewriting
+ * whole file for every change. Batch is created by {@link CsvConnector#createBatch(
+ * org.identityconnectors.framework.common.objects.ObjectClass)}.
+ * <p>
+ * Changes of the same record are applied in the order in which they were added. Changes refer to unique attribute
+ * values of records before batch is executed, e.g. record renamed by update can't be changed by next item using
+ * its new uid. Failure of one change doesn't stop the others, it's reported in {@link Result} of that change.
+ *
+ * @author Viliam Repan (lazyman)
+ */
+public class CsvBatch {
+
+    public enum Operation {
+
+        CREATE, UPDATE, ADD_ATTRIBUTE_VALUES, REMOVE_ATTRIBUTE_VALUES, DELETE
+    }
+
+    /**
+     * One change added to batch.
+     */
+    public static class Item {
+
+        private Operation operation;
+        private Uid uid;
+        private Set<Attribute> attributes;
+
+        Item(Operation operation, Uid uid, Set<Attribute> attributes) {
+            this.operation = operation;
+            this.uid = uid;
+            this.attributes = attributes;
+        }
+
+        public Operation getOperation() {
+            return operation;
+        }
+
+        /**
+         * @return uid of changed record, null for create
+         */
+        public Uid getUid() {
+            return uid;
+        }
+
+        public Set<Attribute> getAttributes() {
+            return attributes;
+        }
+    }
+
+    /**
+     * Result of one change, results are returned in the same order as changes were added.
+     */
+    public static class Result {
+
+        private Item item;
+        private Uid uid;
+        private RuntimeException error;
+
+        Result(Item item, Uid uid, RuntimeException error) {
+            this.item = item;
+            this.uid = uid;
+            this.error = error;
+        }
+
+        public Item getItem() {
+            return item;
+        }
+
+        /**
+         * @return uid of record after change, null if change failed
+         */
+        public Uid getUid() {
+            return uid;
+        }
+
+        /**
+         * @return reason why change wasn't applied, null if it was successful
+         */
+        public RuntimeException getError() {
+            return error;
+        }
+
+        public boolean isSuccess() {
+            return error == null;
+        }
+    }
+
+    private ObjectClassHandler handler;
+
+    private List<Item> items = new ArrayList<>();
+
+    CsvBatch(ObjectClassHandler handler) {
+        this.handler = handler;
+    }
+
+    public CsvBatch create(Set<Attribute> attributes) {
+        Util.notNull(attributes, "Attributes must not be null");
+
+        items.add(new Item(Operation.CREATE, null, attributes));
+        return this;
+    }
+
+    public CsvBatch update(Uid uid, Set<Attribute> attributes) {
+        return add(Operation.UPDATE, uid, attributes);
+    }
+
+    public CsvBatch addAttributeValues(Uid uid, Set<Attribute> attributes) {
+        return add(Operation.ADD_ATTRIBUTE_VALUES, uid, attributes);
+    }
+
+    public CsvBatch removeAttributeValues(Uid uid, Set<Attribute> attributes) {
+        return add(Operation.REMOVE_ATTRIBUTE_VALUES, uid, attributes);
+    }
+
+    public CsvBatch delete(Uid uid) {
+        return add(Operation.DELETE, uid, null);
+    }
+
+    private CsvBatch add(Operation operation, Uid uid, Set<Attribute> attributes) {
+        Util.notNull(uid, "Uid must not be null");
+        if (operation != Operation.DELETE) {
+            Util.notNull(attributes, "Attributes must not be null");
+        }
+
+        items.add(new Item(operation, uid, attributes));
+        return this;
+    }
+
+    public List<Item> getItems() {
+        return Collections.unmodifiableList(items);
+    }
+
+    public int size() {
+        return items.size();
+    }
+
+    /**
+     * Applies all changes and clears batch, so it can be reused for next changes.
+     *
+     * @return result for every change, in the same order as changes were added
+     */
+    public List<Result> execute() {
+        List<Item> toExecute = new ArrayList<>(items);
+        items.clear();
+
+        return handler.executeBatch(toExecute);
+    }
+}
@@ -176,6 +176,111 @@ public class CsvConfiguration extends AbstractConfiguration {
         return config.isIgnoreIdentifierCase();
     }
 
+    @ConfigurationProperty(
+            displayMessageKey = "UI_CSV_UID_INDEX",
+            helpMessageKey = "UI_CSV_UID_INDEX_HELP")
+    public boolean isUidIndex() {
+        return config.isUidIndex();
+    }
+
+    @ConfigurationProperty(
+            displayMessageKey = "UI_CSV_NAME_INDEX",
+            helpMessageKey = "UI_CSV_NAME_INDEX_HELP")
+    public boolean isNameIndex() {
+        return config.isNameIndex();
+    }
+
+    @ConfigurationProperty(
+            displayMessageKey = "UI_CSV_APPEND_ON_CREATE",
+            helpMessageKey = "UI_CSV_APPEND_ON_CREATE_HELP")
+    public boolean isAppendOnCreate() {
+        return config.isAppendOnCreate();
+    }
+
+    @ConfigurationProperty(
+            displayMessageKey = "UI_CSV_SYNC_MODE",
+            helpMessageKey = "UI_CSV_SYNC_MODE_HELP")
+    public String getSyncMode() {
+        return config.getSyncMode();
+    }
+
+    @ConfigurationProperty(
+            displayMessageKey = "UI_CSV_SORT_BUFFER_SIZE",
+            helpMessageKey = "UI_CSV_SORT_BUFFER_SIZE_HELP")
+    public int getSortBufferSize() {
+        return config.getSortBufferSize();
+    }
+
+    @ConfigurationProperty(
+            displayMessageKey = "UI_CSV_BYTE_TOKENIZER",
+            helpMessageKey = "UI_CSV_BYTE_TOKENIZER_HELP")
+    public boolean isByteTokenizer() {
+        return config.isByteTokenizer();
+    }
+
+    @ConfigurationProperty(
+            displayMessageKey = "UI_CSV_READ_MODE",
+            helpMessageKey = "UI_CSV_READ_MODE_HELP")
+    public String getReadMode() {
+        return config.getReadMode();
+    }
+
+    @ConfigurationProperty(
+            displayMessageKey = "UI_CSV_SCAN_THREADS",
+            helpMessageKey = "UI_CSV_SCAN_THREADS_HELP")
+    public int getScanThreads() {
+        return config.getScanThreads();
+    }
+
+    @ConfigurationProperty(
+            displayMessageKey = "UI_CSV_PRESERVE_SCAN_ORDER",
+            helpMessageKey = "UI_CSV_PRESERVE_SCAN_ORDER_HELP")
+    public boolean isPreserveScanOrder() {
+        return config.isPreserveScanOrder();
+    }
+
+    @ConfigurationProperty(
+            displayMessageKey = "UI_CSV_WRITE_MODE",
+            helpMessageKey = "UI_CSV_WRITE_MODE_HELP")
+    public String getWriteMode() {
+        return config.getWriteMode();
+    }
+
+    @ConfigurationProperty(
+            displayMessageKey = "UI_CSV_JOURNAL_MAX_ENTRIES",
+            helpMessageKey = "UI_CSV_JOURNAL_MAX_ENTRIES_HELP")
+    public int getJournalMaxEntries() {
+        return config.getJournalMaxEntries();
+    }
+
+    @ConfigurationProperty(
+            displayMessageKey = "UI_CSV_JOURNAL_MAX_AGE",
+            helpMessageKey = "UI_CSV_JOURNAL_MAX_AGE_HELP")
+    public int getJournalMaxAge() {
+        return config.getJournalMaxAge();
+    }
+
+    @ConfigurationProperty(
+            displayMessageKey = "UI_CSV_GROUP_COMMIT_WINDOW",
+            helpMessageKey = "UI_CSV_GROUP_COMMIT_WINDOW_HELP")
+    public int getGroupCommitWindow() {
+        return config.getGroupCommitWindow();
+    }
+
+    @ConfigurationProperty(
+            displayMessageKey = "UI_CSV_DURABILITY",
+            helpMessageKey = "UI_CSV_DURABILITY_HELP")
+    public String getDurability() {
+        return config.getDurability();
+    }
+
+    @ConfigurationProperty(
+            displayMessageKey = "UI_CSV_PERSISTENT_INDEX",
+            helpMessageKey = "UI_CSV_PERSISTENT_INDEX_HELP")
+    public boolean isPersistentIndex() {
+        return config.isPersistentIndex();
+    }
+
     public void setReadOnly(boolean readOnly) {
         config.setReadOnly(readOnly);
     }
@@ -264,6 +369,66 @@ public class CsvConfiguration extends AbstractConfiguration {
         config.setIgnoreIdentifierCase(ignoreIdentifierCase);
     }
 
+    public void setUidIndex(boolean uidIndex) {
+        config.setUidIndex(uidIndex);
+    }
+
+    public void setNameIndex(boolean nameIndex) {
+        config.setNameIndex(nameIndex);
+    }
+
+    public void setAppendOnCreate(boolean appendOnCreate) {
+        config.setAppendOnCreate(appendOnCreate);
+    }
+
+    public void setSyncMode(String syncMode) {
+        config.setSyncMode(syncMode);
+    }
+
+    public void setSortBufferSize(int sortBufferSize) {
+        config.setSortBufferSize(sortBufferSize);
+    }
+
+    public void setByteTokenizer(boolean byteTokenizer) {
+        config.setByteTokenizer(byteTokenizer);
+    }
+
+    public void setReadMode(String readMode) {
+        config.setReadMode(readMode);
+    }
+
+    public void setScanThreads(int scanThreads) {
+        config.setScanThreads(scanThreads);
+    }
+
+    public void setPreserveScanOrder(boolean preserveScanOrder) {
+        config.setPreserveScanOrder(preserveScanOrder);
+    }
+
+    public void setWriteMode(String writeMode) {
+        config.setWriteMode(writeMode);
+    }
+
+    public void setJournalMaxEntries(int journalMaxEntries) {
+        config.setJournalMaxEntries(journalMaxEntries);
+    }
+
+    public void setJournalMaxAge(int journalMaxAge) {
+        config.setJournalMaxAge(journalMaxAge);
+    }
+
+    public void setGroupCommitWindow(int groupCommitWindow) {
+        config.setGroupCommitWindow(groupCommitWindow);
+    }
+
+    public void setDurability(String durability) {
+        config.setDurability(durability);
+    }
+
+    public void setPersistentIndex(boolean persistentIndex) {
+        config.setPersistentIndex(persistentIndex);
+    }
+
     @Override
     public void validate() {
         LOG.info("Csv configuration validation started");
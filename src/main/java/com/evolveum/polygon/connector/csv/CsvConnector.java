@@ -23,7 +23,7 @@ import java.util.Set;
 @ConnectorClass(
         displayNameKey = "UI_CSV_CONNECTOR_NAME",
         configurationClass = CsvConfiguration.class)
-public class CsvConnector implements Connector, TestOp, SchemaOp, SearchOp<String>, AuthenticateOp,
+public class CsvConnector implements Connector, TestOp, SchemaOp, SearchOp<CsvQuery>, AuthenticateOp,
         ResolveUsernameOp, SyncOp, CreateOp, UpdateOp, UpdateAttributeValuesOp, DeleteOp {
 
     private static final Log LOG = Log.getLog(CsvConnector.class);
@@ -75,6 +75,13 @@ public class CsvConnector implements Connector, TestOp, SchemaOp, SearchOp<Strin
         return handler;
     }
 
+    /**
+     * Creates batch which applies many changes of object class by one pass over csv file, see {@link CsvBatch}.
+     */
+    public CsvBatch createBatch(ObjectClass oc) {
+        return getHandler(oc).createBatch();
+    }
+
     @Override
     public Uid authenticate(ObjectClass oc, String username, GuardedString password, OperationOptions oo) {
         LOG.info(">>> authenticate started {0} {1} {2} {3}", oc, username, password != null ? "password" : "null", oo);
@@ -111,6 +118,11 @@ public class CsvConnector implements Connector, TestOp, SchemaOp, SearchOp<Strin
             LOG.info("schema finished for {0}", handler.getObjectClass());
         });
 
+        builder.defineOperationOption(OperationOptionInfoBuilder.buildPageSize(), SearchOp.class);
+        builder.defineOperationOption(OperationOptionInfoBuilder.buildPagedResultsOffset(), SearchOp.class);
+        builder.defineOperationOption(OperationOptionInfoBuilder.buildPagedResultsCookie(), SearchOp.class);
+        builder.defineOperationOption(OperationOptionInfoBuilder.buildSortKeys(), SearchOp.class);
+
         Schema schema = builder.build();
         LOG.info(">>> schema finished");
 
@@ -118,10 +130,10 @@ public class CsvConnector implements Connector, TestOp, SchemaOp, SearchOp<Strin
     }
 
     @Override
-    public FilterTranslator<String> createFilterTranslator(ObjectClass oc, OperationOptions oo) {
+    public FilterTranslator<CsvQuery> createFilterTranslator(ObjectClass oc, OperationOptions oo) {
         LOG.info(">>> createFilterTranslator {0} {1}", oc, oo);
 
-        FilterTranslator<String> translator = getHandler(oc).createFilterTranslator(oc, oo);
+        FilterTranslator<CsvQuery> translator = getHandler(oc).createFilterTranslator(oc, oo);
 
         LOG.info(">>> createFilterTranslator finished");
 
@@ -129,10 +141,10 @@ public class CsvConnector implements Connector, TestOp, SchemaOp, SearchOp<Strin
     }
 
     @Override
-    public void executeQuery(ObjectClass oc, String uid, ResultsHandler handler, OperationOptions oo) {
-        LOG.info(">>> executeQuery {0} {1} {2} {3}", oc, uid, handler, oo);
+    public void executeQuery(ObjectClass oc, CsvQuery query, ResultsHandler handler, OperationOptions oo) {
+        LOG.info(">>> executeQuery {0} {1} {2} {3}", oc, query, handler, oo);
 
-        getHandler(oc).executeQuery(oc, uid, handler, oo);
+        getHandler(oc).executeQuery(oc, query, handler, oo);
 
         LOG.info(">>> executeQuery finished");
     }
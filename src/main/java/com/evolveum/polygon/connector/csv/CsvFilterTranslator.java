@@ -1,35 +1,132 @@
 package com.evolveum.polygon.connector.csv;
 
+import com.evolveum.polygon.connector.csv.util.RowMapping;
 import org.identityconnectors.framework.common.objects.Attribute;
-import org.identityconnectors.framework.common.objects.Uid;
-import org.identityconnectors.framework.common.objects.filter.AbstractFilterTranslator;
-import org.identityconnectors.framework.common.objects.filter.EqualsFilter;
+import org.identityconnectors.framework.common.objects.filter.*;
 
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
+ * Translates filters on uid, name and other header columns to {@link CsvQuery}. Filters on password and on
+ * multivalue attributes are not translated, they're evaluated by framework.
+ *
  * Created by Viliam Repan (lazyman).
  */
-public class CsvFilterTranslator extends AbstractFilterTranslator<String> {
+public class CsvFilterTranslator extends AbstractFilterTranslator<CsvQuery> {
+
+    private RowMapping mapping;
+
+    private ObjectClassHandlerConfiguration configuration;
+
+    // shared by all queries created by this translator, filled during translation
+    private Set<String> filterAttributes = new HashSet<>();
+
+    public CsvFilterTranslator(RowMapping mapping, ObjectClassHandlerConfiguration configuration) {
+        this.mapping = mapping;
+        this.configuration = configuration;
+    }
 
     @Override
-    protected String createEqualsExpression(EqualsFilter filter, boolean not) {
-        if (not) {
+    protected CsvQuery createEqualsExpression(EqualsFilter filter, boolean not) {
+        Attribute attr = filter.getAttribute();
+
+        filterAttributes.add(attr.getName());
+        int column = getColumn(attr.getName());
+        if (column < 0) {
             return null;
         }
 
-        Attribute attr = filter.getAttribute();
-        if (!attr.is(Uid.NAME)) {
+        List<Object> values = attr.getValue();
+        if (values == null || values.size() != 1 || values.get(0) == null) {
             return null;
         }
 
-        List<Object> values = attr.getValue();
-        if (values.isEmpty()) {
+        boolean ignoreCase = configuration.isIgnoreIdentifierCase() && isIdentifier(column);
+        if (ignoreCase && not) {
+            // framework compares values case sensitively, negated query ignoring case would drop records which
+            // framework filter accepts, framework can add them back only if filter isn't translated
+            return null;
+        }
+
+        return not(new CsvQuery.Equals(column, values.get(0).toString(), ignoreCase), not);
+    }
+
+    @Override
+    protected CsvQuery createStartsWithExpression(StartsWithFilter filter, boolean not) {
+        filterAttributes.add(filter.getName());
+        int column = getColumn(filter.getName());
+        if (column < 0 || filter.getValue() == null) {
+            return null;
+        }
+
+        return not(new CsvQuery.StartsWith(column, filter.getValue()), not);
+    }
+
+    @Override
+    protected CsvQuery createEndsWithExpression(EndsWithFilter filter, boolean not) {
+        filterAttributes.add(filter.getName());
+        int column = getColumn(filter.getName());
+        if (column < 0 || filter.getValue() == null) {
             return null;
         }
 
-        Object value = values.get(0);
+        return not(new CsvQuery.EndsWith(column, filter.getValue()), not);
+    }
+
+    @Override
+    protected CsvQuery createContainsExpression(ContainsFilter filter, boolean not) {
+        filterAttributes.add(filter.getName());
+        int column = getColumn(filter.getName());
+        if (column < 0 || filter.getValue() == null) {
+            return null;
+        }
+
+        return not(new CsvQuery.Contains(column, filter.getValue()), not);
+    }
+
+    @Override
+    protected CsvQuery createAndExpression(CsvQuery left, CsvQuery right) {
+        return track(new CsvQuery.And(left, right));
+    }
+
+    @Override
+    protected CsvQuery createOrExpression(CsvQuery left, CsvQuery right) {
+        return track(new CsvQuery.Or(left, right));
+    }
+
+    private CsvQuery not(CsvQuery query, boolean not) {
+        return track(not ? new CsvQuery.Not(query) : query);
+    }
+
+    private CsvQuery track(CsvQuery query) {
+        query.setFilterAttributes(filterAttributes);
+        return query;
+    }
+
+    /**
+     * @return index of column for attribute, -1 if filter on attribute can't be evaluated on raw value
+     */
+    private int getColumn(String attributeName) {
+        int column = mapping.getIndex(attributeName);
+        if (column < 0) {
+            return -1;
+        }
+
+        if (mapping.getRole(column) == RowMapping.Role.PASSWORD) {
+            return -1;
+        }
+
+        if (mapping.getRole(column) == RowMapping.Role.ATTRIBUTE && configuration.getMultivalueDelimiter() != null) {
+            // raw value contains all values of attribute
+            return -1;
+        }
+
+        return column;
+    }
 
-        return value != null ? value.toString() : null;
+    private boolean isIdentifier(int column) {
+        return mapping.getRole(column) != RowMapping.Role.ATTRIBUTE;
     }
 }
@@ -0,0 +1,206 @@
+package com.evolveum.polygon.connector.csv;
+
+import com.evolveum.polygon.connector.csv.util.CsvRow;
+
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * Query created by {@link CsvFilterTranslator}. Query is evaluated on raw csv record values, so connector
+ * object is created only for records which match it. Values are compared case sensitive, only identifier columns
+ * can ignore case (see {@link ObjectClassHandlerConfiguration#isIgnoreIdentifierCase()}).
+ *
+ * @author Viliam Repan (lazyman)
+ */
+public abstract class CsvQuery {
+
+    private Set<String> filterAttributes = Collections.emptySet();
+
+    public abstract boolean matches(CsvRow record);
+
+    /**
+     * @return names of attributes used in filter which query was translated from, including attributes which
+     * couldn't be translated. Framework evaluates whole filter on returned objects, so these attributes
+     * have to be returned.
+     */
+    public Set<String> getFilterAttributes() {
+        return filterAttributes;
+    }
+
+    public void setFilterAttributes(Set<String> filterAttributes) {
+        this.filterAttributes = filterAttributes;
+    }
+
+    /**
+     * @return value which column has to contain in every matching record, null if query doesn't define it
+     */
+    public String getRequiredValue(int column) {
+        return null;
+    }
+
+    protected static String getValue(CsvRow record, int column) {
+        return column < record.size() ? record.get(column) : null;
+    }
+
+    public static class Equals extends CsvQuery {
+
+        private int column;
+        private String value;
+        private boolean ignoreCase;
+
+        public Equals(int column, String value, boolean ignoreCase) {
+            this.column = column;
+            this.value = value;
+            this.ignoreCase = ignoreCase;
+        }
+
+        @Override
+        public boolean matches(CsvRow record) {
+            String recordValue = getValue(record, column);
+            if (recordValue == null) {
+                return false;
+            }
+
+            return ignoreCase ? value.equalsIgnoreCase(recordValue) : value.equals(recordValue);
+        }
+
+        @Override
+        public String getRequiredValue(int column) {
+            return this.column == column ? value : null;
+        }
+
+        @Override
+        public String toString() {
+            return "Equals(" + column + ", " + value + (ignoreCase ? ", ignoreCase)" : ")");
+        }
+    }
+
+    private abstract static class StringQuery extends CsvQuery {
+
+        protected int column;
+        protected String value;
+
+        private StringQuery(int column, String value) {
+            this.column = column;
+            this.value = value;
+        }
+
+        @Override
+        public boolean matches(CsvRow record) {
+            String recordValue = getValue(record, column);
+
+            return recordValue != null && matches(recordValue);
+        }
+
+        protected abstract boolean matches(String recordValue);
+
+        @Override
+        public String toString() {
+            return getClass().getSimpleName() + "(" + column + ", " + value + ")";
+        }
+    }
+
+    public static class StartsWith extends StringQuery {
+
+        public StartsWith(int column, String value) {
+            super(column, value);
+        }
+
+        @Override
+        protected boolean matches(String recordValue) {
+            return recordValue.startsWith(value);
+        }
+    }
+
+    public static class EndsWith extends StringQuery {
+
+        public EndsWith(int column, String value) {
+            super(column, value);
+        }
+
+        @Override
+        protected boolean matches(String recordValue) {
+            return recordValue.endsWith(value);
+        }
+    }
+
+    public static class Contains extends StringQuery {
+
+        public Contains(int column, String value) {
+            super(column, value);
+        }
+
+        @Override
+        protected boolean matches(String recordValue) {
+            return recordValue.contains(value);
+        }
+    }
+
+    public static class And extends CsvQuery {
+
+        private CsvQuery left;
+        private CsvQuery right;
+
+        public And(CsvQuery left, CsvQuery right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public boolean matches(CsvRow record) {
+            return left.matches(record) && right.matches(record);
+        }
+
+        @Override
+        public String getRequiredValue(int column) {
+            String value = left.getRequiredValue(column);
+
+            return value != null ? value : right.getRequiredValue(column);
+        }
+
+        @Override
+        public String toString() {
+            return "And(" + left + ", " + right + ")";
+        }
+    }
+
+    public static class Or extends CsvQuery {
+
+        private CsvQuery left;
+        private CsvQuery right;
+
+        public Or(CsvQuery left, CsvQuery right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public boolean matches(CsvRow record) {
+            return left.matches(record) || right.matches(record);
+        }
+
+        @Override
+        public String toString() {
+            return "Or(" + left + ", " + right + ")";
+        }
+    }
+
+    public static class Not extends CsvQuery {
+
+        private CsvQuery query;
+
+        public Not(CsvQuery query) {
+            this.query = query;
+        }
+
+        @Override
+        public boolean matches(CsvRow record) {
+            return !query.matches(record);
+        }
+
+        @Override
+        public String toString() {
+            return "Not(" + query + ")";
+        }
+    }
+}
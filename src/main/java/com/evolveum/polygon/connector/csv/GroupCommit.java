@@ -0,0 +1,151 @@
+package com.evolveum.polygon.connector.csv;
+
+import org.identityconnectors.common.logging.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Coalesces changes of the same csv file made concurrently by more threads. Thread which submits change while no
+ * batch is being written becomes leader: it waits for group commit window, takes all submitted changes and applies
+ * them as one batch. Other threads wait until their change is written. Changes submitted while batch is written
+ * are collected for next batch, which is written by the first of waiting threads after current batch finishes.
+ * <p>
+ * Changes of different handlers (e.g. connector instances with different configuration of the same file) are
+ * applied by handler which submitted them, consecutive changes of the same handler are applied together.
+ *
+ * @author Viliam Repan (lazyman)
+ */
+class GroupCommit {
+
+    private static final Log LOG = Log.getLog(GroupCommit.class);
+
+    private static class Request {
+
+        private ObjectClassHandler handler;
+        private CsvBatch.Item item;
+
+        // completed with null if thread has to write next batch
+        private CompletableFuture<CsvBatch.Result> result = new CompletableFuture<>();
+
+        private Request(ObjectClassHandler handler, CsvBatch.Item item) {
+            this.handler = handler;
+            this.item = item;
+        }
+    }
+
+    private List<Request> queue = new ArrayList<>();
+
+    private boolean writing;
+
+    /**
+     * Blocks until change is written together with other changes submitted in the meantime.
+     *
+     * @param handler applies batch of changes, only one batch of all handlers is applied at a time
+     * @param window  time in milliseconds for which leader waits for other changes
+     * @return result of change
+     */
+    CsvBatch.Result submit(ObjectClassHandler handler, CsvBatch.Item item, long window) {
+        Request request = new Request(handler, item);
+
+        boolean leader;
+        synchronized (this) {
+            queue.add(request);
+
+            leader = !writing;
+            writing = true;
+        }
+
+        if (leader) {
+            waitForOthers(window);
+        } else if (await(request) == null) {
+            // previous leader finished, this thread writes changes collected in the meantime
+            leader = true;
+        }
+
+        if (leader) {
+            writeBatch();
+        }
+
+        return await(request);
+    }
+
+    private void waitForOthers(long window) {
+        if (window <= 0) {
+            return;
+        }
+
+        try {
+            Thread.sleep(window);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeBatch() {
+        List<Request> requests;
+        synchronized (this) {
+            requests = queue;
+            queue = new ArrayList<>();
+        }
+
+        try {
+            int from = 0;
+            while (from < requests.size()) {
+                // consecutive changes of the same handler
+                int to = from + 1;
+                while (to < requests.size() && requests.get(to).handler == requests.get(from).handler) {
+                    to++;
+                }
+
+                writeBatch(requests.subList(from, to));
+                from = to;
+            }
+        } finally {
+            synchronized (this) {
+                if (queue.isEmpty()) {
+                    writing = false;
+                } else {
+                    // first waiting thread becomes leader of next batch
+                    queue.get(0).result.complete(null);
+                }
+            }
+        }
+    }
+
+    private void writeBatch(List<Request> batch) {
+        try {
+            List<CsvBatch.Item> items = new ArrayList<>(batch.size());
+            batch.forEach(request -> items.add(request.item));
+
+            List<CsvBatch.Result> results = batch.get(0).handler.executeBatch(items);
+
+            LOG.ok("Group commit of {0} changes finished", batch.size());
+
+            for (int i = 0; i < batch.size(); i++) {
+                batch.get(i).result.complete(results.get(i));
+            }
+        } catch (RuntimeException ex) {
+            batch.forEach(request -> request.result.completeExceptionally(ex));
+        }
+    }
+
+    private CsvBatch.Result await(Request request) {
+        try {
+            CsvBatch.Result result = request.result.join();
+            if (result == null) {
+                request.result = new CompletableFuture<>();
+            }
+
+            return result;
+        } catch (CompletionException ex) {
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+
+            throw ex;
+        }
+    }
+}
@@ -1,8 +1,6 @@
 package com.evolveum.polygon.connector.csv;
 
-import com.evolveum.polygon.connector.csv.util.Column;
-import com.evolveum.polygon.connector.csv.util.StringAccessor;
-import com.evolveum.polygon.connector.csv.util.Util;
+import com.evolveum.polygon.connector.csv.util.*;
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVParser;
 import org.apache.commons.csv.CSVPrinter;
@@ -16,10 +14,17 @@ import org.identityconnectors.framework.common.objects.filter.FilterTranslator;
 import org.identityconnectors.framework.spi.operations.*;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
 import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import static com.evolveum.polygon.connector.csv.util.Util.handleGenericException;
 
@@ -28,24 +33,220 @@ import static com.evolveum.polygon.connector.csv.util.Util.handleGenericExceptio
  * <p>
  * Created by lazyman on 27/01/2017.
  */
-public class ObjectClassHandler implements CreateOp, DeleteOp, TestOp, SearchOp<String>,
+public class ObjectClassHandler implements CreateOp, DeleteOp, TestOp, SearchOp<CsvQuery>,
         UpdateAttributeValuesOp, AuthenticateOp, ResolveUsernameOp, SyncOp {
 
     private enum Operation {
 
-        DELETE, UPDATE, ADD_ATTR_VALUE, REMOVE_ATTR_VALUE;
+        DELETE(CsvBatch.Operation.DELETE),
+
+        UPDATE(CsvBatch.Operation.UPDATE),
+
+        ADD_ATTR_VALUE(CsvBatch.Operation.ADD_ATTRIBUTE_VALUES),
+
+        REMOVE_ATTR_VALUE(CsvBatch.Operation.REMOVE_ATTRIBUTE_VALUES);
+
+        private CsvBatch.Operation batchOperation;
+
+        Operation(CsvBatch.Operation batchOperation) {
+            this.batchOperation = batchOperation;
+        }
     }
 
     private static final Log LOG = Log.getLog(ObjectClassHandler.class);
 
+    /**
+     * Connector instances are not pooled, therefore indexes are shared between handlers for the same file.
+     */
+    private static final Map<String, RecordIndex> INDEXES = new ConcurrentHashMap<>();
+
+    /**
+     * Part of name of sorted copies of csv file created for search with sort keys.
+     */
+    private static final String SORTED_SEARCH_INFIX = ".search.";
+
+    /**
+     * Journals are shared between handlers for the same file the same way as indexes.
+     */
+    private static final Map<String, Journal> JOURNALS = new ConcurrentHashMap<>();
+
+    /**
+     * Concurrent changes are coalesced for all handlers of the same file.
+     */
+    private static final Map<String, GroupCommit> GROUP_COMMITS = new ConcurrentHashMap<>();
+
+    /**
+     * One writer thread for all handlers of the same file.
+     */
+    private static final Map<String, WriterThread> WRITERS = new ConcurrentHashMap<>();
+
+    /**
+     * Compacts journals in background. Thread ends when no compaction is scheduled for a while, so it doesn't
+     * keep connector class loader alive after all connector instances were disposed.
+     */
+    private static final ScheduledExecutorService COMPACTOR = createCompactor();
+
+    private static ScheduledExecutorService createCompactor() {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, task -> {
+            Thread thread = new Thread(task, "csv-journal-compactor");
+            thread.setDaemon(true);
+            thread.setContextClassLoader(null);
+            return thread;
+        });
+        executor.setKeepAliveTime(60, TimeUnit.SECONDS);
+        executor.allowCoreThreadTimeOut(true);
+        // cancelled compaction mustn't keep thread alive until its delay expires
+        executor.setRemoveOnCancelPolicy(true);
+
+        return executor;
+    }
+
     private ObjectClassHandlerConfiguration configuration;
 
     private Map<String, Column> header;
 
+    private RowMapping mapping;
+
+    // projection used if attributes to get aren't defined
+    private RowMapping defaultProjection;
+
+    private String uidIndexKey;
+
+    private String nameIndexKey;
+
+    private boolean appendOnCreate;
+
+    // null if changes are not journaled
+    private Journal journal;
+
+    // journal is flushed without tmp file lock
+    private boolean writeBehind;
+
+    private Durability durability;
+
+    // null if concurrent changes are not coalesced
+    private GroupCommit groupCommit;
+
+    // null if changes are applied by calling thread
+    private WriterThread writer;
+
     public ObjectClassHandler(ObjectClassHandlerConfiguration configuration) {
         this.configuration = configuration;
 
         header = initHeader(configuration.getFilePath());
+        mapping = new RowMapping(header, configuration);
+        defaultProjection = mapping.withoutPassword();
+
+        if (configuration.isUidIndex() || configuration.isAppendOnCreate()) {
+            // append on create needs index to check uniqueness without scanning whole file
+            uidIndexKey = createIndexKey(configuration.getUniqueAttribute());
+        }
+
+        if (configuration.isAppendOnCreate()) {
+            appendOnCreate = uidIndexKey != null;
+        }
+
+        if (configuration.isNameIndex()) {
+            // if name and unique attribute are the same column, key and therefore also index is shared
+            nameIndexKey = createIndexKey(configuration.getNameAttribute());
+        }
+
+        if (configuration.isPersistentIndex()) {
+            loadIndex(uidIndexKey, configuration.getUniqueAttribute());
+            if (nameIndexKey != null && !nameIndexKey.equals(uidIndexKey)) {
+                loadIndex(nameIndexKey, configuration.getNameAttribute());
+            }
+        }
+
+        durability = Durability.valueOf(configuration.getDurability().toUpperCase());
+
+        writeBehind = WriteMode.WRITE_BEHIND.name().equalsIgnoreCase(configuration.getWriteMode());
+        if (writeBehind || WriteMode.JOURNAL.name().equalsIgnoreCase(configuration.getWriteMode())) {
+            journal = JOURNALS.computeIfAbsent(getCanonicalPath() + "|" + configuration.isIgnoreIdentifierCase(),
+                    key -> new Journal(Util.createJournalPath(configuration), configuration));
+        }
+
+        if (WriteMode.GROUP_COMMIT.name().equalsIgnoreCase(configuration.getWriteMode())) {
+            groupCommit = GROUP_COMMITS.computeIfAbsent(getCanonicalPath(), key -> new GroupCommit());
+        }
+
+        if (WriteMode.WRITER_THREAD.name().equalsIgnoreCase(configuration.getWriteMode())) {
+            writer = WRITERS.computeIfAbsent(getCanonicalPath(),
+                    key -> new WriterThread(configuration.getFilePath().getName()));
+        }
+    }
+
+    private String createIndexKey(String column) {
+        if (!RecordScanner.isSupported(Charset.forName(configuration.getEncoding()))) {
+            LOG.warn("Index can't be used for file {0}, encoding {1} is not supported",
+                    configuration.getFilePath(), configuration.getEncoding());
+            return null;
+        }
+
+        return getCanonicalPath() + "|" + column + "|" + configuration.isIgnoreIdentifierCase();
+    }
+
+    /**
+     * Loads index stored by previous connector instance, if it matches current version of csv file. Otherwise index
+     * is built when it's used for the first time.
+     */
+    private void loadIndex(String key, String column) {
+        if (key == null) {
+            return;
+        }
+
+        int columnIndex = header.get(column).getIndex();
+        File file = Util.createIndexPath(configuration, columnIndex);
+
+        try (PinnedFile csv = PinnedFile.pin(configuration.getFilePath())) {
+            FileVersion version = csv.getVersion();
+
+            RecordIndex existing = INDEXES.get(key);
+            if (existing != null && version.equals(existing.getVersion())) {
+                return;
+            }
+
+            // file is read outside of compute, so it doesn't block other indexes in the same bin of map
+            RecordIndex loaded = IndexFile.read(file, columnIndex, csv, configuration.isIgnoreIdentifierCase());
+            if (loaded == null || !csv.isCurrent()) {
+                return;
+            }
+
+            INDEXES.compute(key, (k, current) -> {
+                if (current != null
+                        && (version.equals(current.getVersion()) || isNewer(current.getVersion(), version))) {
+                    return current;
+                }
+
+                return loaded;
+            });
+        } catch (IOException ex) {
+            LOG.warn("Couldn't load index {0}, reason: {1}", file, ex.getMessage());
+        }
+    }
+
+    /**
+     * Index is stored only after it was built by full scan, index changed by splice or append is rebuilt and stored
+     * again when connector is initialized next time.
+     */
+    private void storeIndex(PinnedFile csv, RecordIndex index, int column) {
+        File file = Util.createIndexPath(configuration, column);
+        try {
+            IndexFile.write(index, column, csv, file);
+        } catch (IOException ex) {
+            LOG.warn("Couldn't store index {0}, reason: {1}", file, ex.getMessage());
+        }
+    }
+
+    private String getCanonicalPath() {
+        File file = configuration.getFilePath();
+        try {
+            file = file.getCanonicalFile();
+        } catch (IOException ex) {
+            LOG.warn("Couldn't create canonical path for {0}, reason: {1}", file, ex.getMessage());
+        }
+
+        return file.getPath();
     }
 
     private Map<String, Column> initHeader(File csvFile) {
@@ -214,6 +415,7 @@ public class ObjectClassHandler implements CreateOp, DeleteOp, TestOp, SearchOp<
                 AttributeInfoBuilder builder = new AttributeInfoBuilder(OperationalAttributes.PASSWORD_NAME);
                 builder.setType(GuardedString.class);
                 builder.setNativeName(name);
+                builder.setReturnedByDefault(false);
 
                 infos.add(builder.build());
 
@@ -250,6 +452,22 @@ public class ObjectClassHandler implements CreateOp, DeleteOp, TestOp, SearchOp<
         String uidValue = findUidValue(attributes);
         Uid uid = new Uid(uidValue);
 
+        if (journal != null) {
+            return createInJournal(uid, attributes);
+        }
+
+        if (groupCommit != null) {
+            return commitInGroup(new CsvBatch.Item(CsvBatch.Operation.CREATE, null, attributes));
+        }
+
+        if (writer != null) {
+            return commitByWriter(new CsvBatch.Item(CsvBatch.Operation.CREATE, null, attributes));
+        }
+
+        if (appendOnCreate) {
+            return appendNewRecord(uid, attributes);
+        }
+
         FileLock lock = Util.obtainTmpFileLock(configuration);
         Reader reader = null;
         Writer writer = null;
@@ -299,6 +517,159 @@ public class ObjectClassHandler implements CreateOp, DeleteOp, TestOp, SearchOp<
         return uid;
     }
 
+    /**
+     * New record is appended directly to csv file, tmp file is used only as lock. Other records are neither
+     * read nor rewritten if uniqueness can be checked using index.
+     */
+    private Uid appendNewRecord(Uid uid, Set<Attribute> attributes) {
+        FileLock lock = Util.obtainTmpFileLock(configuration);
+        try {
+            List<ConnectorObject> existing = new ArrayList<>();
+            executeQuery(configuration.getObjectClass(), createUidQuery(uid.getUidValue()), obj -> existing.add(obj),
+                    null);
+
+            for (ConnectorObject obj : existing) {
+                if (identifierMatches(uid.getUidValue(), obj.getUid().getUidValue(),
+                        configuration.isIgnoreIdentifierCase())) {
+                    throw new AlreadyExistsException("Account already exists '" + uid.getUidValue() + "'.");
+                }
+            }
+
+            appendRecord(createNewRecord(attributes));
+        } catch (Exception ex) {
+            handleGenericException(ex, "Error during account '" + uid + "' create");
+        } finally {
+            Util.cleanupResources(null, null, lock, configuration);
+        }
+
+        return uid;
+    }
+
+    private Uid createInJournal(Uid uid, Set<Attribute> attributes) {
+        FileLock lock = Util.obtainTmpFileLock(configuration);
+        try {
+            List<ConnectorObject> existing = new ArrayList<>();
+            executeQuery(configuration.getObjectClass(), createUidQuery(uid.getUidValue()), obj -> existing.add(obj),
+                    null);
+
+            for (ConnectorObject obj : existing) {
+                if (identifierMatches(uid.getUidValue(), obj.getUid().getUidValue(),
+                        configuration.isIgnoreIdentifierCase())) {
+                    throw new AlreadyExistsException("Account already exists '" + uid.getUidValue() + "'.");
+                }
+            }
+
+            List<String> record = toJournalValues(createNewRecord(attributes));
+            appendToJournal(Collections.singletonList(Journal.upsert(uid.getUidValue(), record)));
+        } catch (Exception ex) {
+            handleGenericException(ex, "Error during account '" + uid + "' create");
+        } finally {
+            Util.cleanupResources(null, null, lock, configuration);
+        }
+
+        return uid;
+    }
+
+    private void appendRecord(List<Object> record) throws IOException {
+        Charset charset = Charset.forName(configuration.getEncoding());
+
+        byte[] bytes = formatRecord(record).getBytes(charset);
+        byte[] separator = configuration.getRecordSeparator().getBytes(charset);
+
+        File csv = configuration.getFilePath();
+        try (FileChannel channel = FileChannel.open(csv.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            FileVersion before = FileVersion.of(csv);
+
+            long offset = channel.size();
+            if (offset > 0 && !endsWithLineTerminator(channel, offset)) {
+                // last record doesn't have separator, we have to add it, otherwise new record would be joined to it
+                write(channel, separator, offset);
+                offset += separator.length;
+            }
+
+            write(channel, bytes, offset);
+            if (durability != Durability.NONE) {
+                channel.force(durability == Durability.FSYNC);
+            }
+
+            FileVersion after = FileVersion.of(csv);
+            RecordIndex.Location location = new RecordIndex.Location(offset, bytes.length - separator.length);
+
+            updateIndex(uidIndexKey, configuration.getUniqueAttribute(), record, location, before, after);
+            if (nameIndexKey != null && !nameIndexKey.equals(uidIndexKey)) {
+                updateIndex(nameIndexKey, configuration.getNameAttribute(), record, location, before, after);
+            }
+        }
+
+        PinnedFile.publish(csv);
+    }
+
+    private boolean endsWithLineTerminator(FileChannel channel, long size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1);
+        if (channel.read(buffer, size - 1) != 1) {
+            return false;
+        }
+
+        byte last = buffer.get(0);
+        return last == '\n' || last == '\r';
+    }
+
+    private void write(FileChannel channel, byte[] bytes, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    /**
+     * Adds appended record to index, if index was up to date before append. Otherwise index is dropped
+     * and it will be rebuilt during next use.
+     */
+    private void updateIndex(String key, String column, List<Object> record, RecordIndex.Location location,
+                             FileVersion before, FileVersion after) {
+        if (key == null) {
+            return;
+        }
+
+        String value = getIndexValue(record, column);
+
+        INDEXES.computeIfPresent(key, (k, index) -> {
+
+            if (!before.equals(index.getVersion())) {
+                return null;
+            }
+
+            if (StringUtil.isNotEmpty(value)) {
+                index.add(value, location);
+            }
+            index.setVersion(after);
+
+            return index;
+        });
+    }
+
+    private String getIndexValue(List<Object> record, String column) {
+        Object value = record.get(header.get(column).getIndex());
+        if (value == null) {
+            return null;
+        }
+
+        String str = value.toString();
+        return configuration.isTrim() ? str.trim() : str;
+    }
+
+    /**
+     * @return record formatted by csv printer, including record separator
+     */
+    private String formatRecord(List<Object> record) throws IOException {
+        StringWriter writer = new StringWriter();
+        CSVPrinter printer = Util.createCsvFormat(configuration).print(writer);
+        printer.printRecord(record);
+        printer.flush();
+
+        return writer.toString();
+    }
+
     private void moveTmpToOrig() throws IOException {
         // moving existing file
         String path = configuration.getFilePath().getPath();
@@ -306,7 +677,10 @@ public class ObjectClassHandler implements CreateOp, DeleteOp, TestOp, SearchOp<
 
         File tmp = Util.createTmpPath(configuration);
 
-        Files.move(tmp.toPath(), orig.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Util.replaceFile(tmp, orig, durability);
+
+        // readers which pinned previous version continue to read it
+        PinnedFile.publish(orig);
     }
 
     private boolean isPassword(String column) {
@@ -381,11 +755,23 @@ public class ObjectClassHandler implements CreateOp, DeleteOp, TestOp, SearchOp<
     }
 
     @Override
-    public FilterTranslator<String> createFilterTranslator(ObjectClass oc, OperationOptions oo) {
-        return new CsvFilterTranslator();
+    public FilterTranslator<CsvQuery> createFilterTranslator(ObjectClass oc, OperationOptions oo) {
+        return new CsvFilterTranslator(mapping, configuration);
+    }
+
+    private CsvQuery createUidQuery(String uid) {
+        return new CsvQuery.Equals(getUidColumn(), uid, configuration.isIgnoreIdentifierCase());
+    }
+
+    private int getUidColumn() {
+        return header.get(configuration.getUniqueAttribute()).getIndex();
     }
 
     private boolean skipRecord(CSVRecord record) {
+        return skipRecord(CsvRow.of(record));
+    }
+
+    private boolean skipRecord(CsvRow record) {
         if (configuration.isHeaderExists() && record.getRecordNumber() == 1) {
             return true;
         }
@@ -398,135 +784,570 @@ public class ObjectClassHandler implements CreateOp, DeleteOp, TestOp, SearchOp<
     }
 
     @Override
-    public void executeQuery(ObjectClass oc, String uid, ResultsHandler handler, OperationOptions oo) {
-        CSVFormat csv = Util.createCsvFormatReader(configuration);
-        try (Reader reader = Util.createReader(configuration)) {
+    public void executeQuery(ObjectClass oc, CsvQuery query, ResultsHandler handler, OperationOptions oo) {
+        RowMapping projection = createProjection(oo, query);
+        ExternalSorter sorter = createSearchSorter(oo != null ? oo.getSortKeys() : null);
 
-            CSVParser parser = csv.parse(reader);
-            Iterator<CSVRecord> iterator = parser.iterator();
-            while (iterator.hasNext()) {
-                CSVRecord record = iterator.next();
-                if (skipRecord(record)) {
-                    continue;
-                }
+        // whole search reads one version of csv file, even if writer replaces it in the meantime
+        try (PinnedFile csv = PinnedFile.pin(configuration.getFilePath())) {
+            executeQuery(csv, query, projection, sorter, handler, oo);
+        } catch (Exception ex) {
+            handleGenericException(ex, "Error during query execution");
+        }
+    }
 
-                ConnectorObject obj = createConnectorObject(record);
+    private void executeQuery(PinnedFile csv, CsvQuery query, RowMapping projection, ExternalSorter sorter,
+                              ResultsHandler handler, OperationOptions oo) throws IOException {
 
-                if (uid == null) {
-                    if (!handler.handle(obj)) {
-                        break;
-                    } else {
+        Integer pageSize = oo != null ? oo.getPageSize() : null;
+        if (pageSize != null && pageSize > 0) {
+            executePagedQuery(csv, query, projection, sorter, handler, oo);
+            return;
+        }
+
+        String uid = query != null ? query.getRequiredValue(getUidColumn()) : null;
+        if (uid != null && uidIndexKey != null && executeIndexedQuery(csv, uid, query, projection, sorter, handler)) {
+            return;
+        }
+
+        Journal.Snapshot snapshot = getJournalSnapshot();
+        if (sorter != null) {
+            try (CsvRowReader reader = Util.createRowReader(getSortedFile(csv, sorter, snapshot), configuration)) {
+
+                CsvRow record;
+                while ((record = reader.next()) != null) {
+                    if (skipRecord(record) || !matches(query, record)) {
                         continue;
                     }
+
+                    if (!handler.handle(createConnectorObject(record, projection))) {
+                        break;
+                    }
                 }
+            }
+            return;
+        }
 
-                if ( ! uidMatches(uid, obj.getUid().getUidValue(), configuration.isIgnoreIdentifierCase()) ) {
+        if (isParallelScan(snapshot)) {
+            new ParallelScanner(csv, configuration, configuration.getScanThreads(),
+                    configuration.isPreserveScanOrder()).scan(
+                    record -> skipRecord(record) || !matches(query, record) ?
+                            null : createConnectorObject(record, projection),
+                    handler::handle);
+            return;
+        }
+
+        try (CsvRowReader reader = createRowReader(csv, snapshot)) {
+
+            CsvRow record;
+            while ((record = reader.next()) != null) {
+                if (skipRecord(record) || !matches(query, record)) {
                     continue;
                 }
 
+                ConnectorObject obj = createConnectorObject(record, projection);
                 if (!handler.handle(obj)) {
                     break;
                 }
             }
-        } catch (Exception ex) {
-            handleGenericException(ex, "Error during query execution");
         }
     }
 
-    private boolean uidMatches(String uid1, String uid2, boolean ignoreCase) {
-    	return uid1.equals(uid2) || ignoreCase && uid1.equalsIgnoreCase(uid2);
-	}
+    /**
+     * Returns one page of results. Cookie of next page contains offset of next record in file, so next page is read
+     * from that offset instead of scanning file from start. Number of remaining results is reported only if it's
+     * known without further reading.
+     */
+    private void executePagedQuery(PinnedFile csv, CsvQuery query, RowMapping projection, ExternalSorter sorter,
+                                   ResultsHandler handler, OperationOptions oo) throws IOException {
+
+        int pageSize = oo.getPageSize();
+        PagedResultsCookie cookie = PagedResultsCookie.parse(oo.getPagedResultsCookie());
+
+        // offset is 1-based and used only for first page
+        Integer pagedResultsOffset = oo.getPagedResultsOffset();
+        int skip = cookie == null && pagedResultsOffset != null && pagedResultsOffset > 1 ? pagedResultsOffset - 1 : 0;
+
+        String uid = query != null ? query.getRequiredValue(getUidColumn()) : null;
+        if (cookie == null && uid != null && uidIndexKey != null) {
+            List<ConnectorObject> objects = new ArrayList<>();
+            if (executeIndexedQuery(csv, uid, query, projection, sorter, objects::add)) {
+                int from = Math.min(skip, objects.size());
+                int to = Math.min(from + pageSize, objects.size());
+                for (ConnectorObject obj : objects.subList(from, to)) {
+                    if (!handler.handle(obj)) {
+                        break;
+                    }
+                }
 
-	private void validateAuthenticationInputs(String username, GuardedString password, boolean authenticate) {
-        if (StringUtil.isEmpty(username)) {
-            throw new InvalidCredentialException("Username must not be empty");
+                handleSearchResult(handler, null, objects.size() - to);
+                return;
+            }
         }
 
-        if (authenticate && StringUtil.isEmpty(configuration.getPasswordAttribute())) {
-            throw new ConfigurationException("Password attribute not defined in configuration");
+        Journal.Snapshot snapshot = getJournalSnapshot();
+        String fingerprint = getFingerprint(csv, snapshot);
+        if (cookie != null && !fingerprint.equals(cookie.getFingerprint())) {
+            throw new ConnectorException("Csv file " + csv.getFile()
+                    + " was changed, paged search has to be restarted");
         }
 
-        if (authenticate && password == null) {
-            throw new InvalidPasswordException("Password is not defined");
+        CsvRowReader pagedReader;
+        if (sorter != null) {
+            // pages are read from sorted copy, offsets in cookie point to it, journal is already applied in it
+            File sorted = getSortedFile(csv, sorter, snapshot);
+            pagedReader = createPagedReader(FileChannel.open(sorted.toPath(), StandardOpenOption.READ), cookie);
+        } else if (snapshot != null) {
+            pagedReader = createRowReader(csv, snapshot);
+        } else {
+            pagedReader = createPagedReader(csv.openChannel(), cookie);
         }
-    }
 
-    private Uid resolveUsername(String username, GuardedString password, OperationOptions oo, boolean authenticate) {
-        validateAuthenticationInputs(username, password, authenticate);
+        try (CsvRowReader reader = pagedReader) {
+            int returned = 0;
 
-        CSVFormat csv = Util.createCsvFormatReader(configuration);
-        try (Reader reader = Util.createReader(configuration)) {
+            CsvRow record;
+            while ((record = reader.next()) != null) {
+                if (cookie != null && record.getRecordNumber() <= cookie.getRecordNumber()) {
+                    // reader couldn't start at offset from cookie
+                    continue;
+                }
 
-            ConnectorObject object = null;
+                if (skipRecord(record) || !matches(query, record)) {
+                    continue;
+                }
 
-            CSVParser parser = csv.parse(reader);
-            Iterator<CSVRecord> iterator = parser.iterator();
-            while (iterator.hasNext()) {
-                CSVRecord record = iterator.next();
-                if (skipRecord(record)) {
+                if (skip > 0) {
+                    skip--;
                     continue;
                 }
 
-                ConnectorObject obj = createConnectorObject(record);
+                ConnectorObject obj = createConnectorObject(record, projection);
+                returned++;
 
-                Name name = obj.getName();
-                if (name != null && username.equals(AttributeUtil.getStringValue(name))) {
-                    object = obj;
-                    break;
+                if (!handler.handle(obj) || returned == pageSize) {
+                    long offset = reader instanceof CsvTokenizer ? ((CsvTokenizer) reader).getNextOffset() : -1;
+                    PagedResultsCookie next = new PagedResultsCookie(record.getRecordNumber(), offset, fingerprint);
+
+                    handleSearchResult(handler, next.toString(), -1);
+                    return;
                 }
             }
+        }
 
-            if (object == null) {
-                String message = authenticate ? "Invalid username and/or password" : "Invalid username";
-                throw new InvalidCredentialException(message);
-            }
+        // end of file reached, there are no more results
+        handleSearchResult(handler, null, 0);
+    }
 
-            if (authenticate) {
-                authenticate(username, password, object);
-            }
+    /**
+     * Tokenizer is used regardless of byte tokenizer option if encoding is supported, only tokenizer knows
+     * offset of next record which is stored in cookie, so next page doesn't have to skip previous pages.
+     *
+     * @param channel channel of file with records, it's closed when reader is closed
+     */
+    private CsvRowReader createPagedReader(FileChannel channel, PagedResultsCookie cookie) throws IOException {
+        if (!RecordScanner.isSupported(Charset.forName(configuration.getEncoding()))) {
+            return Util.createRowReader(channel, configuration);
+        }
 
-            Uid uid = object.getUid();
-            if (uid == null) {
-                throw new UnknownUidException("Unique attribute doesn't have value for account '" + username + "'");
-            }
+        if (cookie == null || cookie.getOffset() < 0) {
+            return new CsvTokenizer(channel, configuration);
+        }
 
-            return uid;
-        } catch (Exception ex) {
-            handleGenericException(ex, "Error during authentication");
+        if (cookie.getOffset() > channel.size()) {
+            channel.close();
+            throw new ConnectorException("Invalid paged results cookie '" + cookie + "'");
         }
 
-        return null;
+        return new CsvTokenizer(channel, cookie.getOffset(), Long.MAX_VALUE, cookie.getRecordNumber(), configuration);
     }
 
-    private void authenticate(String username, GuardedString password, ConnectorObject foundObject) {
-        GuardedString objPassword = AttributeUtil.getPasswordValue(foundObject.getAttributes());
-        if (objPassword == null) {
-            throw new InvalidPasswordException("Password not defined for username '" + username + "'");
+    private void handleSearchResult(ResultsHandler handler, String cookie, int remainingResults) {
+        if (handler instanceof SearchResultsHandler) {
+            ((SearchResultsHandler) handler).handleResult(new SearchResult(cookie, remainingResults));
         }
+    }
 
-        // we don't want to authenticate against empty password
-        StringAccessor acc = new StringAccessor();
-        objPassword.access(acc);
-        if (StringUtil.isEmpty(acc.getValue())) {
-            throw new InvalidPasswordException("Password not defined for username '" + username + "'");
+    /**
+     * @return mapping which returns only attributes requested by options and attributes used by query filter
+     */
+    private RowMapping createProjection(OperationOptions options, CsvQuery query) {
+        String[] attributesToGet = options != null ? options.getAttributesToGet() : null;
+        if (attributesToGet == null) {
+            if (query != null && query.getFilterAttributes().contains(OperationalAttributes.PASSWORD_NAME)) {
+                return mapping;
+            }
+
+            return defaultProjection;
         }
 
-        if (!objPassword.equals(password)) {
-            throw new InvalidPasswordException("Invalid username and/or password");
+        Set<String> attributes = new HashSet<>(Arrays.asList(attributesToGet));
+        if (query != null) {
+            attributes.addAll(query.getFilterAttributes());
         }
+
+        return mapping.project(attributes);
     }
 
-    @Override
-    public void sync(ObjectClass oc, SyncToken token, SyncResultsHandler handler, OperationOptions oo) {
-        File syncLockFile = Util.createSyncLockFile(configuration);
-        FileLock lock = Util.obtainTmpFileLock(syncLockFile);
+    /**
+     * @return sorter for sort keys, null if results don't have to be sorted
+     */
+    private ExternalSorter createSearchSorter(SortKey[] sortKeys) {
+        if (sortKeys == null || sortKeys.length == 0) {
+            return null;
+        }
 
-        try {
-            long tokenLongValue = getTokenValue(token);
-            LOG.info("Token {0}", tokenLongValue);
+        int[] columns = new int[sortKeys.length];
+        boolean[] ascending = new boolean[sortKeys.length];
+        for (int i = 0; i < sortKeys.length; i++) {
+            String field = sortKeys[i].getField();
 
-            if (tokenLongValue == -1) {
-                //token doesn't exist, we only create new sync file - we're synchronizing from now on
+            int column = mapping.getIndex(field);
+            if (column < 0 || mapping.getRole(column) == RowMapping.Role.PASSWORD) {
+                throw new InvalidAttributeValueException("Can't sort by attribute '" + field
+                        + "', it's not a column in csv file");
+            }
+
+            columns[i] = column;
+            ascending[i] = sortKeys[i].isAscendingOrder();
+        }
+
+        return new ExternalSorter(configuration, columns, ascending, configuration.getSortBufferSize());
+    }
+
+    /**
+     * @return copy of csv file sorted by sorter, copy is kept in tmp folder and reused until csv file is changed
+     */
+    private File getSortedFile(PinnedFile csv, ExternalSorter sorter, Journal.Snapshot snapshot) throws IOException {
+        String fingerprint = getFingerprint(csv, snapshot);
+        String prefix = csv.getFile().getName() + SORTED_SEARCH_INFIX;
+
+        File sorted = new File(configuration.getTmpFolder(), prefix + fingerprint + "." + sorter.getSortOrder());
+        if (sorted.exists()) {
+            return sorted;
+        }
+
+        // copies created for previous versions of csv file can't be used anymore
+        File[] stale = configuration.getTmpFolder().listFiles((dir, name) -> name.startsWith(prefix)
+                && !name.startsWith(prefix + fingerprint + ".") && !name.endsWith(".sort"));
+        if (stale != null) {
+            for (File file : stale) {
+                file.delete();
+            }
+        }
+
+        // pinned version doesn't change during sorting, so copy always matches fingerprint
+        sorter.sort(createRowReader(csv, snapshot), sorted);
+
+        return sorted;
+    }
+
+    private boolean matches(CsvQuery query, CsvRow record) {
+        return query == null || query.matches(record);
+    }
+
+    /**
+     * @return journal changes which are not merged to csv file yet, null if there are no such changes
+     */
+    private Journal.Snapshot getJournalSnapshot() throws IOException {
+        if (journal == null) {
+            return null;
+        }
+
+        Journal.Snapshot snapshot = journal.getSnapshot();
+        return snapshot.isEmpty() ? null : snapshot;
+    }
+
+    /**
+     * @return reader of csv records with journal changes applied
+     */
+    private CsvRowReader createRowReader(PinnedFile csv, Journal.Snapshot snapshot) throws IOException {
+        CsvRowReader reader = Util.createRowReader(csv.openChannel(), configuration);
+
+        return snapshot != null ? snapshot.overlay(reader, getUidColumn(), configuration.isHeaderExists()) : reader;
+    }
+
+    /**
+     * @return fingerprint of csv file version and journal changes which are not merged to it yet
+     */
+    private String getFingerprint(PinnedFile csv, Journal.Snapshot snapshot) {
+        String fingerprint = csv.getVersion().getFingerprint();
+
+        return snapshot != null ? fingerprint + "-j" + Long.toHexString(snapshot.getVersion()) : fingerprint;
+    }
+
+    /**
+     * @param snapshot parallel scanner reads only csv file, so journal changes must be merged
+     */
+    private boolean isParallelScan(Journal.Snapshot snapshot) {
+        return snapshot == null
+                && configuration.getScanThreads() > 1
+                && RecordScanner.isSupported(Charset.forName(configuration.getEncoding()));
+    }
+
+    /**
+     * @return false if index doesn't match csv file and query must be executed by scanning whole file
+     */
+    private boolean executeIndexedQuery(PinnedFile csv, String uid, CsvQuery query, RowMapping projection,
+                                        ExternalSorter sorter, ResultsHandler handler) throws IOException {
+
+        Journal.Snapshot snapshot = getJournalSnapshot();
+        if (snapshot != null && snapshot.contains(uid)) {
+            // record was changed after csv file was indexed
+            List<String> record = snapshot.get(uid);
+            if (record != null && matches(query, CsvRow.of(record, 0))) {
+                handler.handle(createConnectorObject(CsvRow.of(record, 0), projection));
+            }
+            return true;
+        }
+
+        List<CSVRecord> records = findIndexedRecords(csv, uidIndexKey, configuration.getUniqueAttribute(), uid);
+        if (records == null) {
+            return false;
+        }
+
+        if (sorter != null) {
+            // only few records have the same uid, they're sorted in memory
+            records.sort((r1, r2) -> sorter.compare(CsvRow.of(r1), CsvRow.of(r2)));
+        }
+
+        for (CSVRecord record : records) {
+            CsvRow row = CsvRow.of(record);
+            if (!matches(query, row)) {
+                continue;
+            }
+
+            ConnectorObject obj = createConnectorObject(row, projection);
+            if (!handler.handle(obj)) {
+                break;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @return records with value in column (in file order), null if index doesn't match csv file
+     */
+    private List<CSVRecord> findIndexedRecords(PinnedFile csv, String key, String column, String value)
+            throws IOException {
+
+        RecordIndex index = getIndex(csv, key, column);
+        int columnIndex = header.get(column).getIndex();
+
+        List<CSVRecord> records = new ArrayList<>();
+        try (FileChannel channel = csv.openChannel()) {
+            for (RecordIndex.Location location : index.find(value)) {
+                CSVRecord record = readRecord(channel, location);
+                if (record == null || isRecordEmpty(record) || columnIndex >= record.size()
+                        || !index.keyMatches(value, record.get(columnIndex))) {
+                    LOG.ok("Index for column {0} in {1} is out of date", column, configuration.getFilePath());
+                    INDEXES.remove(key, index);
+                    return null;
+                }
+
+                if (identifierMatches(value, record.get(columnIndex), configuration.isIgnoreIdentifierCase())) {
+                    records.add(record);
+                }
+            }
+        }
+
+        return records;
+    }
+
+    /**
+     * Returns index from cache if it matches current version of csv file, otherwise index is rebuilt.
+     */
+    private RecordIndex getIndex(String key, String column) throws IOException {
+        try (PinnedFile csv = PinnedFile.pin(configuration.getFilePath())) {
+            return getIndex(csv, key, column);
+        }
+    }
+
+    /**
+     * Index of version which was replaced in the meantime isn't cached, only reader which pinned it can use it.
+     * Index is built outside of {@link ConcurrentHashMap#compute}, scan of big file would block all indexes
+     * in the same bin of map, more threads may build the same index at the same time.
+     */
+    private RecordIndex getIndex(PinnedFile csv, String key, String column) throws IOException {
+        int columnIndex = header.get(column).getIndex();
+        if (!csv.isCurrent()) {
+            return RecordIndex.build(csv, columnIndex, configuration);
+        }
+
+        FileVersion version = csv.getVersion();
+
+        RecordIndex existing = INDEXES.get(key);
+        if (existing != null && version.equals(existing.getVersion())) {
+            return existing;
+        }
+
+        RecordIndex index = RecordIndex.build(csv, columnIndex, configuration);
+        if (configuration.isPersistentIndex()) {
+            // stored before it's published, published index can be changed by appends
+            storeIndex(csv, index, columnIndex);
+        }
+
+        if (!csv.isCurrent()) {
+            return index;
+        }
+
+        RecordIndex published = INDEXES.compute(key, (k, current) -> {
+            if (current != null && (version.equals(current.getVersion()) || isNewer(current.getVersion(), version))) {
+                return current;
+            }
+
+            return index;
+        });
+
+        // index of newer version published in the meantime can't be used for pinned version
+        return version.equals(published.getVersion()) ? published : index;
+    }
+
+    /**
+     * @return true if version was modified later than other version
+     */
+    private boolean isNewer(FileVersion version, FileVersion other) {
+        if (version.getLastModified() == null || other.getLastModified() == null) {
+            return false;
+        }
+
+        return version.getLastModified().compareTo(other.getLastModified()) > 0;
+    }
+
+    private CSVRecord readRecord(FileChannel channel, RecordIndex.Location location) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(location.getLength());
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, location.getOffset() + buffer.position()) < 0) {
+                return null;
+            }
+        }
+
+        String record = new String(buffer.array(), Charset.forName(configuration.getEncoding()));
+
+        return RecordIndex.parseRecord(record, Util.createCsvFormat(configuration));
+    }
+
+    private boolean identifierMatches(String uid1, String uid2, boolean ignoreCase) {
+    	return uid1.equals(uid2) || ignoreCase && uid1.equalsIgnoreCase(uid2);
+	}
+
+	private void validateAuthenticationInputs(String username, GuardedString password, boolean authenticate) {
+        if (StringUtil.isEmpty(username)) {
+            throw new InvalidCredentialException("Username must not be empty");
+        }
+
+        if (authenticate && StringUtil.isEmpty(configuration.getPasswordAttribute())) {
+            throw new ConfigurationException("Password attribute not defined in configuration");
+        }
+
+        if (authenticate && password == null) {
+            throw new InvalidPasswordException("Password is not defined");
+        }
+    }
+
+    private Uid resolveUsername(String username, GuardedString password, OperationOptions oo, boolean authenticate) {
+        validateAuthenticationInputs(username, password, authenticate);
+
+        try {
+            CsvRow record = findByName(username);
+
+            if (record == null) {
+                String message = authenticate ? "Invalid username and/or password" : "Invalid username";
+                throw new InvalidCredentialException(message);
+            }
+
+            if (authenticate) {
+                String recordPassword = getValue(record, mapping.getIndex(OperationalAttributes.PASSWORD_NAME));
+                authenticate(username, password, recordPassword);
+            }
+
+            String uid = getValue(record, getUidColumn());
+            if (StringUtil.isEmpty(uid)) {
+                throw new UnknownUidException("Unique attribute doesn't have value for account '" + username + "'");
+            }
+
+            return new Uid(uid);
+        } catch (Exception ex) {
+            handleGenericException(ex, "Error during authentication");
+        }
+
+        return null;
+    }
+
+    /**
+     * @return copy of first record with name, only name column is decoded for other records
+     */
+    private CsvRow findByName(String username) throws IOException {
+        try (PinnedFile csv = PinnedFile.pin(configuration.getFilePath())) {
+            return findByName(csv, username);
+        }
+    }
+
+    private CsvRow findByName(PinnedFile csv, String username) throws IOException {
+        // index doesn't contain records changed in journal
+        Journal.Snapshot snapshot = getJournalSnapshot();
+        if (nameIndexKey != null && snapshot == null) {
+            List<CSVRecord> records = findIndexedRecords(csv, nameIndexKey, configuration.getNameAttribute(),
+                    username);
+            if (records != null) {
+                return records.isEmpty() ? null : CsvRow.of(records.get(0));
+            }
+        }
+
+        int nameColumn = mapping.getIndex(Name.NAME);
+        if (nameColumn < 0) {
+            return null;
+        }
+
+        try (CsvRowReader reader = createRowReader(csv, snapshot)) {
+
+            CsvRow record;
+            while ((record = reader.next()) != null) {
+                if (skipRecord(record)) {
+                    continue;
+                }
+
+                String name = getValue(record, nameColumn);
+                if (StringUtil.isNotEmpty(name)
+                        && identifierMatches(username, name, configuration.isIgnoreIdentifierCase())) {
+                    return CsvRow.copyOf(record);
+                }
+            }
+        }
+
+        return null;
+    }
+
+    private String getValue(CsvRow record, int column) {
+        return column >= 0 && column < record.size() ? record.get(column) : null;
+    }
+
+    private void authenticate(String username, GuardedString password, String recordPassword) {
+        // we don't want to authenticate against empty password
+        if (StringUtil.isEmpty(recordPassword)) {
+            throw new InvalidPasswordException("Password not defined for username '" + username + "'");
+        }
+
+        if (!Util.passwordMatches(password, recordPassword)) {
+            throw new InvalidPasswordException("Invalid username and/or password");
+        }
+    }
+
+    @Override
+    public void sync(ObjectClass oc, SyncToken token, SyncResultsHandler handler, OperationOptions oo) {
+        File syncLockFile = Util.createSyncLockFile(configuration);
+        FileLock lock = Util.obtainTmpFileLock(syncLockFile);
+
+        try {
+            // snapshots are created from csv file, so it has to contain all changes
+            compactJournal();
+
+            long tokenLongValue = getTokenValue(token);
+            LOG.info("Token {0}", tokenLongValue);
+
+            if (tokenLongValue == -1) {
+                //token doesn't exist, we only create new sync file - we're synchronizing from now on
                 createNewSyncFile();
                 LOG.info("Token value was not defined {0}, only creating new sync file, synchronizing from now on.", token);
                 return;
@@ -546,14 +1367,23 @@ public class ObjectClassHandler implements CreateOp, DeleteOp, TestOp, SearchOp<
                 return;
             }
 
-            doSync(tokenLongValue, handler);
+            doSync(tokenLongValue, handler, createProjection(oo, null));
         } finally {
-            Util.closeQuietly(lock);
-            syncLockFile.delete();
+            Util.releaseTmpFileLock(lock, syncLockFile);
         }
     }
 
-    private void doSync(long token, SyncResultsHandler handler) {
+    private void doSync(long token, SyncResultsHandler handler, RowMapping projection) {
+        if (isSortedSync()) {
+            doSortedSync(token, handler, projection);
+            return;
+        }
+
+        if (isManifestSync()) {
+            doManifestSync(token, handler, projection);
+            return;
+        }
+
         String newToken = createNewSyncFile();
         SyncToken newSyncToken = new SyncToken(newToken);
 
@@ -564,15 +1394,11 @@ public class ObjectClassHandler implements CreateOp, DeleteOp, TestOp, SearchOp<
         Map<String, CSVRecord> oldData = loadOldSyncFile(token);
         Set<String> oldUsedOids = new HashSet<>();
 
-        CSVFormat csv = Util.createCsvFormatReader(configuration);
-        try (Reader reader = Util.createReader(newCsv, configuration)) {
-
-            CSVParser parser = csv.parse(reader);
-            Iterator<CSVRecord> iterator = parser.iterator();
+        try (CsvRowReader reader = Util.createRowReader(newCsv, configuration)) {
 
             boolean shouldContinue = true;
-            while (iterator.hasNext()) {
-                CSVRecord record = iterator.next();
+            CsvRow record;
+            while ((record = reader.next()) != null) {
                 if (skipRecord(record)) {
                     continue;
                 }
@@ -583,14 +1409,15 @@ public class ObjectClassHandler implements CreateOp, DeleteOp, TestOp, SearchOp<
                             + record.getRecordNumber() + " in " + newCsv.getName());
                 }
 
-                shouldContinue = doSyncCreateOrUpdate(record, uid, oldData, oldUsedOids, newSyncToken, handler);
+                shouldContinue = doSyncCreateOrUpdate(record, uid, oldData, oldUsedOids, newSyncToken, handler,
+                        projection);
                 if (!shouldContinue) {
                     break;
                 }
             }
 
             if (shouldContinue) {
-                doSyncDeleted(oldData, oldUsedOids, newSyncToken, handler);
+                doSyncDeleted(oldData, oldUsedOids, newSyncToken, handler, projection);
             }
 
             cleanupOldSyncFiles();
@@ -599,7 +1426,28 @@ public class ObjectClassHandler implements CreateOp, DeleteOp, TestOp, SearchOp<
         }
     }
 
-    private Map<String, CSVRecord> loadOldSyncFile(long token) {
+    private boolean isSortedSync() {
+        return SyncMode.SORTED.name().equalsIgnoreCase(configuration.getSyncMode());
+    }
+
+    private boolean isManifestSync() {
+        return SyncMode.MANIFEST.name().equalsIgnoreCase(configuration.getSyncMode());
+    }
+
+    private ExternalSorter createSorter() {
+        int uidIndex = header.get(configuration.getUniqueAttribute()).getIndex();
+        return new ExternalSorter(configuration, uidIndex, configuration.getSortBufferSize());
+    }
+
+    /**
+     * Both snapshots are sorted by unique attribute, so deltas are computed by reading them side by side and only
+     * one record from each snapshot is in memory. Deltas are therefore ordered by unique attribute value.
+     */
+    private void doSortedSync(long token, SyncResultsHandler handler, RowMapping projection) {
+        String newToken = createNewSyncFile();
+        SyncToken newSyncToken = new SyncToken(newToken);
+
+        File newCsv = Util.createSyncFileName(Long.parseLong(newToken), configuration);
         File oldCsv = Util.createSyncFileName(token, configuration);
 
         Map<String, Column> header = initHeader(oldCsv);
@@ -607,368 +1455,1261 @@ public class ObjectClassHandler implements CreateOp, DeleteOp, TestOp, SearchOp<
             throw new ConnectorException("Headers of sync file '" + oldCsv + "' and current csv don't match");
         }
 
-        Integer uidIndex = header.get(configuration.getUniqueAttribute()).getIndex();
+        ExternalSorter sorter = createSorter();
 
-        Map<String, CSVRecord> oldData = new HashMap<>();
+        File sortedOldCsv = null;
+        CsvRowReader oldReader = null;
+        CsvRowReader newReader = null;
+        try {
+            if (!sorter.isSorted(oldCsv)) {
+                // snapshot was created by copy sync mode
+                LOG.info("Sync file {0} is not sorted, sorting it", oldCsv.getName());
 
-        CSVFormat csv = Util.createCsvFormatReader(configuration);
-        try (Reader reader = Util.createReader(oldCsv, configuration)) {
-            CSVParser parser = csv.parse(reader);
-            Iterator<CSVRecord> iterator = parser.iterator();
-            while (iterator.hasNext()) {
-                CSVRecord record = iterator.next();
-                if (skipRecord(record)) {
-                    continue;
+                sortedOldCsv = new File(oldCsv.getPath() + ".sorted");
+                sorter.sort(oldCsv, sortedOldCsv);
+                oldCsv = sortedOldCsv;
+            }
+
+            oldReader = Util.createRowReader(oldCsv, configuration);
+            newReader = Util.createRowReader(newCsv, configuration);
+
+            CsvRow oldRecord = nextSyncRecord(oldReader, sorter, oldCsv);
+            CsvRow newRecord = nextSyncRecord(newReader, sorter, newCsv);
+
+            boolean shouldContinue = true;
+            while (shouldContinue && (oldRecord != null || newRecord != null)) {
+                int compare;
+                if (oldRecord == null) {
+                    compare = 1;
+                } else if (newRecord == null) {
+                    compare = -1;
+                } else {
+                    compare = ExternalSorter.compareKeys(sorter.getKey(oldRecord), sorter.getKey(newRecord));
                 }
 
-                String uid = record.get(uidIndex);
-                if (StringUtil.isEmpty(uid)) {
-                    throw new ConnectorException("Unique attribute not defined for record number "
-                            + record.getRecordNumber() + " in " + oldCsv.getName());
+                SyncDelta delta = null;
+                if (compare < 0) {
+                    delta = buildSyncDelta(SyncDeltaType.DELETE, newSyncToken, oldRecord, projection);
+                } else if (compare > 0) {
+                    delta = buildSyncDelta(SyncDeltaType.CREATE, newSyncToken, newRecord, projection);
+                } else if (!CsvRow.values(oldRecord).equals(CsvRow.values(newRecord))) {
+                    delta = buildSyncDelta(SyncDeltaType.UPDATE, newSyncToken, newRecord, projection);
                 }
 
-                if (oldData.containsKey(uid)) {
-                    throw new ConnectorException("Unique attribute value '" + uid + "' is not unique in "
-                            + oldCsv.getName());
+                if (delta != null) {
+                    LOG.ok("Created delta {0}", delta);
+                    shouldContinue = handler.handle(delta);
                 }
 
-                oldData.put(uid, record);
+                if (compare <= 0) {
+                    // row can be reused by reader, key has to be read before moving to next row
+                    String previous = sorter.getKey(oldRecord);
+                    oldRecord = nextSyncRecord(oldReader, sorter, oldCsv);
+                    if (oldRecord != null && previous.equals(sorter.getKey(oldRecord))) {
+                        throw new ConnectorException("Unique attribute value '" + previous
+                                + "' is not unique in " + oldCsv.getName());
+                    }
+                }
+
+                if (compare >= 0) {
+                    newRecord = nextSyncRecord(newReader, sorter, newCsv);
+                }
             }
+
+            cleanupOldSyncFiles();
         } catch (Exception ex) {
-            handleGenericException(ex, "Error during query execution");
-        }
+            handleGenericException(ex, "Error during synchronization");
+        } finally {
+            Util.closeQuietly(oldReader);
+            Util.closeQuietly(newReader);
 
-        return oldData;
+            if (sortedOldCsv != null) {
+                sortedOldCsv.delete();
+            }
+        }
     }
 
-    private void cleanupOldSyncFiles() {
-        String[] tokenFiles = Util.listTokenFiles(configuration);
-        Arrays.sort(tokenFiles);
+    /**
+     * Current csv file is sorted by unique attribute and merged with old manifest. Old snapshot created by other
+     * sync mode is converted to manifest first.
+     */
+    private void doManifestSync(long token, SyncResultsHandler handler, RowMapping projection) {
+        File csvFile = configuration.getFilePath();
+        File oldCsv = Util.createSyncFileName(token, configuration);
 
-        int preserve = configuration.getPreserveOldSyncFiles();
-        if (preserve <= 1) {
-            LOG.info("Not removing old token files. Preserve last tokens: {0}.", preserve);
-            return;
-        }
+        ExternalSorter sorter = createSorter();
 
-        File parentFolder = configuration.getTmpFolder();
-        for (int i = 0; i + preserve < tokenFiles.length; i++) {
-            File tokenSyncFile = new File(parentFolder, tokenFiles[i]);
-            if (!tokenSyncFile.exists()) {
-                continue;
+        File sorted = new File(configuration.getTmpFolder(), csvFile.getName() + ".sorted");
+        File convertedManifest = null;
+        SyncManifest.ManifestReader oldReader = null;
+        CsvRowReader newReader = null;
+        try {
+            if (!SyncManifest.isManifest(oldCsv, configuration)) {
+                Map<String, Column> header = initHeader(oldCsv);
+                if (!this.header.equals(header)) {
+                    throw new ConnectorException("Headers of sync file '" + oldCsv + "' and current csv don't match");
+                }
+
+                LOG.info("Sync file {0} is not manifest, converting it", oldCsv.getName());
+
+                convertedManifest = new File(oldCsv.getPath() + ".manifest");
+                createManifest(oldCsv, convertedManifest, sorted);
+                oldCsv = convertedManifest;
             }
 
-            LOG.info("Deleting file {0}.", tokenSyncFile.getName());
-            tokenSyncFile.delete();
-        }
-    }
+            oldReader = new SyncManifest.ManifestReader(oldCsv, configuration);
+            if (!getColumnNames().equals(oldReader.getColumns())) {
+                throw new ConnectorException("Headers of sync file '" + oldCsv + "' and current csv don't match");
+            }
 
-    private boolean doSyncCreateOrUpdate(CSVRecord newRecord, String newRecordUid, Map<String, CSVRecord> oldData,
-                                         Set<String> oldUsedOids, SyncToken newSyncToken, SyncResultsHandler handler) {
-        SyncDelta delta;
+            SyncToken newSyncToken = new SyncToken(createNewSyncFile(sorted));
 
-        CSVRecord oldRecord = oldData.get(newRecordUid);
-        if (oldRecord == null) {
-            // newRecord is new account
-            delta = buildSyncDelta(SyncDeltaType.CREATE, newSyncToken, newRecord);
+            newReader = Util.createRowReader(sorted, configuration);
+
+            boolean hasOld = oldReader.next();
+            CsvRow newRecord = nextSyncRecord(newReader, sorter, csvFile);
+
+            boolean shouldContinue = true;
+            while (shouldContinue && (hasOld || newRecord != null)) {
+                int compare;
+                if (!hasOld) {
+                    compare = 1;
+                } else if (newRecord == null) {
+                    compare = -1;
+                } else {
+                    compare = ExternalSorter.compareKeys(oldReader.getUid(), sorter.getKey(newRecord));
+                }
+
+                SyncDelta delta = null;
+                if (compare < 0) {
+                    delta = buildDeleteSyncDelta(newSyncToken, oldReader.getUid());
+                } else if (compare > 0) {
+                    delta = buildSyncDelta(SyncDeltaType.CREATE, newSyncToken, newRecord, projection);
+                } else if (oldReader.getHash() != SyncManifest.hash(newRecord)) {
+                    delta = buildSyncDelta(SyncDeltaType.UPDATE, newSyncToken, newRecord, projection);
+                }
+
+                if (delta != null) {
+                    LOG.ok("Created delta {0}", delta);
+                    shouldContinue = handler.handle(delta);
+                }
+
+                if (compare <= 0) {
+                    String previous = oldReader.getUid();
+                    hasOld = oldReader.next();
+                    if (hasOld && previous.equals(oldReader.getUid())) {
+                        throw new ConnectorException("Unique attribute value '" + previous + "' is not unique in "
+                                + oldCsv.getName());
+                    }
+                }
+
+                if (compare >= 0) {
+                    newRecord = nextSyncRecord(newReader, sorter, csvFile);
+                }
+            }
+
+            cleanupOldSyncFiles();
+        } catch (Exception ex) {
+            handleGenericException(ex, "Error during synchronization");
+        } finally {
+            Util.closeQuietly(oldReader);
+            Util.closeQuietly(newReader);
+
+            sorted.delete();
+            if (convertedManifest != null) {
+                convertedManifest.delete();
+            }
+        }
+    }
+
+    /**
+     * @param sorted file where csv sorted by unique attribute is stored, if null it's deleted after manifest
+     *               is created
+     */
+    private void createManifest(File csv, File manifest, File sorted) throws IOException {
+        createManifest(Util.createRowReader(csv, configuration), manifest, sorted);
+    }
+
+    /**
+     * @param reader reader of csv records, it's closed after records are sorted
+     */
+    private void createManifest(CsvRowReader reader, File manifest, File sorted) throws IOException {
+        File sortedCsv = sorted != null ? sorted : new File(manifest.getPath() + ".sorted");
+        try {
+            createSorter().sort(reader, sortedCsv);
+
+            int uidIndex = header.get(configuration.getUniqueAttribute()).getIndex();
+            SyncManifest.write(sortedCsv, manifest, getColumnNames(), uidIndex, configuration, this::skipRecord);
+        } finally {
+            if (sorted == null) {
+                sortedCsv.delete();
+            }
+        }
+    }
+
+    private List<String> getColumnNames() {
+        List<String> columns = new ArrayList<>();
+        for (int i = 0; i < mapping.size(); i++) {
+            columns.add(mapping.getName(i));
+        }
+
+        return columns;
+    }
+
+    private SyncDelta buildDeleteSyncDelta(SyncToken token, String uid) {
+        SyncDeltaBuilder builder = new SyncDeltaBuilder();
+        builder.setDeltaType(SyncDeltaType.DELETE);
+        builder.setObjectClass(ObjectClass.ACCOUNT);
+        builder.setToken(token);
+        builder.setUid(new Uid(uid));
+
+        return builder.build();
+    }
+
+    private CsvRow nextSyncRecord(CsvRowReader reader, ExternalSorter sorter, File file) throws IOException {
+        CsvRow record;
+        while ((record = reader.next()) != null) {
+            if (skipRecord(record)) {
+                continue;
+            }
+
+            if (StringUtil.isEmpty(sorter.getKey(record))) {
+                throw new ConnectorException("Unique attribute not defined for record number "
+                        + record.getRecordNumber() + " in " + file.getName());
+            }
+
+            return record;
+        }
+
+        return null;
+    }
+
+    private Map<String, CSVRecord> loadOldSyncFile(long token) {
+        File oldCsv = Util.createSyncFileName(token, configuration);
+
+        Map<String, Column> header = initHeader(oldCsv);
+        if (!this.header.equals(header)) {
+            throw new ConnectorException("Headers of sync file '" + oldCsv + "' and current csv don't match");
+        }
+
+        Integer uidIndex = header.get(configuration.getUniqueAttribute()).getIndex();
+
+        Map<String, CSVRecord> oldData = new HashMap<>();
+
+        CSVFormat csv = Util.createCsvFormatReader(configuration);
+        try (Reader reader = Util.createReader(oldCsv, configuration)) {
+            CSVParser parser = csv.parse(reader);
+            Iterator<CSVRecord> iterator = parser.iterator();
+            while (iterator.hasNext()) {
+                CSVRecord record = iterator.next();
+                if (skipRecord(record)) {
+                    continue;
+                }
+
+                String uid = record.get(uidIndex);
+                if (StringUtil.isEmpty(uid)) {
+                    throw new ConnectorException("Unique attribute not defined for record number "
+                            + record.getRecordNumber() + " in " + oldCsv.getName());
+                }
+
+                if (oldData.containsKey(uid)) {
+                    throw new ConnectorException("Unique attribute value '" + uid + "' is not unique in "
+                            + oldCsv.getName());
+                }
+
+                oldData.put(uid, record);
+            }
+        } catch (Exception ex) {
+            handleGenericException(ex, "Error during query execution");
+        }
+
+        return oldData;
+    }
+
+    private void cleanupOldSyncFiles() {
+        String[] tokenFiles = Util.listTokenFiles(configuration);
+        Arrays.sort(tokenFiles);
+
+        int preserve = configuration.getPreserveOldSyncFiles();
+        if (preserve <= 1) {
+            LOG.info("Not removing old token files. Preserve last tokens: {0}.", preserve);
+            return;
+        }
+
+        File parentFolder = configuration.getTmpFolder();
+        for (int i = 0; i + preserve < tokenFiles.length; i++) {
+            File tokenSyncFile = new File(parentFolder, tokenFiles[i]);
+            if (!tokenSyncFile.exists()) {
+                continue;
+            }
+
+            LOG.info("Deleting file {0}.", tokenSyncFile.getName());
+            tokenSyncFile.delete();
+        }
+    }
+
+    private boolean doSyncCreateOrUpdate(CsvRow newRecord, String newRecordUid, Map<String, CSVRecord> oldData,
+                                         Set<String> oldUsedOids, SyncToken newSyncToken, SyncResultsHandler handler,
+                                         RowMapping projection) {
+        SyncDelta delta;
+
+        CSVRecord oldRecord = oldData.get(newRecordUid);
+        if (oldRecord == null) {
+            // newRecord is new account
+            delta = buildSyncDelta(SyncDeltaType.CREATE, newSyncToken, newRecord, projection);
         } else {
             oldUsedOids.add(newRecordUid);
 
             // this will be an update if records aren't equal
             List old = Util.copyOf(oldRecord.iterator());
-            List _new = Util.copyOf(newRecord.iterator());
+            List _new = CsvRow.values(newRecord);
             if (old.equals(_new)) {
                 // record are equal, no update
                 return true;
             }
 
-            delta = buildSyncDelta(SyncDeltaType.UPDATE, newSyncToken, newRecord);
+            delta = buildSyncDelta(SyncDeltaType.UPDATE, newSyncToken, newRecord, projection);
+        }
+
+        LOG.ok("Created delta {0}", delta);
+
+        return handler.handle(delta);
+    }
+
+    private void doSyncDeleted(Map<String, CSVRecord> oldData, Set<String> oldUsedOids, SyncToken newSyncToken,
+                               SyncResultsHandler handler, RowMapping projection) {
+
+        for (String oldUid : oldData.keySet()) {
+            if (oldUsedOids.contains(oldUid)) {
+                continue;
+            }
+
+            // deleted record
+            CSVRecord deleted = oldData.get(oldUid);
+            SyncDelta delta = buildSyncDelta(SyncDeltaType.DELETE, newSyncToken, CsvRow.of(deleted), projection);
+
+            LOG.ok("Created delta {0}", delta);
+
+            if (!handler.handle(delta)) {
+                break;
+            }
+        }
+    }
+
+    private SyncDelta buildSyncDelta(SyncDeltaType type, SyncToken token, CsvRow record, RowMapping projection) {
+        SyncDeltaBuilder builder = new SyncDeltaBuilder();
+        builder.setDeltaType(type);
+        builder.setObjectClass(ObjectClass.ACCOUNT);
+        builder.setToken(token);
+
+        ConnectorObject object = createConnectorObject(record, projection);
+        builder.setObject(object);
+
+        return builder.build();
+    }
+
+    private long getTokenValue(SyncToken token) {
+        if (token == null || token.getValue() == null) {
+            return -1;
+        }
+        String object = token.getValue().toString();
+        if (!object.matches("[0-9]{13}")) {
+            return -1;
+        }
+
+        return Long.parseLong(object);
+    }
+
+    private String createNewSyncFile() {
+        return createNewSyncFile(null);
+    }
+
+    /**
+     * @param sorted used only in manifest sync mode, file where csv sorted by unique attribute is kept
+     */
+    private String createNewSyncFile(File sorted) {
+        String token = null;
+        // token and content of sync file are taken from one version of csv file
+        try (PinnedFile csv = PinnedFile.pin(configuration.getFilePath())) {
+            LOG.info("Old csv files were not found, creating token, synchronizing from \"now\".");
+            long timestamp = csv.getVersion().getLastModified().toMillis();
+
+            File last = Util.createSyncFileName(timestamp, configuration);
+            if (isSortedSync() || isManifestSync()) {
+                if (last.exists()) {
+                    throw new FileAlreadyExistsException(last.getPath());
+                }
+
+                if (isSortedSync()) {
+                    createSorter().sort(Util.createRowReader(csv.openChannel(), configuration), last);
+                } else {
+                    createManifest(Util.createRowReader(csv.openChannel(), configuration), last, sorted);
+                }
+            } else {
+                try (InputStream in = Channels.newInputStream(csv.openChannel())) {
+                    Files.copy(in, last.toPath());
+                }
+            }
+
+            token = Long.toString(timestamp);
+        } catch (IOException ex) {
+            handleGenericException(ex, "Error during get latest sync token operation");
+        }
+
+        return token;
+    }
+
+    @Override
+    public SyncToken getLatestSyncToken(ObjectClass oc) {
+        String csvFileName = configuration.getFilePath().getName();
+        String[] oldCsvFiles = Util.listTokenFiles(configuration);
+
+        String token;
+        if (oldCsvFiles.length != 0) {
+            Arrays.sort(oldCsvFiles);
+            String latestCsvFile = oldCsvFiles[oldCsvFiles.length - 1];
+            token = latestCsvFile.replaceFirst(csvFileName + "\\.sync\\.", "");
+
+            return new SyncToken(token);
+        }
+
+        compactJournal();
+        token = createNewSyncFile();
+
+        return new SyncToken(token);
+    }
+
+    @Override
+    public void test() {
+        configuration.validate();
+
+        initHeader(configuration.getFilePath());
+    }
+
+    @Override
+    public Uid addAttributeValues(ObjectClass oc, Uid uid, Set<Attribute> set, OperationOptions oo) {
+        if (configuration.isReadOnly()) {
+            throw new ConnectorException("Can't add attribute values. Readonly set to true.");
+        }
+
+        return update(Operation.ADD_ATTR_VALUE, oc, uid, set, oo);
+    }
+
+    @Override
+    public Uid removeAttributeValues(ObjectClass oc, Uid uid, Set<Attribute> set, OperationOptions oo) {
+        if (configuration.isReadOnly()) {
+            throw new ConnectorException("Can't add attribute values. Readonly set to true.");
+        }
+
+        return update(Operation.REMOVE_ATTR_VALUE, oc, uid, set, oo);
+    }
+
+    @Override
+    public Uid update(ObjectClass oc, Uid uid, Set<Attribute> set, OperationOptions oo) {
+        if (configuration.isReadOnly()) {
+            throw new ConnectorException("Can't add attribute values. Readonly set to true.");
+        }
+
+        return update(Operation.UPDATE, oc, uid, set, oo);
+    }
+
+    private boolean isRecordEmpty(CSVRecord record) {
+        return isRecordEmpty(CsvRow.of(record));
+    }
+
+    private boolean isRecordEmpty(CsvRow record) {
+        if (!configuration.isIgnoreEmptyLines()) {
+            return false;
+        }
+
+        for (int i = 0; i < record.size(); i++) {
+            String value = record.get(i);
+            if (StringUtil.isNotBlank(value)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private ConnectorObject createConnectorObject(CSVRecord record) {
+        return createConnectorObject(CsvRow.of(record));
+    }
+
+    private ConnectorObject createConnectorObject(CsvRow record) {
+        return createConnectorObject(record, mapping);
+    }
+
+    /**
+     * @param projection mapping which defines returned attributes, values of skipped columns are not decoded
+     */
+    private ConnectorObject createConnectorObject(CsvRow record, RowMapping projection) {
+        if (record.size() > projection.size()) {
+            throw new ConnectorException("Record number " + record.getRecordNumber() + " has more values ("
+                    + record.size() + ") than header (" + projection.size() + ")");
+        }
+
+        ConnectorObjectBuilder builder = new ConnectorObjectBuilder();
+
+        for (int i = 0; i < record.size(); i++) {
+            RowMapping.Role role = projection.getRole(i);
+            if (role == RowMapping.Role.SKIP) {
+                continue;
+            }
+
+            String value = record.get(i);
+
+            if (StringUtil.isEmpty(value)) {
+                continue;
+            }
+
+            switch (role) {
+                case UID:
+                    builder.setUid(value);
+                    break;
+                case UID_AND_NAME:
+                    builder.setUid(value);
+                    builder.setName(new Name(value));
+                    break;
+                case NAME:
+                    builder.setName(new Name(value));
+                    break;
+                case PASSWORD:
+                    builder.addAttribute(OperationalAttributes.PASSWORD_NAME, new GuardedString(value.toCharArray()));
+                    break;
+                default:
+                    builder.addAttribute(projection.getName(i), createAttributeValues(value));
+            }
+        }
+
+        return builder.build();
+    }
+
+    private boolean isUniqueAndNameAttributeEqual() {
+        String uniqueAttribute = configuration.getUniqueAttribute();
+        String nameAttribute = configuration.getNameAttribute();
+
+        return uniqueAttribute == null ? nameAttribute == null : uniqueAttribute.equals(nameAttribute);
+    }
+
+    private List<String> createAttributeValues(String attributeValue) {
+        List<String> values = new ArrayList<>();
+
+        if (StringUtil.isEmpty(configuration.getMultivalueDelimiter())) {
+            values.add(attributeValue);
+        } else {
+            String[] array = attributeValue.split(configuration.getMultivalueDelimiter());
+            for (String item : array) {
+                if (StringUtil.isEmpty(item)) {
+                    continue;
+                }
+
+                values.add(item);
+            }
+        }
+
+        return values;
+    }
+
+    private Uid update(Operation operation, ObjectClass objectClass, Uid uid, Set<Attribute> attributes,
+                       OperationOptions oo) {
+
+        Util.notNull(uid, "Uid must not be null");
+
+        if ((Operation.ADD_ATTR_VALUE.equals(operation) || Operation.REMOVE_ATTR_VALUE.equals(operation))
+                && attributes.isEmpty()) {
+            return uid;
+        }
+
+        attributes = normalize(attributes);
+
+        if (journal != null) {
+            return updateInJournal(operation, uid, attributes);
+        }
+
+        if (groupCommit != null) {
+            return commitInGroup(new CsvBatch.Item(operation.batchOperation, uid, attributes));
+        }
+
+        if (writer != null) {
+            return commitByWriter(new CsvBatch.Item(operation.batchOperation, uid, attributes));
+        }
+
+        FileLock lock = Util.obtainTmpFileLock(configuration);
+        Reader reader = null;
+        Writer writer = null;
+        try {
+            if (uidIndexKey != null) {
+                Uid result = spliceUpdate(operation, uid, attributes, lock.channel());
+                if (result != null) {
+                    return result;
+                }
+            }
+
+            reader = Util.createReader(configuration);
+            writer = new BufferedWriter(Channels.newWriter(lock.channel(), configuration.getEncoding()));
+
+            boolean found = false;
+
+            CSVFormat csv = Util.createCsvFormat(configuration);
+            CSVParser parser = csv.parse(reader);
+
+            csv = Util.createCsvFormat(configuration);
+            CSVPrinter printer = csv.print(writer);
+
+            Iterator<CSVRecord> iterator = parser.iterator();
+            while (iterator.hasNext()) {
+                CSVRecord record = iterator.next();
+
+                Map<String, String> data = createRecordData(CsvRow.of(record));
+
+                String recordUidValue = data.get(configuration.getUniqueAttribute());
+                if (StringUtil.isEmpty(recordUidValue)) {
+                    continue;
+                }
+
+                if (! identifierMatches(uid.getUidValue(), recordUidValue, configuration.isIgnoreIdentifierCase())) {
+                    printer.printRecord(record);
+                    continue;
+                }
+
+                found = true;
+
+                if (!Operation.DELETE.equals(operation)) {
+                    List<Object> updated = updateObject(operation, data, attributes);
+
+                    int uidIndex = this.header.get(configuration.getUniqueAttribute()).getIndex();
+                    Object newUidValue = updated.get(uidIndex);
+                    uid = new Uid(newUidValue.toString());
+
+                    printer.printRecord(updated);
+                }
+            }
+
+            writer.close();
+            reader.close();
+
+            if (!found) {
+                throw new UnknownUidException("Account '" + uid + "' not found");
+            }
+
+            moveTmpToOrig();
+        } catch (Exception ex) {
+            handleGenericException(ex, "Error during account '" + uid + "' " + operation.name());
+        } finally {
+            Util.cleanupResources(writer, reader, lock, configuration);
+        }
+
+        return uid;
+    }
+
+    public CsvBatch createBatch() {
+        return new CsvBatch(this);
+    }
+
+    /**
+     * Changes are grouped by uid, every group is applied to its record when the record is read, groups for records
+     * which weren't found are applied at the end (create appends new record). Whole csv file is therefore read and
+     * rewritten only once for all changes. In journal mode records are found the same way as during update and
+     * all changes are appended to journal by one write.
+     */
+    List<CsvBatch.Result> executeBatch(List<CsvBatch.Item> items) {
+        if (configuration.isReadOnly()) {
+            throw new ConnectorException("Can't execute batch. Readonly set to true.");
+        }
+
+        CsvBatch.Result[] results = new CsvBatch.Result[items.size()];
+
+        // uid -> indexes of items, groups keep order of their first item
+        Map<String, List<Integer>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < items.size(); i++) {
+            CsvBatch.Item item = items.get(i);
+            try {
+                String uid = CsvBatch.Operation.CREATE.equals(item.getOperation()) ?
+                        findUidValue(normalize(item.getAttributes())) : item.getUid().getUidValue();
+
+                groups.computeIfAbsent(getBatchKey(uid), key -> new ArrayList<>()).add(i);
+            } catch (RuntimeException ex) {
+                results[i] = new CsvBatch.Result(item, null, ex);
+            }
+        }
+
+        if (groups.isEmpty()) {
+            return Arrays.asList(results);
+        }
+
+        long start = System.currentTimeMillis();
+
+        if (journal != null) {
+            executeBatchInJournal(items, groups, results);
+        } else {
+            executeBatchRewrite(items, groups, results);
+        }
+
+        LOG.ok("Batch with {0} changes of {1} records applied to {2} in {3}ms", items.size(), groups.size(),
+                configuration.getFilePath(), System.currentTimeMillis() - start);
+
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Change is written by one of concurrent threads together with changes of other threads.
+     */
+    private Uid commitInGroup(CsvBatch.Item item) {
+        CsvBatch.Result result = groupCommit.submit(this, item, configuration.getGroupCommitWindow());
+        if (!result.isSuccess()) {
+            throw result.getError();
+        }
+
+        return result.getUid();
+    }
+
+    /**
+     * Change is queued for writer thread of csv file, calling thread waits until it's written.
+     */
+    private Uid commitByWriter(CsvBatch.Item item) {
+        CsvBatch.Result result = writer.execute(this, item);
+        if (!result.isSuccess()) {
+            throw result.getError();
+        }
+
+        return result.getUid();
+    }
+
+    private String getBatchKey(String uid) {
+        return configuration.isIgnoreIdentifierCase() ? uid.toLowerCase(Locale.ROOT) : uid;
+    }
+
+    private void executeBatchRewrite(List<CsvBatch.Item> items, Map<String, List<Integer>> groups,
+                                     CsvBatch.Result[] results) {
+
+        FileLock lock = Util.obtainTmpFileLock(configuration);
+        Reader reader = null;
+        Writer writer = null;
+        try {
+            reader = Util.createReader(configuration);
+            writer = new BufferedWriter(Channels.newWriter(lock.channel(), configuration.getEncoding()));
+
+            CSVParser parser = Util.createCsvFormat(configuration).parse(reader);
+            CSVPrinter printer = Util.createCsvFormat(configuration).print(writer);
+
+            int uidColumn = getUidColumn();
+            Set<String> found = new HashSet<>();
+            boolean changed = false;
+
+            Iterator<CSVRecord> iterator = parser.iterator();
+            if (configuration.isHeaderExists() && iterator.hasNext()) {
+                printer.printRecord(iterator.next());
+            }
+
+            while (iterator.hasNext()) {
+                CSVRecord record = iterator.next();
+
+                String key = uidColumn < record.size() ? getBatchKey(record.get(uidColumn)) : null;
+                List<Integer> group = key != null ? groups.get(key) : null;
+                if (group == null) {
+                    printer.printRecord(record);
+                    continue;
+                }
+
+                // all records with the same uid are changed, the same way as by update
+                found.add(key);
+
+                List<Object> current = new ArrayList<>(Util.copyOf(record.iterator()));
+                List<Object> updated = applyBatchItems(items, group, current, results);
+                changed |= updated != current;
+
+                if (updated != null) {
+                    printer.printRecord(updated);
+                }
+            }
+
+            for (Map.Entry<String, List<Integer>> entry : groups.entrySet()) {
+                if (found.contains(entry.getKey())) {
+                    continue;
+                }
+
+                List<Object> created = applyBatchItems(items, entry.getValue(), null, results);
+                if (created != null) {
+                    printer.printRecord(created);
+                    changed = true;
+                }
+            }
+
+            writer.close();
+            reader.close();
+
+            if (changed) {
+                moveTmpToOrig();
+            }
+        } catch (Exception ex) {
+            handleGenericException(ex, "Error during batch of " + items.size() + " changes");
+        } finally {
+            Util.cleanupResources(writer, reader, lock, configuration);
+        }
+    }
+
+    private void executeBatchInJournal(List<CsvBatch.Item> items, Map<String, List<Integer>> groups,
+                                       CsvBatch.Result[] results) {
+
+        FileLock lock = Util.obtainTmpFileLock(configuration);
+        try {
+            int uidColumn = getUidColumn();
+            boolean ignoreCase = configuration.isIgnoreIdentifierCase();
+
+            List<List<String>> entries = new ArrayList<>();
+            for (Map.Entry<String, List<Integer>> entry : groups.entrySet()) {
+                List<String> record = findCurrentRecord(entry.getKey());
+
+                List<Object> current = record != null ? new ArrayList<>(record) : null;
+                List<Object> updated = applyBatchItems(items, entry.getValue(), current, results);
+                if (updated == current) {
+                    continue;
+                }
+
+                String oldUid = record != null ? record.get(uidColumn) : null;
+                String newUid = updated != null ? updated.get(uidColumn).toString() : null;
+
+                if (oldUid != null && (newUid == null || !identifierMatches(oldUid, newUid, ignoreCase))) {
+                    entries.add(Journal.delete(oldUid));
+                }
+                if (updated != null) {
+                    entries.add(Journal.upsert(newUid, toJournalValues(updated)));
+                }
+            }
+
+            if (!entries.isEmpty()) {
+                appendToJournal(entries);
+            }
+        } catch (Exception ex) {
+            handleGenericException(ex, "Error during batch of " + items.size() + " changes");
+        } finally {
+            Util.cleanupResources(null, null, lock, configuration);
         }
+    }
 
-        LOG.ok("Created delta {0}", delta);
+    /**
+     * Applies changes to record one by one, failed change doesn't modify record.
+     *
+     * @param record values of record, null if record doesn't exist
+     * @return values of record after all changes, null if it was deleted or never existed
+     */
+    private List<Object> applyBatchItems(List<CsvBatch.Item> items, List<Integer> group, List<Object> record,
+                                         CsvBatch.Result[] results) {
+
+        for (int i : group) {
+            CsvBatch.Item item = items.get(i);
+            try {
+                List<Object> updated = applyBatchItem(item, record);
+                Uid uid = updated != null ? new Uid(updated.get(getUidColumn()).toString()) : item.getUid();
+
+                record = updated;
+                results[i] = new CsvBatch.Result(item, uid, null);
+            } catch (RuntimeException ex) {
+                results[i] = new CsvBatch.Result(item, null, ex);
+            }
+        }
 
-        return handler.handle(delta);
+        return record;
     }
 
-    private void doSyncDeleted(Map<String, CSVRecord> oldData, Set<String> oldUsedOids, SyncToken newSyncToken,
-                               SyncResultsHandler handler) {
+    private List<Object> applyBatchItem(CsvBatch.Item item, List<Object> record) {
+        Set<Attribute> attributes = normalize(item.getAttributes());
 
-        for (String oldUid : oldData.keySet()) {
-            if (oldUsedOids.contains(oldUid)) {
-                continue;
+        if (CsvBatch.Operation.CREATE.equals(item.getOperation())) {
+            if (record != null) {
+                throw new AlreadyExistsException("Account already exists '" + findUidValue(attributes) + "'.");
             }
 
-            // deleted record
-            CSVRecord deleted = oldData.get(oldUid);
-            SyncDelta delta = buildSyncDelta(SyncDeltaType.DELETE, newSyncToken, deleted);
+            return createNewRecord(attributes);
+        }
 
-            LOG.ok("Created delta {0}", delta);
+        if (record == null) {
+            throw new UnknownUidException("Account '" + item.getUid() + "' not found");
+        }
 
-            if (!handler.handle(delta)) {
-                break;
-            }
+        switch (item.getOperation()) {
+            case DELETE:
+                return null;
+            case ADD_ATTRIBUTE_VALUES:
+                return attributes.isEmpty() ? record :
+                        updateObject(Operation.ADD_ATTR_VALUE, createRecordData(record), attributes);
+            case REMOVE_ATTRIBUTE_VALUES:
+                return attributes.isEmpty() ? record :
+                        updateObject(Operation.REMOVE_ATTR_VALUE, createRecordData(record), attributes);
+            default:
+                return updateObject(Operation.UPDATE, createRecordData(record), attributes);
         }
     }
 
-    private SyncDelta buildSyncDelta(SyncDeltaType type, SyncToken token, CSVRecord record) {
-        SyncDeltaBuilder builder = new SyncDeltaBuilder();
-        builder.setDeltaType(type);
-        builder.setObjectClass(ObjectClass.ACCOUNT);
-        builder.setToken(token);
+    /**
+     * Appends last state of changed record to journal, csv file isn't changed.
+     */
+    private Uid updateInJournal(Operation operation, Uid uid, Set<Attribute> attributes) {
+        FileLock lock = Util.obtainTmpFileLock(configuration);
+        try {
+            List<String> record = findCurrentRecord(uid.getUidValue());
+            if (record == null) {
+                throw new UnknownUidException("Account '" + uid + "' not found");
+            }
 
-        ConnectorObject object = createConnectorObject(record);
-        builder.setObject(object);
+            String recordUid = record.get(getUidColumn());
 
-        return builder.build();
-    }
+            List<List<String>> entries = new ArrayList<>();
+            if (Operation.DELETE.equals(operation)) {
+                entries.add(Journal.delete(recordUid));
+            } else {
+                List<String> updated = toJournalValues(updateObject(operation,
+                        createRecordData(CsvRow.of(record, 0)), attributes));
 
-    private long getTokenValue(SyncToken token) {
-        if (token == null || token.getValue() == null) {
-            return -1;
-        }
-        String object = token.getValue().toString();
-        if (!object.matches("[0-9]{13}")) {
-            return -1;
-        }
+                String newUid = updated.get(getUidColumn());
+                if (!identifierMatches(recordUid, newUid, configuration.isIgnoreIdentifierCase())) {
+                    // uid was changed, record with old uid doesn't exist anymore
+                    entries.add(Journal.delete(recordUid));
+                }
+                entries.add(Journal.upsert(newUid, updated));
 
-        return Long.parseLong(object);
-    }
+                uid = new Uid(newUid);
+            }
 
-    private String createNewSyncFile() {
-        String token = null;
-        try {
-            LOG.info("Old csv files were not found, creating token, synchronizing from \"now\".");
-            File csv = configuration.getFilePath();
-            long timestamp = csv.lastModified();
+            appendToJournal(entries);
+        } catch (Exception ex) {
+            handleGenericException(ex, "Error during account '" + uid + "' " + operation.name());
+        } finally {
+            Util.cleanupResources(null, null, lock, configuration);
+        }
 
-            File last = Util.createSyncFileName(timestamp, configuration);
-            Files.copy(configuration.getFilePath().toPath(), last.toPath());
+        return uid;
+    }
 
-            token = Long.toString(timestamp);
-        } catch (IOException ex) {
-            handleGenericException(ex, "Error during get latest sync token operation");
+    /**
+     * @return values of record with journal changes applied, null if record doesn't exist
+     */
+    private List<String> findCurrentRecord(String uid) throws IOException {
+        Journal.Snapshot snapshot = journal.getSnapshot();
+        if (snapshot.contains(uid)) {
+            return snapshot.get(uid);
         }
 
-        return token;
+        try (PinnedFile csv = PinnedFile.pin(configuration.getFilePath())) {
+            return findCurrentRecord(csv, uid);
+        }
     }
 
-    @Override
-    public SyncToken getLatestSyncToken(ObjectClass oc) {
-        String csvFileName = configuration.getFilePath().getName();
-        String[] oldCsvFiles = Util.listTokenFiles(configuration);
-
-        String token;
-        if (oldCsvFiles.length != 0) {
-            Arrays.sort(oldCsvFiles);
-            String latestCsvFile = oldCsvFiles[oldCsvFiles.length - 1];
-            token = latestCsvFile.replaceFirst(csvFileName + "\\.sync\\.", "");
+    private List<String> findCurrentRecord(PinnedFile csv, String uid) throws IOException {
+        int uidColumn = getUidColumn();
+        boolean ignoreCase = configuration.isIgnoreIdentifierCase();
 
-            return new SyncToken(token);
+        if (uidIndexKey != null) {
+            List<CSVRecord> records = findIndexedRecords(csv, uidIndexKey, configuration.getUniqueAttribute(), uid);
+            if (records != null) {
+                for (CSVRecord record : records) {
+                    if (uidColumn < record.size() && identifierMatches(uid, record.get(uidColumn), ignoreCase)) {
+                        return Util.copyOf(record.iterator());
+                    }
+                }
+                return null;
+            }
         }
 
-        token = createNewSyncFile();
+        try (CsvRowReader reader = Util.createRowReader(csv.openChannel(), configuration)) {
 
-        return new SyncToken(token);
-    }
+            CsvRow record;
+            while ((record = reader.next()) != null) {
+                if (skipRecord(record) || uidColumn >= record.size()) {
+                    continue;
+                }
 
-    @Override
-    public void test() {
-        configuration.validate();
+                if (identifierMatches(uid, record.get(uidColumn), ignoreCase)) {
+                    return CsvRow.values(record);
+                }
+            }
+        }
 
-        initHeader(configuration.getFilePath());
+        return null;
     }
 
-    @Override
-    public Uid addAttributeValues(ObjectClass oc, Uid uid, Set<Attribute> set, OperationOptions oo) {
-        if (configuration.isReadOnly()) {
-            throw new ConnectorException("Can't add attribute values. Readonly set to true.");
+    private List<String> toJournalValues(List<Object> record) {
+        List<String> values = new ArrayList<>(record.size());
+        for (Object value : record) {
+            values.add(value != null ? value.toString() : "");
         }
 
-        return update(Operation.ADD_ATTR_VALUE, oc, uid, set, oo);
+        return values;
     }
 
-    @Override
-    public Uid removeAttributeValues(ObjectClass oc, Uid uid, Set<Attribute> set, OperationOptions oo) {
-        if (configuration.isReadOnly()) {
-            throw new ConnectorException("Can't add attribute values. Readonly set to true.");
-        }
+    /**
+     * Journal is compacted when it contains too many changes or when its first change is too old.
+     */
+    private void appendToJournal(List<List<String>> entries) throws IOException {
+        Journal.Snapshot snapshot = journal.append(entries);
 
-        return update(Operation.REMOVE_ATTR_VALUE, oc, uid, set, oo);
+        long delay = snapshot.getVersion() >= configuration.getJournalMaxEntries() ?
+                0 : configuration.getJournalMaxAge();
+        journal.scheduleCompaction(COMPACTOR, this::compactJournalInBackground, delay);
     }
 
-    @Override
-    public Uid update(ObjectClass oc, Uid uid, Set<Attribute> set, OperationOptions oo) {
-        if (configuration.isReadOnly()) {
-            throw new ConnectorException("Can't add attribute values. Readonly set to true.");
+    private void compactJournalInBackground() {
+        try {
+            compactJournal();
+        } catch (RuntimeException ex) {
+            LOG.error(ex, "Couldn't compact journal {0}, next attempt in {1}ms", journal.getFile(),
+                    configuration.getJournalMaxAge());
+            journal.scheduleCompaction(COMPACTOR, this::compactJournalInBackground, configuration.getJournalMaxAge());
         }
-
-        return update(Operation.UPDATE, oc, uid, set, oo);
     }
 
-    private boolean isRecordEmpty(CSVRecord record) {
-        if (!configuration.isIgnoreEmptyLines()) {
-            return false;
+    /**
+     * Merges journal changes to csv file. Csv file is rewritten through tmp file, so it's valid after every
+     * compaction, journal is deleted only after csv file was replaced. If compaction fails between these steps,
+     * journal is applied again, which doesn't change records.
+     */
+    private void compactJournal() {
+        try {
+            if (getJournalSnapshot() == null) {
+                return;
+            }
+        } catch (IOException ex) {
+            handleGenericException(ex, "Error during journal compaction");
         }
 
-        for (int i = 0; i < record.size(); i++) {
-            String value = record.get(i);
-            if (StringUtil.isNotBlank(value)) {
-                return false;
-            }
+        if (writeBehind) {
+            flushWriteBehind();
+            return;
         }
 
-        return true;
-    }
+        FileLock lock = Util.obtainTmpFileLock(configuration);
+        Writer writer = null;
+        try {
+            // journal could be compacted while lock was obtained
+            Journal.Snapshot snapshot = journal.getSnapshot();
+            if (snapshot.isEmpty()) {
+                return;
+            }
 
-    private Map<Integer, String> reverseHeaderMap() {
-        Map<Integer, String> reversed = new HashMap<>();
-        this.header.forEach((key, value) -> {
+            long start = System.currentTimeMillis();
 
-            reversed.put(value.getIndex(), key);
-        });
+            writer = new BufferedWriter(Channels.newWriter(lock.channel(), configuration.getEncoding()));
+            CSVPrinter printer = Util.createCsvFormat(configuration).print(writer);
 
-        return reversed;
-    }
+            try (PinnedFile csv = PinnedFile.pin(configuration.getFilePath());
+                 CsvRowReader reader = createRowReader(csv, snapshot)) {
+                CsvRow record;
+                while ((record = reader.next()) != null) {
+                    printer.printRecord(CsvRow.values(record));
+                }
+            }
 
-    private ConnectorObject createConnectorObject(CSVRecord record) {
-        ConnectorObjectBuilder builder = new ConnectorObjectBuilder();
+            writer.close();
 
-        Map<Integer, String> header = reverseHeaderMap();
+            moveTmpToOrig();
+            journal.clear();
 
-        for (int i = 0; i < record.size(); i++) {
-            String name = header.get(i);
-            String value = record.get(i);
+            LOG.ok("Journal with {0} changes merged to {1} in {2}ms", snapshot.getVersion(),
+                    configuration.getFilePath(), System.currentTimeMillis() - start);
+        } catch (Exception ex) {
+            handleGenericException(ex, "Error during journal compaction");
+        } finally {
+            Util.cleanupResources(writer, null, lock, configuration);
+        }
+    }
 
-            if (StringUtil.isEmpty(value)) {
-                continue;
+    /**
+     * Merged csv file is written to separate file without tmp file lock, so writers append changes to journal while
+     * flush runs. Lock is held only while merged file replaces csv file, changes appended in the meantime stay
+     * in journal. If csv file was replaced by other writer in the meantime, flush is repeated.
+     */
+    private void flushWriteBehind() {
+        try {
+            Journal.Snapshot snapshot;
+            while ((snapshot = getJournalSnapshot()) != null) {
+                if (flushWriteBehind(snapshot)) {
+                    break;
+                }
             }
+        } catch (Exception ex) {
+            handleGenericException(ex, "Error during write-behind flush");
+        }
+    }
 
-            if (name.equals(configuration.getUniqueAttribute())) {
-                builder.setUid(value);
-
-                if (!isUniqueAndNameAttributeEqual()) {
-                    continue;
+    /**
+     * @return false if csv file was changed during flush
+     */
+    private boolean flushWriteBehind(Journal.Snapshot snapshot) throws IOException {
+        long start = System.currentTimeMillis();
+
+        File orig = configuration.getFilePath();
+        File merged = File.createTempFile(orig.getName() + ".", ".flush", configuration.getTmpFolder());
+        try (PinnedFile csv = PinnedFile.pin(orig)) {
+            try (Writer writer = Files.newBufferedWriter(merged.toPath(), Charset.forName(configuration.getEncoding()));
+                 CsvRowReader reader = createRowReader(csv, snapshot)) {
+
+                CSVPrinter printer = Util.createCsvFormat(configuration).print(writer);
+                CsvRow record;
+                while ((record = reader.next()) != null) {
+                    printer.printRecord(CsvRow.values(record));
                 }
             }
 
-            if (name.equals(configuration.getNameAttribute())) {
-                builder.setName(new Name(value));
-                continue;
-            }
+            FileLock lock = Util.obtainTmpFileLock(configuration);
+            try {
+                if (!csv.isCurrent()) {
+                    LOG.ok("Csv file {0} was changed during write-behind flush, flush is repeated", orig);
+                    return false;
+                }
 
-            if (name.equals(configuration.getPasswordAttribute())) {
-                builder.addAttribute(OperationalAttributes.PASSWORD_NAME, new GuardedString(value.toCharArray()));
-                continue;
-            }
+                Util.replaceFile(merged, orig, durability);
+                PinnedFile.publish(orig);
 
-            builder.addAttribute(name, createAttributeValues(value));
+                journal.remove(snapshot);
+            } finally {
+                Util.cleanupResources(null, null, lock, configuration);
+            }
+        } finally {
+            Files.deleteIfExists(merged.toPath());
         }
 
-        return builder.build();
+        LOG.ok("Write-behind flush of {0} changes to {1} finished in {2}ms", snapshot.getVersion(), orig,
+                System.currentTimeMillis() - start);
+
+        return true;
     }
 
-    private boolean isUniqueAndNameAttributeEqual() {
-        String uniqueAttribute = configuration.getUniqueAttribute();
-        String nameAttribute = configuration.getNameAttribute();
+    /**
+     * Rewrites only records found through uid index, all other bytes are copied from csv file to tmp file
+     * without parsing them. Unlike full rewrite, records without unique attribute value are kept in file.
+     *
+     * @return null if index doesn't match csv file and whole file has to be rewritten
+     */
+    private Uid spliceUpdate(Operation operation, Uid uid, Set<Attribute> attributes, FileChannel tmp)
+            throws IOException {
+
+        String column = configuration.getUniqueAttribute();
+        int columnIndex = header.get(column).getIndex();
+
+        RecordIndex index = getIndex(uidIndexKey, column);
+        Charset charset = Charset.forName(configuration.getEncoding());
+        String separator = configuration.getRecordSeparator();
+
+        File csv = configuration.getFilePath();
+        FileVersion before = FileVersion.of(csv);
+        if (!before.equals(index.getVersion())) {
+            return null;
+        }
 
-        return uniqueAttribute == null ? nameAttribute == null : uniqueAttribute.equals(nameAttribute);
-    }
+        FileSplice splice = new FileSplice();
+        Map<Long, List<Object>> updatedRecords = new HashMap<>();
+        Uid result = uid;
+
+        try (FileChannel channel = FileChannel.open(csv.toPath(), StandardOpenOption.READ)) {
+            for (RecordIndex.Location location : index.find(uid.getUidValue())) {
+                CSVRecord record = readRecord(channel, location);
+                if (record == null || isRecordEmpty(record) || columnIndex >= record.size()
+                        || !index.keyMatches(uid.getUidValue(), record.get(columnIndex))) {
+                    LOG.ok("Index for column {0} in {1} is out of date", column, csv);
+                    INDEXES.remove(uidIndexKey, index);
+                    return null;
+                }
 
-    private List<String> createAttributeValues(String attributeValue) {
-        List<String> values = new ArrayList<>();
+                if (!identifierMatches(uid.getUidValue(), record.get(columnIndex),
+                        configuration.isIgnoreIdentifierCase())) {
+                    continue;
+                }
 
-        if (StringUtil.isEmpty(configuration.getMultivalueDelimiter())) {
-            values.add(attributeValue);
-        } else {
-            String[] array = attributeValue.split(configuration.getMultivalueDelimiter());
-            for (String item : array) {
-                if (StringUtil.isEmpty(item)) {
+                if (Operation.DELETE.equals(operation)) {
+                    splice.remove(location.getOffset(),
+                            location.getLength() + getLineTerminatorLength(channel, location));
                     continue;
                 }
 
-                values.add(item);
-            }
-        }
+                List<Object> updated = updateObject(operation, createRecordData(CsvRow.of(record)), attributes);
+                result = new Uid(updated.get(columnIndex).toString());
 
-        return values;
-    }
+                String formatted = formatRecord(updated);
+                if (formatted.endsWith(separator)) {
+                    formatted = formatted.substring(0, formatted.length() - separator.length());
+                }
 
-    private Uid update(Operation operation, ObjectClass objectClass, Uid uid, Set<Attribute> attributes,
-                       OperationOptions oo) {
+                splice.replace(location.getOffset(), location.getLength(), formatted.getBytes(charset));
+                updatedRecords.put(location.getOffset(), updated);
+            }
 
-        Util.notNull(uid, "Uid must not be null");
+            if (splice.isEmpty()) {
+                throw new UnknownUidException("Account '" + uid + "' not found");
+            }
 
-        if ((Operation.ADD_ATTR_VALUE.equals(operation) || Operation.REMOVE_ATTR_VALUE.equals(operation))
-                && attributes.isEmpty()) {
-            return uid;
+            splice.writeTo(channel, tmp);
         }
 
-        Map<Integer, String> header = reverseHeaderMap();
-
-        attributes = normalize(attributes);
+        moveTmpToOrig();
 
-        FileLock lock = Util.obtainTmpFileLock(configuration);
-        Reader reader = null;
-        Writer writer = null;
-        try {
-            reader = Util.createReader(configuration);
-            writer = new BufferedWriter(Channels.newWriter(lock.channel(), configuration.getEncoding()));
+        FileVersion after = FileVersion.of(csv);
+        spliceIndex(uidIndexKey, column, splice, updatedRecords, before, after);
+        if (nameIndexKey != null && !nameIndexKey.equals(uidIndexKey)) {
+            spliceIndex(nameIndexKey, configuration.getNameAttribute(), splice, updatedRecords, before, after);
+        }
 
-            boolean found = false;
+        return result;
+    }
 
-            CSVFormat csv = Util.createCsvFormat(configuration);
-            CSVParser parser = csv.parse(reader);
+    private int getLineTerminatorLength(FileChannel channel, RecordIndex.Location location) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(2);
+        channel.read(buffer, location.getOffset() + location.getLength());
 
-            csv = Util.createCsvFormat(configuration);
-            CSVPrinter printer = csv.print(writer);
+        if (buffer.position() > 0 && buffer.get(0) == '\r') {
+            return buffer.position() > 1 && buffer.get(1) == '\n' ? 2 : 1;
+        }
 
-            Iterator<CSVRecord> iterator = parser.iterator();
-            while (iterator.hasNext()) {
-                CSVRecord record = iterator.next();
+        return buffer.position() > 0 && buffer.get(0) == '\n' ? 1 : 0;
+    }
 
-                Map<String, String> data = new HashMap<>();
-                for (int i = 0; i < record.size(); i++) {
-                    data.put(header.get(i), record.get(i));
-                }
+    /**
+     * Moves index locations after splice was written to csv file and adds updated records. If index wasn't up to
+     * date before splice, it's dropped and it will be rebuilt during next use.
+     */
+    private void spliceIndex(String key, String column, FileSplice splice, Map<Long, List<Object>> updatedRecords,
+                             FileVersion before, FileVersion after) {
 
-                String recordUidValue = data.get(configuration.getUniqueAttribute());
-                if (StringUtil.isEmpty(recordUidValue)) {
-                    continue;
-                }
+        INDEXES.computeIfPresent(key, (k, index) -> {
 
-                if (! uidMatches(uid.getUidValue(), recordUidValue, configuration.isIgnoreIdentifierCase())) {
-                    printer.printRecord(record);
-                    continue;
-                }
+            if (!before.equals(index.getVersion())) {
+                return null;
+            }
 
-                found = true;
+            RecordIndex spliced = index.splice(splice, after);
+            // records are added in file order, so duplicate values are kept in order at least for updated records
+            new TreeMap<>(updatedRecords).forEach((offset, record) -> {
 
-                if (!Operation.DELETE.equals(operation)) {
-                    List<Object> updated = updateObject(operation, data, attributes);
+                String value = getIndexValue(record, column);
+                if (StringUtil.isEmpty(value)) {
+                    return;
+                }
 
-                    int uidIndex = this.header.get(configuration.getUniqueAttribute()).getIndex();
-                    Object newUidValue = updated.get(uidIndex);
-                    uid = new Uid(newUidValue.toString());
+                int length = splice.getReplacementLength(offset);
+                spliced.add(value, new RecordIndex.Location(splice.map(offset), length));
+            });
 
-                    printer.printRecord(updated);
-                }
-            }
+            return spliced;
+        });
+    }
 
-            writer.close();
-            reader.close();
+    private Map<String, String> createRecordData(CsvRow record) {
+        Map<String, String> data = new HashMap<>();
+        for (int i = 0; i < record.size() && i < mapping.size(); i++) {
+            data.put(mapping.getName(i), record.get(i));
+        }
 
-            if (!found) {
-                throw new UnknownUidException("Account '" + uid + "' not found");
-            }
+        return data;
+    }
 
-            moveTmpToOrig();
-        } catch (Exception ex) {
-            handleGenericException(ex, "Error during account '" + uid + "' " + operation.name());
-        } finally {
-            Util.cleanupResources(writer, reader, lock, configuration);
+    private Map<String, String> createRecordData(List<Object> record) {
+        Map<String, String> data = new HashMap<>();
+        for (int i = 0; i < record.size() && i < mapping.size(); i++) {
+            Object value = record.get(i);
+            data.put(mapping.getName(i), value != null ? value.toString() : null);
         }
 
-        return uid;
+        return data;
     }
 
     private Set<Attribute> normalize(Set<Attribute> attributes) {
@@ -1,6 +1,10 @@
 package com.evolveum.polygon.connector.csv;
 
+import com.evolveum.polygon.connector.csv.util.Durability;
+import com.evolveum.polygon.connector.csv.util.ReadMode;
+import com.evolveum.polygon.connector.csv.util.SyncMode;
 import com.evolveum.polygon.connector.csv.util.Util;
+import com.evolveum.polygon.connector.csv.util.WriteMode;
 import org.apache.commons.csv.QuoteMode;
 import org.identityconnectors.common.StringUtil;
 import org.identityconnectors.common.logging.Log;
@@ -9,6 +13,7 @@ import org.identityconnectors.framework.common.objects.ObjectClass;
 
 import java.io.File;
 import java.nio.charset.Charset;
+import java.util.Arrays;
 import java.util.Map;
 
 /**
@@ -50,6 +55,36 @@ public class ObjectClassHandlerConfiguration {
 
 	private boolean ignoreIdentifierCase = false;
 
+    private boolean uidIndex = false;
+
+    private boolean nameIndex = false;
+
+    private boolean appendOnCreate = false;
+
+    private String syncMode = SyncMode.COPY.name();
+
+    private int sortBufferSize = 10000;
+
+    private boolean byteTokenizer = false;
+
+    private String readMode = ReadMode.STREAM.name();
+
+    private int scanThreads = 1;
+
+    private boolean preserveScanOrder = true;
+
+    private String writeMode = WriteMode.REWRITE.name();
+
+    private int journalMaxEntries = 1000;
+
+    private int journalMaxAge = 10000;
+
+    private int groupCommitWindow = 5;
+
+    private String durability = Durability.NONE.name();
+
+    private boolean persistentIndex = false;
+
     public ObjectClassHandlerConfiguration() {
         this(ObjectClass.ACCOUNT, null);
     }
@@ -83,6 +118,29 @@ public class ObjectClassHandlerConfiguration {
         setReadOnly(Util.getSafeValue(values, "readOnly", false, Boolean.class));
         
         setIgnoreIdentifierCase(Util.getSafeValue(values, "ignoreIdentifierCase", false, Boolean.class));
+
+        setUidIndex(Util.getSafeValue(values, "uidIndex", false, Boolean.class));
+        setNameIndex(Util.getSafeValue(values, "nameIndex", false, Boolean.class));
+
+        setAppendOnCreate(Util.getSafeValue(values, "appendOnCreate", false, Boolean.class));
+
+        setSyncMode(Util.getSafeValue(values, "syncMode", SyncMode.COPY.name(), String.class));
+        setSortBufferSize(Util.getSafeValue(values, "sortBufferSize", 10000, Integer.class));
+
+        setByteTokenizer(Util.getSafeValue(values, "byteTokenizer", false, Boolean.class));
+        setReadMode(Util.getSafeValue(values, "readMode", ReadMode.STREAM.name(), String.class));
+
+        setScanThreads(Util.getSafeValue(values, "scanThreads", 1, Integer.class));
+        setPreserveScanOrder(Util.getSafeValue(values, "preserveScanOrder", true, Boolean.class));
+
+        setWriteMode(Util.getSafeValue(values, "writeMode", WriteMode.REWRITE.name(), String.class));
+        setJournalMaxEntries(Util.getSafeValue(values, "journalMaxEntries", 1000, Integer.class));
+        setJournalMaxAge(Util.getSafeValue(values, "journalMaxAge", 10000, Integer.class));
+        setGroupCommitWindow(Util.getSafeValue(values, "groupCommitWindow", 5, Integer.class));
+
+        setDurability(Util.getSafeValue(values, "durability", Durability.NONE.name(), String.class));
+
+        setPersistentIndex(Util.getSafeValue(values, "persistentIndex", false, Boolean.class));
     }
 
     public void recompute() {
@@ -271,6 +329,126 @@ public class ObjectClassHandlerConfiguration {
 		this.ignoreIdentifierCase = ignoreIdentifierCase;
 	}
 
+    public boolean isUidIndex() {
+        return uidIndex;
+    }
+
+    public void setUidIndex(boolean uidIndex) {
+        this.uidIndex = uidIndex;
+    }
+
+    public boolean isNameIndex() {
+        return nameIndex;
+    }
+
+    public void setNameIndex(boolean nameIndex) {
+        this.nameIndex = nameIndex;
+    }
+
+    public boolean isAppendOnCreate() {
+        return appendOnCreate;
+    }
+
+    public void setAppendOnCreate(boolean appendOnCreate) {
+        this.appendOnCreate = appendOnCreate;
+    }
+
+    public String getSyncMode() {
+        return syncMode;
+    }
+
+    public void setSyncMode(String syncMode) {
+        this.syncMode = syncMode;
+    }
+
+    public int getSortBufferSize() {
+        return sortBufferSize;
+    }
+
+    public void setSortBufferSize(int sortBufferSize) {
+        this.sortBufferSize = sortBufferSize;
+    }
+
+    public boolean isByteTokenizer() {
+        return byteTokenizer;
+    }
+
+    public void setByteTokenizer(boolean byteTokenizer) {
+        this.byteTokenizer = byteTokenizer;
+    }
+
+    public String getReadMode() {
+        return readMode;
+    }
+
+    public void setReadMode(String readMode) {
+        this.readMode = readMode;
+    }
+
+    public int getScanThreads() {
+        return scanThreads;
+    }
+
+    public void setScanThreads(int scanThreads) {
+        this.scanThreads = scanThreads;
+    }
+
+    public boolean isPreserveScanOrder() {
+        return preserveScanOrder;
+    }
+
+    public void setPreserveScanOrder(boolean preserveScanOrder) {
+        this.preserveScanOrder = preserveScanOrder;
+    }
+
+    public String getWriteMode() {
+        return writeMode;
+    }
+
+    public void setWriteMode(String writeMode) {
+        this.writeMode = writeMode;
+    }
+
+    public int getJournalMaxEntries() {
+        return journalMaxEntries;
+    }
+
+    public void setJournalMaxEntries(int journalMaxEntries) {
+        this.journalMaxEntries = journalMaxEntries;
+    }
+
+    public int getJournalMaxAge() {
+        return journalMaxAge;
+    }
+
+    public void setJournalMaxAge(int journalMaxAge) {
+        this.journalMaxAge = journalMaxAge;
+    }
+
+    public int getGroupCommitWindow() {
+        return groupCommitWindow;
+    }
+
+    public void setGroupCommitWindow(int groupCommitWindow) {
+        this.groupCommitWindow = groupCommitWindow;
+    }
+
+    public String getDurability() {
+        return durability;
+    }
+
+    public void setDurability(String durability) {
+        this.durability = durability;
+    }
+
+    public boolean isPersistentIndex() {
+        return persistentIndex;
+    }
+
+    public void setPersistentIndex(boolean persistentIndex) {
+        this.persistentIndex = persistentIndex;
+    }
+
     public void validate() {
         LOG.ok("Validating configuration for {0}", objectClass);
 
@@ -309,6 +487,58 @@ public class ObjectClassHandlerConfiguration {
 
         Util.notEmpty(recordSeparator, "Record separator is not defined");
 
+        Util.notEmpty(syncMode, "Sync mode is not defined");
+        try {
+            SyncMode.valueOf(syncMode.toUpperCase());
+        } catch (IllegalArgumentException ex) {
+            throw new ConfigurationException("Sync mode '" + syncMode + "' is not supported, supported values: "
+                    + Arrays.toString(SyncMode.values()));
+        }
+
+        if (sortBufferSize <= 0) {
+            throw new ConfigurationException("Sort buffer size must be greater than zero");
+        }
+
+        Util.notEmpty(readMode, "Read mode is not defined");
+        try {
+            ReadMode.valueOf(readMode.toUpperCase());
+        } catch (IllegalArgumentException ex) {
+            throw new ConfigurationException("Read mode '" + readMode + "' is not supported, supported values: "
+                    + Arrays.toString(ReadMode.values()));
+        }
+
+        if (scanThreads <= 0) {
+            throw new ConfigurationException("Number of scan threads must be greater than zero");
+        }
+
+        Util.notEmpty(writeMode, "Write mode is not defined");
+        try {
+            WriteMode.valueOf(writeMode.toUpperCase());
+        } catch (IllegalArgumentException ex) {
+            throw new ConfigurationException("Write mode '" + writeMode + "' is not supported, supported values: "
+                    + Arrays.toString(WriteMode.values()));
+        }
+
+        if (journalMaxEntries <= 0) {
+            throw new ConfigurationException("Journal max entries must be greater than zero");
+        }
+
+        if (journalMaxAge <= 0) {
+            throw new ConfigurationException("Journal max age must be greater than zero");
+        }
+
+        if (groupCommitWindow < 0) {
+            throw new ConfigurationException("Group commit window must not be negative");
+        }
+
+        Util.notEmpty(durability, "Durability is not defined");
+        try {
+            Durability.valueOf(durability.toUpperCase());
+        } catch (IllegalArgumentException ex) {
+            throw new ConfigurationException("Durability '" + durability + "' is not supported, supported values: "
+                    + Arrays.toString(Durability.values()));
+        }
+
         validateAttributeNames();
     }
 
@@ -0,0 +1,158 @@
+package com.evolveum.polygon.connector.csv;
+
+import org.identityconnectors.common.logging.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Single writer of one csv file. Callers only put changes to lock-free queue and wait for future, dedicated thread
+ * takes all changes which are queued and applies them as one batch, so changes submitted by more threads are
+ * written back to back without every thread competing for tmp file lock.
+ * <p>
+ * Changes of different handlers (e.g. connector instances with different configuration of the same file) are
+ * applied by handler which submitted them, consecutive changes of the same handler form one batch.
+ * <p>
+ * Thread ends when no change was submitted for {@link #IDLE_TIMEOUT} and it's started again by next change,
+ * so writer of file which isn't used anymore (e.g. after connector was disposed) doesn't keep thread and
+ * handlers alive.
+ *
+ * @author Viliam Repan (lazyman)
+ */
+class WriterThread {
+
+    private static final Log LOG = Log.getLog(WriterThread.class);
+
+    private static final long IDLE_TIMEOUT = TimeUnit.SECONDS.toNanos(60);
+
+    private static class Request {
+
+        private ObjectClassHandler handler;
+        private CsvBatch.Item item;
+
+        private CompletableFuture<CsvBatch.Result> result = new CompletableFuture<>();
+
+        private Request(ObjectClassHandler handler, CsvBatch.Item item) {
+            this.handler = handler;
+            this.item = item;
+        }
+    }
+
+    private Queue<Request> queue = new ConcurrentLinkedQueue<>();
+
+    private String name;
+
+    // true while thread is running, only one thread runs at a time
+    private AtomicBoolean running = new AtomicBoolean();
+
+    private volatile Thread thread;
+
+    WriterThread(String name) {
+        this.name = "csv-writer-" + name;
+    }
+
+    /**
+     * @return future completed when change is written
+     */
+    CompletableFuture<CsvBatch.Result> submit(ObjectClassHandler handler, CsvBatch.Item item) {
+        Request request = new Request(handler, item);
+        queue.offer(request);
+
+        if (running.compareAndSet(false, true)) {
+            start();
+        } else {
+            // if writer isn't parked, permit makes its next park return immediately
+            LockSupport.unpark(thread);
+        }
+
+        return request.result;
+    }
+
+    /**
+     * Blocks until change is written.
+     */
+    CsvBatch.Result execute(ObjectClassHandler handler, CsvBatch.Item item) {
+        try {
+            return submit(handler, item).join();
+        } catch (CompletionException ex) {
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+
+            throw ex;
+        }
+    }
+
+    private void start() {
+        Thread thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        // thread doesn't keep class loader of thread which submitted first change
+        thread.setContextClassLoader(null);
+
+        this.thread = thread;
+        thread.start();
+    }
+
+    private void run() {
+        List<Request> batch = new ArrayList<>();
+        long idleSince = System.nanoTime();
+        while (true) {
+            Request request = queue.poll();
+            if (request == null) {
+                if (System.nanoTime() - idleSince < IDLE_TIMEOUT) {
+                    LockSupport.parkNanos(this, IDLE_TIMEOUT);
+                    continue;
+                }
+
+                running.set(false);
+                // change submitted before running flag was cleared would be left in queue
+                if (queue.isEmpty() || !running.compareAndSet(false, true)) {
+                    LOG.ok("Writer thread {0} stopped, it was idle", name);
+                    return;
+                }
+
+                idleSince = System.nanoTime();
+                continue;
+            }
+
+            // drain consecutive changes of the same handler
+            batch.add(request);
+            while ((request = queue.peek()) != null && request.handler == batch.get(0).handler) {
+                batch.add(queue.poll());
+            }
+
+            writeBatch(batch);
+            batch.clear();
+
+            idleSince = System.nanoTime();
+        }
+    }
+
+    private void writeBatch(List<Request> batch) {
+        try {
+            List<CsvBatch.Item> items = new ArrayList<>(batch.size());
+            batch.forEach(request -> items.add(request.item));
+
+            List<CsvBatch.Result> results = batch.get(0).handler.executeBatch(items);
+
+            LOG.ok("Writer thread {0} applied {1} changes", name, batch.size());
+
+            for (int i = 0; i < batch.size(); i++) {
+                batch.get(i).result.complete(results.get(i));
+            }
+        } catch (RuntimeException ex) {
+            batch.forEach(request -> request.result.completeExceptionally(ex));
+        } catch (Error ex) {
+            // writer must stay alive, otherwise all next changes would wait forever
+            LOG.error(ex, "Writer thread {0} couldn't apply {1} changes", name, batch.size());
+            batch.forEach(request -> request.result.completeExceptionally(ex));
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.evolveum.polygon.connector.csv.util;
+
+import org.apache.commons.csv.CSVRecord;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Values of one csv record. Row returned by {@link CsvRowReader} is valid only until next row is read.
+ *
+ * @author Viliam Repan (lazyman)
+ */
+public interface CsvRow {
+
+    int size();
+
+    String get(int index);
+
+    /**
+     * @return number of record, first record has number 1
+     */
+    long getRecordNumber();
+
+    static CsvRow of(CSVRecord record) {
+        return new CsvRow() {
+
+            @Override
+            public int size() {
+                return record.size();
+            }
+
+            @Override
+            public String get(int index) {
+                return record.get(index);
+            }
+
+            @Override
+            public long getRecordNumber() {
+                return record.getRecordNumber();
+            }
+        };
+    }
+
+    /**
+     * @return row which stays valid after next row is read
+     */
+    static CsvRow copyOf(CsvRow row) {
+        return of(values(row), row.getRecordNumber());
+    }
+
+    static CsvRow of(List<String> values, long recordNumber) {
+        return new CsvRow() {
+
+            @Override
+            public int size() {
+                return values.size();
+            }
+
+            @Override
+            public String get(int index) {
+                return values.get(index);
+            }
+
+            @Override
+            public long getRecordNumber() {
+                return recordNumber;
+            }
+        };
+    }
+
+    static List<String> values(CsvRow row) {
+        List<String> values = new ArrayList<>(row.size());
+        for (int i = 0; i < row.size(); i++) {
+            values.add(row.get(i));
+        }
+
+        return values;
+    }
+}
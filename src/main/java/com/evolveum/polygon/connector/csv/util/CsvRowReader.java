@@ -0,0 +1,40 @@
+package com.evolveum.polygon.connector.csv.util;
+
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Iterator;
+
+/**
+ * Reads csv records one by one, see {@link Util#createRowReader(java.io.File,
+ * com.evolveum.polygon.connector.csv.ObjectClassHandlerConfiguration)}.
+ *
+ * @author Viliam Repan (lazyman)
+ */
+public interface CsvRowReader extends Closeable {
+
+    /**
+     * @return next row or null if there are no more records
+     */
+    CsvRow next() throws IOException;
+
+    static CsvRowReader of(CSVParser parser, Reader reader) {
+        Iterator<CSVRecord> iterator = parser.iterator();
+
+        return new CsvRowReader() {
+
+            @Override
+            public CsvRow next() {
+                return iterator.hasNext() ? CsvRow.of(iterator.next()) : null;
+            }
+
+            @Override
+            public void close() throws IOException {
+                reader.close();
+            }
+        };
+    }
+}
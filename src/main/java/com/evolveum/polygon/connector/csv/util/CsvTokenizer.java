@@ -0,0 +1,248 @@
+package com.evolveum.polygon.connector.csv.util;
+
+import com.evolveum.polygon.connector.csv.ObjectClassHandlerConfiguration;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Reads csv records directly from file bytes. Record and field boundaries are found by {@link RecordScanner},
+ * field values are decoded only when they're requested, so no record object or value array is created for
+ * records which are skipped. Values are handled the same way as commons-csv parser created by
+ * {@link Util#createCsvFormat(ObjectClassHandlerConfiguration)} handles them.
+ * <p>
+ * Tokenizer is row for its current record, row is changed by next call to {@link #next()}.
+ *
+ * @author Viliam Repan (lazyman)
+ */
+public class CsvTokenizer implements CsvRowReader, CsvRow {
+
+    private RecordScanner scanner;
+    private Charset charset;
+
+    private int delimiter;
+    private int quote;
+    private int escape;
+    private int commentMarker;
+    private boolean ignoreSurroundingSpaces;
+    private boolean trim;
+    private boolean trailingDelimiter;
+
+    // size of current record, computed lazily because of trailing delimiter
+    private int size = -1;
+
+    private byte[] decoded = new byte[256];
+
+    public CsvTokenizer(FileChannel channel, ObjectClassHandlerConfiguration configuration) {
+        this(channel, 0, Long.MAX_VALUE, 0, configuration);
+    }
+
+    /**
+     * Reads only part of file, see {@link RecordScanner#RecordScanner(FileChannel, long, long, long,
+     * ObjectClassHandlerConfiguration)}.
+     */
+    public CsvTokenizer(FileChannel channel, long start, long end, long recordNumber,
+                        ObjectClassHandlerConfiguration configuration) {
+        this.scanner = new RecordScanner(channel, start, end, recordNumber, configuration);
+        this.charset = Charset.forName(configuration.getEncoding());
+
+        this.delimiter = toByte(configuration.getFieldDelimiter());
+        this.quote = toByte(configuration.getQuote());
+        this.escape = toByte(configuration.getEscape());
+        this.commentMarker = toByte(configuration.getCommentMarker());
+        this.ignoreSurroundingSpaces = configuration.isIgnoreSurroundingSpaces();
+        this.trim = configuration.isTrim();
+        this.trailingDelimiter = configuration.isTrailingDelimiter();
+    }
+
+    private static int toByte(String value) {
+        Character c = Util.toCharacter(value);
+        return c != null ? c : -1;
+    }
+
+    @Override
+    public CsvRow next() throws IOException {
+        size = -1;
+
+        return scanner.next() ? this : null;
+    }
+
+    /**
+     * @return offset of current record start in file
+     */
+    public long getRecordOffset() {
+        return scanner.getRecordOffset();
+    }
+
+    /**
+     * @return length of current record in bytes, without line terminator
+     */
+    public int getRecordLength() {
+        return scanner.getRecordLength();
+    }
+
+    /**
+     * @return offset of record after current record in file
+     */
+    public long getNextOffset() {
+        return scanner.getNextOffset();
+    }
+
+    @Override
+    public long getRecordNumber() {
+        return scanner.getRecordNumber();
+    }
+
+    @Override
+    public int size() {
+        if (size == -1) {
+            size = scanner.getFieldCount();
+            // commons-csv doesn't add empty value after trailing delimiter
+            if (trailingDelimiter && size > 0 && get(size - 1).isEmpty()) {
+                size--;
+            }
+        }
+
+        return size;
+    }
+
+    @Override
+    public String get(int index) {
+        if (index < 0 || index >= scanner.getFieldCount()) {
+            throw new ArrayIndexOutOfBoundsException(index);
+        }
+
+        String value;
+        if (scanner.isFieldQuoted(index)) {
+            value = decodeQuoted(index);
+        } else if (scanner.isFieldEscaped(index)) {
+            value = decodeEscaped(index);
+        } else {
+            int start = scanner.getFieldStart(index);
+            int end = scanner.getFieldEnd(index);
+            if (ignoreSurroundingSpaces) {
+                while (end > start && RecordScanner.isWhitespace(scanner.getByte(end - 1))) {
+                    end--;
+                }
+            }
+
+            value = scanner.decode(start, end, charset);
+        }
+
+        return trim ? value.trim() : value;
+    }
+
+    private String decodeQuoted(int index) {
+        int end = scanner.getFieldEnd(index);
+        // first byte is quote
+        int i = scanner.getFieldStart(index) + 1;
+
+        int length = 0;
+        ensureCapacity(end - i);
+
+        while (i < end) {
+            int c = scanner.getByte(i);
+            if (c == escape && i + 1 < end) {
+                length = appendEscaped(length, scanner.getByte(i + 1));
+                i += 2;
+            } else if (c == quote) {
+                if (i + 1 < end && scanner.getByte(i + 1) == quote) {
+                    decoded[length++] = (byte) quote;
+                    i += 2;
+                } else {
+                    i++;
+                    break;
+                }
+            } else {
+                decoded[length++] = (byte) c;
+                i++;
+            }
+        }
+
+        // only whitespaces are allowed between closing quote and delimiter
+        for (; i < end; i++) {
+            if (!RecordScanner.isWhitespace(scanner.getByte(i))) {
+                throw new IllegalStateException("Invalid char between encapsulated token and delimiter in record "
+                        + scanner.getRecordNumber());
+            }
+        }
+
+        return new String(decoded, 0, length, charset);
+    }
+
+    private String decodeEscaped(int index) {
+        int start = scanner.getFieldStart(index);
+        int end = scanner.getFieldEnd(index);
+
+        int length = 0;
+        ensureCapacity(end - start);
+
+        for (int i = start; i < end; i++) {
+            int c = scanner.getByte(i);
+            if (c == escape && i + 1 < end) {
+                i++;
+                length = appendEscaped(length, scanner.getByte(i));
+            } else {
+                decoded[length++] = (byte) c;
+            }
+        }
+
+        if (ignoreSurroundingSpaces) {
+            while (length > 0 && RecordScanner.isWhitespace(decoded[length - 1] & 0xff)) {
+                length--;
+            }
+        }
+
+        return new String(decoded, 0, length, charset);
+    }
+
+    /**
+     * Escape sequences are translated the same way as commons-csv lexer does, escape character before other
+     * characters is kept.
+     */
+    private int appendEscaped(int length, int c) {
+        switch (c) {
+            case 'r':
+                decoded[length++] = '\r';
+                break;
+            case 'n':
+                decoded[length++] = '\n';
+                break;
+            case 't':
+                decoded[length++] = '\t';
+                break;
+            case 'b':
+                decoded[length++] = '\b';
+                break;
+            case 'f':
+                decoded[length++] = '\f';
+                break;
+            case '\r':
+            case '\n':
+            case '\t':
+            case '\b':
+            case '\f':
+                decoded[length++] = (byte) c;
+                break;
+            default:
+                if (c != delimiter && c != escape && c != quote && c != commentMarker) {
+                    decoded[length++] = (byte) escape;
+                }
+                decoded[length++] = (byte) c;
+        }
+
+        return length;
+    }
+
+    private void ensureCapacity(int length) {
+        if (decoded.length < length) {
+            decoded = new byte[Math.max(length, decoded.length * 2)];
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        scanner.close();
+    }
+}
@@ -0,0 +1,25 @@
+package com.evolveum.polygon.connector.csv.util;
+
+/**
+ * Defines what is forced to disk when csv file is replaced by rewritten tmp file or when record is appended to it.
+ *
+ * @author Viliam Repan (lazyman)
+ */
+public enum Durability {
+
+    /**
+     * Content and metadata of tmp file are forced before rename, parent directory is forced before and after rename,
+     * so csv file survives crash of operating system both before and after change.
+     */
+    FSYNC,
+
+    /**
+     * Only content of tmp file is forced before rename, rename itself can be lost after crash.
+     */
+    DATA,
+
+    /**
+     * Nothing is forced, operating system writes data to disk whenever it decides to.
+     */
+    NONE
+}
@@ -0,0 +1,300 @@
+package com.evolveum.polygon.connector.csv.util;
+
+import com.evolveum.polygon.connector.csv.ObjectClassHandlerConfiguration;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.csv.CSVRecord;
+import org.identityconnectors.common.logging.Log;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Sorts csv records by values of columns, each column can be sorted in ascending or descending order. At most
+ * buffer size records are kept in memory, bigger files are sorted in runs which are stored in tmp folder and merged
+ * afterwards. Header record (if configured) stays first.
+ *
+ * @author Viliam Repan (lazyman)
+ */
+public class ExternalSorter {
+
+    private static final Log LOG = Log.getLog(ExternalSorter.class);
+
+    private static final String RUN_SUFFIX = ".sort";
+
+    private ObjectClassHandlerConfiguration configuration;
+    private int[] columns;
+    private boolean[] ascending;
+    private int bufferSize;
+
+    public ExternalSorter(ObjectClassHandlerConfiguration configuration, int column, int bufferSize) {
+        this(configuration, new int[]{column}, new boolean[]{true}, bufferSize);
+    }
+
+    /**
+     * @param columns   records are ordered by first column, records with the same value by second column etc.
+     * @param ascending order of each column
+     */
+    public ExternalSorter(ObjectClassHandlerConfiguration configuration, int[] columns, boolean[] ascending,
+                          int bufferSize) {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("Buffer size must be positive, was " + bufferSize);
+        }
+
+        if (columns.length == 0 || columns.length != ascending.length) {
+            throw new IllegalArgumentException("Sort order must be defined for every column");
+        }
+
+        this.configuration = configuration;
+        this.columns = columns;
+        this.ascending = ascending;
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * @return short description of sort order which can be used in file name, e.g. "2a.0d"
+     */
+    public String getSortOrder() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < columns.length; i++) {
+            if (i > 0) {
+                sb.append('.');
+            }
+            sb.append(columns[i]).append(ascending[i] ? 'a' : 'd');
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Null and missing values are ordered before all other values, records with the same value keep their order.
+     */
+    public static int compareKeys(String key1, String key2) {
+        if (key1 == null || key2 == null) {
+            return key1 == null ? (key2 == null ? 0 : -1) : 1;
+        }
+
+        return key1.compareTo(key2);
+    }
+
+    /**
+     * @return value of first sort column
+     */
+    public String getKey(CsvRow record) {
+        return getValue(record, columns[0]);
+    }
+
+    public int compare(CsvRow record1, CsvRow record2) {
+        for (int i = 0; i < columns.length; i++) {
+            int result = compare(i, getValue(record1, columns[i]), getValue(record2, columns[i]));
+            if (result != 0) {
+                return result;
+            }
+        }
+
+        return 0;
+    }
+
+    private int compare(List<String> record1, List<String> record2) {
+        for (int i = 0; i < columns.length; i++) {
+            int result = compare(i, getValue(record1, columns[i]), getValue(record2, columns[i]));
+            if (result != 0) {
+                return result;
+            }
+        }
+
+        return 0;
+    }
+
+    private int compare(int key, String value1, String value2) {
+        int result = compareKeys(value1, value2);
+
+        return ascending[key] ? result : -result;
+    }
+
+    private static String getValue(CsvRow record, int column) {
+        return column < record.size() ? record.get(column) : null;
+    }
+
+    private static String getValue(List<String> record, int column) {
+        return column < record.size() ? record.get(column) : null;
+    }
+
+    /**
+     * @return true if records in file are ordered by column value
+     */
+    public boolean isSorted(File file) throws IOException {
+        try (Reader reader = Util.createReader(file, configuration)) {
+            CSVParser parser = Util.createCsvFormat(configuration).parse(reader);
+            Iterator<CSVRecord> iterator = parser.iterator();
+            if (configuration.isHeaderExists() && iterator.hasNext()) {
+                iterator.next();
+            }
+
+            CsvRow previous = null;
+            while (iterator.hasNext()) {
+                CsvRow record = CsvRow.of(iterator.next());
+                if (previous != null && compare(previous, record) > 0) {
+                    return false;
+                }
+
+                previous = record;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Writes records from input to output ordered by column values. Output is written to tmp file first and then
+     * moved, so it's never visible half written.
+     */
+    public void sort(File input, File output) throws IOException {
+        LOG.ok("Sorting {0} to {1}", input, output);
+
+        sort(Util.createRowReader(input, configuration), output);
+    }
+
+    /**
+     * Writes records from input to output, see {@link #sort(File, File)}. Input reader is closed.
+     */
+    public void sort(CsvRowReader input, File output) throws IOException {
+        long start = System.currentTimeMillis();
+
+        // unique name, the same output can be sorted by more threads
+        File tmp = File.createTempFile(output.getName() + ".", RUN_SUFFIX, output.getAbsoluteFile().getParentFile());
+
+        List<File> runs = new ArrayList<>();
+        try {
+            List<List<String>> header = new ArrayList<>();
+            List<List<String>> buffer = new ArrayList<>();
+
+            try (CsvRowReader reader = input) {
+                CsvRow record = configuration.isHeaderExists() ? reader.next() : null;
+                if (record != null) {
+                    header.add(CsvRow.values(record));
+                }
+
+                while ((record = reader.next()) != null) {
+                    buffer.add(CsvRow.values(record));
+                    if (buffer.size() >= bufferSize) {
+                        runs.add(writeRun(buffer));
+                        buffer.clear();
+                    }
+                }
+            }
+
+            sortBuffer(buffer);
+
+            try (Writer writer = createWriter(tmp)) {
+                CSVPrinter printer = Util.createCsvFormat(configuration).print(writer);
+                printer.printRecords(header);
+
+                if (runs.isEmpty()) {
+                    printer.printRecords(buffer);
+                } else {
+                    if (!buffer.isEmpty()) {
+                        runs.add(writeRun(buffer));
+                        buffer.clear();
+                    }
+                    merge(runs, printer);
+                }
+
+                printer.flush();
+            }
+
+            Files.move(tmp.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            for (File run : runs) {
+                run.delete();
+            }
+            tmp.delete();
+        }
+
+        LOG.ok("File {0} sorted using {1} runs in {2}ms", output, runs.size(), System.currentTimeMillis() - start);
+    }
+
+    private void sortBuffer(List<List<String>> buffer) {
+        buffer.sort(this::compare);
+    }
+
+    private File writeRun(List<List<String>> buffer) throws IOException {
+        sortBuffer(buffer);
+
+        File run = File.createTempFile(configuration.getFilePath().getName() + ".", RUN_SUFFIX,
+                configuration.getTmpFolder());
+        try (Writer writer = createWriter(run)) {
+            CSVPrinter printer = Util.createCsvFormat(configuration).print(writer);
+            printer.printRecords(buffer);
+            printer.flush();
+        }
+
+        return run;
+    }
+
+    private Writer createWriter(File file) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), configuration.getEncoding()));
+    }
+
+    private static class Run {
+
+        private int number;
+        private Iterator<CSVRecord> iterator;
+        private CSVRecord current;
+        private CsvRow row;
+
+        private Run(int number, Iterator<CSVRecord> iterator) {
+            this.number = number;
+            this.iterator = iterator;
+        }
+    }
+
+    private void merge(List<File> files, CSVPrinter printer) throws IOException {
+        // runs with the same key are ordered by run number, so records with equal keys keep their order
+        PriorityQueue<Run> queue = new PriorityQueue<>(files.size(), (r1, r2) -> {
+            int result = compare(r1.row, r2.row);
+            return result != 0 ? result : Integer.compare(r1.number, r2.number);
+        });
+
+        List<Reader> readers = new ArrayList<>();
+        try {
+            CSVFormat csv = Util.createCsvFormat(configuration);
+            for (int i = 0; i < files.size(); i++) {
+                Reader reader = Util.createReader(files.get(i), configuration);
+                readers.add(reader);
+
+                Run run = new Run(i, csv.parse(reader).iterator());
+                if (advance(run)) {
+                    queue.add(run);
+                }
+            }
+
+            while (!queue.isEmpty()) {
+                Run run = queue.poll();
+                printer.printRecord(run.current);
+
+                if (advance(run)) {
+                    queue.add(run);
+                }
+            }
+        } finally {
+            for (Reader reader : readers) {
+                Util.closeQuietly(reader);
+            }
+        }
+    }
+
+    private boolean advance(Run run) {
+        if (!run.iterator.hasNext()) {
+            return false;
+        }
+
+        run.current = run.iterator.next();
+        run.row = CsvRow.of(run.current);
+
+        return true;
+    }
+}
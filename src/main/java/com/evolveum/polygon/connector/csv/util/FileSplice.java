@@ -0,0 +1,124 @@
+package com.evolveum.polygon.connector.csv.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Describes changes of file as list of replaced byte ranges. Bytes outside of replaced ranges are copied from
+ * source file to target file using {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)},
+ * so they don't have to be read, decoded or parsed.
+ *
+ * @author Viliam Repan (lazyman)
+ */
+public class FileSplice {
+
+    private static class Range {
+
+        private long length;
+        private byte[] replacement;
+
+        private Range(long length, byte[] replacement) {
+            this.length = length;
+            this.replacement = replacement;
+        }
+    }
+
+    private TreeMap<Long, Range> ranges = new TreeMap<>();
+
+    /**
+     * Replaces bytes in range [offset, offset + length) with replacement bytes. Ranges must not overlap.
+     */
+    public void replace(long offset, long length, byte[] replacement) {
+        Map.Entry<Long, Range> previous = ranges.floorEntry(offset);
+        if (previous != null && previous.getKey() + previous.getValue().length > offset) {
+            throw new IllegalArgumentException("Range starting at " + offset + " overlaps with range starting at "
+                    + previous.getKey());
+        }
+
+        Map.Entry<Long, Range> next = ranges.ceilingEntry(offset);
+        if (next != null && offset + length > next.getKey()) {
+            throw new IllegalArgumentException("Range starting at " + offset + " overlaps with range starting at "
+                    + next.getKey());
+        }
+
+        ranges.put(offset, new Range(length, replacement));
+    }
+
+    public void remove(long offset, long length) {
+        replace(offset, length, new byte[0]);
+    }
+
+    public boolean isEmpty() {
+        return ranges.isEmpty();
+    }
+
+    /**
+     * @return true if some range starts at this offset
+     */
+    public boolean isReplaced(long offset) {
+        return ranges.containsKey(offset);
+    }
+
+    /**
+     * @return length of replacement for range starting at offset
+     */
+    public int getReplacementLength(long offset) {
+        Range range = ranges.get(offset);
+        if (range == null) {
+            throw new IllegalArgumentException("There's no range starting at " + offset);
+        }
+
+        return range.replacement.length;
+    }
+
+    /**
+     * @return offset in target file for byte which was at offset in source file, offset of replaced range start
+     * is mapped to start of its replacement
+     */
+    public long map(long offset) {
+        long result = offset;
+        for (Map.Entry<Long, Range> entry : ranges.headMap(offset, false).entrySet()) {
+            Range range = entry.getValue();
+            result += range.replacement.length - range.length;
+        }
+
+        return result;
+    }
+
+    /**
+     * Writes spliced content of source to target, target is written from its current position.
+     */
+    public void writeTo(FileChannel source, FileChannel target) throws IOException {
+        long position = 0;
+        for (Map.Entry<Long, Range> entry : ranges.entrySet()) {
+            long offset = entry.getKey();
+            Range range = entry.getValue();
+
+            transfer(source, position, offset - position, target);
+
+            ByteBuffer buffer = ByteBuffer.wrap(range.replacement);
+            while (buffer.hasRemaining()) {
+                target.write(buffer);
+            }
+
+            position = offset + range.length;
+        }
+
+        transfer(source, position, source.size() - position, target);
+    }
+
+    private void transfer(FileChannel source, long position, long count, FileChannel target) throws IOException {
+        while (count > 0) {
+            long transferred = source.transferTo(position, count, target);
+            if (transferred <= 0) {
+                throw new IOException("Couldn't transfer bytes from position " + position + ", file changed");
+            }
+
+            position += transferred;
+            count -= transferred;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.evolveum.polygon.connector.csv.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Objects;
+
+/**
+ * Identifies one version of a file using its size, last modification time and file key (inode where available).
+ * File is rewritten through tmp file and move, therefore every write done by connector creates new file key.
+ *
+ * @author Viliam Repan (lazyman)
+ */
+public class FileVersion {
+
+    private long size;
+    private FileTime lastModified;
+    private Object fileKey;
+
+    public FileVersion(long size, FileTime lastModified, Object fileKey) {
+        this.size = size;
+        this.lastModified = lastModified;
+        this.fileKey = fileKey;
+    }
+
+    public static FileVersion of(File file) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+
+        return new FileVersion(attributes.size(), attributes.lastModifiedTime(), attributes.fileKey());
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public FileTime getLastModified() {
+        return lastModified;
+    }
+
+    public Object getFileKey() {
+        return fileKey;
+    }
+
+    /**
+     * @return short string which identifies this version, it can be stored outside of connector
+     */
+    public String getFingerprint() {
+        long modified = lastModified != null ? lastModified.toMillis() : 0;
+
+        return Long.toHexString(size) + '-' + Long.toHexString(modified) + '-'
+                + Integer.toHexString(Objects.hashCode(fileKey));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        FileVersion that = (FileVersion) o;
+
+        if (size != that.size) return false;
+        if (!Objects.equals(lastModified, that.lastModified)) return false;
+        return Objects.equals(fileKey, that.fileKey);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(size, lastModified, fileKey);
+    }
+
+    @Override
+    public String toString() {
+        return "FileVersion{s=" + size + ", m=" + lastModified + ", k=" + fileKey + '}';
+    }
+}
@@ -0,0 +1,100 @@
+package com.evolveum.polygon.connector.csv.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-process part of tmp file lock. Threads of this JVM wait for lock of the same file in fair queue, lock is
+ * handed directly to the thread which waits longest, so only one thread at a time tries to create tmp file.
+ * Tmp file itself still guards against other processes.
+ * <p>
+ * Lock isn't owned by thread, it can be released by other thread than the one which acquired it. Lock also
+ * collects time which threads waited for it.
+ *
+ * @author Viliam Repan (lazyman)
+ */
+public class InProcessLock {
+
+    private static final Map<String, InProcessLock> LOCKS = new ConcurrentHashMap<>();
+
+    private Semaphore semaphore = new Semaphore(1, true);
+
+    private LongAdder acquisitions = new LongAdder();
+    private LongAdder totalWait = new LongAdder();
+    private LongAccumulator maxWait = new LongAccumulator(Math::max, 0);
+
+    private InProcessLock() {
+    }
+
+    /**
+     * @return lock shared by all threads for file with the same canonical path
+     */
+    public static InProcessLock of(File file) {
+        String path;
+        try {
+            path = file.getCanonicalPath();
+        } catch (IOException ex) {
+            path = file.getAbsolutePath();
+        }
+
+        return LOCKS.computeIfAbsent(path, key -> new InProcessLock());
+    }
+
+    /**
+     * @return false if lock wasn't acquired in time
+     */
+    public boolean acquire(long timeout) throws InterruptedException {
+        long start = System.nanoTime();
+        if (!semaphore.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+            return false;
+        }
+
+        long wait = System.nanoTime() - start;
+        acquisitions.increment();
+        totalWait.add(wait);
+        maxWait.accumulate(wait);
+
+        return true;
+    }
+
+    public void release() {
+        semaphore.release();
+    }
+
+    /**
+     * @return number of threads waiting for lock
+     */
+    public int getQueueLength() {
+        return semaphore.getQueueLength();
+    }
+
+    public long getAcquisitions() {
+        return acquisitions.sum();
+    }
+
+    /**
+     * @return sum of times in microseconds which threads waited before they acquired lock
+     */
+    public long getTotalWaitTime() {
+        return TimeUnit.NANOSECONDS.toMicros(totalWait.sum());
+    }
+
+    /**
+     * @return longest time in microseconds which thread waited before it acquired lock
+     */
+    public long getMaxWaitTime() {
+        return TimeUnit.NANOSECONDS.toMicros(maxWait.get());
+    }
+
+    @Override
+    public String toString() {
+        return "InProcessLock{acquisitions=" + getAcquisitions() + ", totalWaitTime=" + getTotalWaitTime()
+                + "us, maxWaitTime=" + getMaxWaitTime() + "us, queueLength=" + getQueueLength() + "}";
+    }
+}
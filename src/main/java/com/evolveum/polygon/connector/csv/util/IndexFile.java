@@ -0,0 +1,183 @@
+package com.evolveum.polygon.connector.csv.util;
+
+import org.identityconnectors.common.logging.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Binary file with {@link RecordIndex}, so index doesn't have to be built by scanning whole csv file after
+ * connector is initialized. File starts with fingerprint of csv file version it was built from (size, last
+ * modification time and checksum of first and last bytes of file), index is loaded only if fingerprint matches
+ * pinned version of csv file. File key isn't stored, it's not stable across restarts on every platform.
+ * <p>
+ * Format: magic, format version, csv size, csv last modified, checksum, column, ignore case flag, number
+ * of locations and locations (UTF-8 key length, key, offset, length).
+ *
+ * @author Viliam Repan (lazyman)
+ */
+public class IndexFile {
+
+    private static final Log LOG = Log.getLog(IndexFile.class);
+
+    private static final int MAGIC = 0x43535649;
+
+    private static final int FORMAT_VERSION = 1;
+
+    // number of bytes at start and at end of csv file included in checksum
+    private static final int CHECKSUM_BYTES = 4096;
+
+    /**
+     * Writes index built from pinned version of csv file. Index is written to tmp file first and then moved,
+     * so readers never see file written only partially.
+     */
+    public static void write(RecordIndex index, int column, PinnedFile csv, File file) throws IOException {
+        long start = System.currentTimeMillis();
+
+        int[] count = new int[1];
+        index.forEach((key, location) -> count[0]++);
+
+        FileVersion version = csv.getVersion();
+        long modified = version.getLastModified() != null ? version.getLastModified().toMillis() : 0;
+
+        File tmp = File.createTempFile(file.getName() + ".", ".tmp", file.getAbsoluteFile().getParentFile());
+        try {
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(tmp.toPath())))) {
+
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeLong(version.getSize());
+                out.writeLong(modified);
+                out.writeLong(checksum(csv));
+                out.writeInt(column);
+                out.writeBoolean(index.isIgnoreCase());
+                out.writeInt(count[0]);
+
+                try {
+                    index.forEach((key, location) -> {
+                        try {
+                            byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+                            out.writeInt(bytes.length);
+                            out.write(bytes);
+                            out.writeLong(location.getOffset());
+                            out.writeInt(location.getLength());
+                        } catch (IOException ex) {
+                            throw new UncheckedIOException(ex);
+                        }
+                    });
+                } catch (UncheckedIOException ex) {
+                    throw ex.getCause();
+                }
+            }
+
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+
+        LOG.ok("Index with {0} locations written to {1} in {2}ms", count[0], file,
+                System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Reads index file through memory mapped buffer.
+     *
+     * @return index for pinned version of csv file, null if file doesn't exist, it's damaged or it was written
+     * for other version of csv file
+     */
+    public static RecordIndex read(File file, int column, PinnedFile csv, boolean ignoreCase) throws IOException {
+        long start = System.currentTimeMillis();
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (buffer.remaining() < 8 || buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+                LOG.warn("Index file {0} has unknown format, it's ignored", file);
+                return null;
+            }
+
+            FileVersion version = csv.getVersion();
+            long modified = version.getLastModified() != null ? version.getLastModified().toMillis() : 0;
+
+            if (buffer.getLong() != version.getSize() || buffer.getLong() != modified
+                    || buffer.getLong() != checksum(csv) || buffer.getInt() != column
+                    || (buffer.get() != 0) != ignoreCase) {
+                LOG.ok("Index file {0} doesn't match csv file {1}", file, csv.getFile());
+                return null;
+            }
+
+            RecordIndex index = new RecordIndex(version, ignoreCase);
+
+            int count = buffer.getInt();
+            for (int i = 0; i < count; i++) {
+                byte[] key = new byte[buffer.getInt()];
+                buffer.get(key);
+
+                long offset = buffer.getLong();
+                int length = buffer.getInt();
+                if (offset < 0 || length < 0 || offset + length > version.getSize()) {
+                    LOG.warn("Index file {0} contains invalid location, it's ignored", file);
+                    return null;
+                }
+
+                index.add(new String(key, StandardCharsets.UTF_8), new RecordIndex.Location(offset, length));
+            }
+
+            LOG.ok("Index with {0} values loaded from {1} in {2}ms", index.size(), file,
+                    System.currentTimeMillis() - start);
+
+            return index;
+        } catch (NoSuchFileException ex) {
+            return null;
+        } catch (BufferUnderflowException | NegativeArraySizeException ex) {
+            LOG.warn("Index file {0} is incomplete, it's ignored", file);
+            return null;
+        }
+    }
+
+    /**
+     * Size and last modification time don't change if file is rewritten with the same size within timestamp
+     * resolution, checksum of first and last bytes detects most of such changes without reading whole file.
+     */
+    private static long checksum(PinnedFile csv) throws IOException {
+        CRC32 crc = new CRC32();
+
+        try (FileChannel channel = csv.openChannel()) {
+            long size = channel.size();
+
+            long head = Math.min(size, CHECKSUM_BYTES);
+            update(crc, channel, 0, head);
+
+            long tail = Math.max(head, size - CHECKSUM_BYTES);
+            update(crc, channel, tail, size - tail);
+        }
+
+        return crc.getValue();
+    }
+
+    private static void update(CRC32 crc, FileChannel channel, long position, long length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                break;
+            }
+        }
+
+        buffer.flip();
+        crc.update(buffer);
+    }
+}
@@ -0,0 +1,408 @@
+package com.evolveum.polygon.connector.csv.util;
+
+import com.evolveum.polygon.connector.csv.ObjectClassHandlerConfiguration;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.csv.CSVRecord;
+import org.identityconnectors.common.logging.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Changes of csv records which are not merged to csv file yet. Every change is appended to journal file as one
+ * csv record: operation, unique attribute value, record values (only for upsert) and end marker. Record without
+ * end marker was written only partially, it's ignored together with all following records and journal file is
+ * rewritten without them before next change is appended.
+ * <p>
+ * Only last state of every changed record is kept in memory, changes are applied to csv records by
+ * {@link Snapshot#overlay(CsvRowReader, int, boolean)}. State is copied on every change, so readers use immutable
+ * snapshot without locking. Changes and {@link #clear()} must be serialized by caller, journal file can be changed
+ * also by other process, therefore snapshot is reloaded when file doesn't match it.
+ *
+ * @author Viliam Repan (lazyman)
+ */
+public class Journal {
+
+    private static final Log LOG = Log.getLog(Journal.class);
+
+    private static final String UPSERT = "U";
+
+    private static final String DELETE = "D";
+
+    private static final String END = ".";
+
+    private File file;
+    private ObjectClassHandlerConfiguration configuration;
+
+    private volatile Snapshot snapshot;
+
+    // size and file key of journal file which snapshot was loaded from
+    private long loadedSize;
+    private Object loadedFileKey;
+    // journal file ends with incomplete record
+    private boolean damaged;
+
+    private ScheduledFuture<?> compaction;
+
+    public Journal(File file, ObjectClassHandlerConfiguration configuration) {
+        this.file = file;
+        this.configuration = configuration;
+        this.snapshot = new Snapshot(new LinkedHashMap<>(), 0, configuration.isIgnoreIdentifierCase());
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Immutable state of journal.
+     */
+    public static class Snapshot {
+
+        // values of changed records, null if record was deleted
+        private Map<String, List<String>> records;
+        private long version;
+        private boolean ignoreCase;
+
+        private Snapshot(Map<String, List<String>> records, long version, boolean ignoreCase) {
+            this.records = records;
+            this.version = version;
+            this.ignoreCase = ignoreCase;
+        }
+
+        public boolean isEmpty() {
+            return records.isEmpty();
+        }
+
+        public int size() {
+            return records.size();
+        }
+
+        /**
+         * @return number of changes in journal file, together with csv file version it identifies state of records
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * @return true if record with unique attribute value was changed
+         */
+        public boolean contains(String uid) {
+            return records.containsKey(key(uid));
+        }
+
+        /**
+         * @return last values of record, null if record was deleted or it wasn't changed
+         */
+        public List<String> get(String uid) {
+            return records.get(key(uid));
+        }
+
+        private String key(String uid) {
+            return ignoreCase ? uid.toLowerCase(Locale.ROOT) : uid;
+        }
+
+        /**
+         * Changed records are returned instead of csv records with the same unique attribute value, deleted records
+         * are skipped and new records are returned after all csv records.
+         */
+        public CsvRowReader overlay(CsvRowReader reader, int uidColumn, boolean headerExists) {
+            return new OverlayReader(reader, this, uidColumn, headerExists);
+        }
+    }
+
+    private static class OverlayReader implements CsvRowReader {
+
+        private CsvRowReader reader;
+        private Snapshot snapshot;
+        private int uidColumn;
+        private boolean headerExists;
+
+        // changed records which were already returned
+        private Set<String> used = new HashSet<>();
+        private Iterator<Map.Entry<String, List<String>>> appended;
+        private long recordNumber;
+
+        private OverlayReader(CsvRowReader reader, Snapshot snapshot, int uidColumn, boolean headerExists) {
+            this.reader = reader;
+            this.snapshot = snapshot;
+            this.uidColumn = uidColumn;
+            this.headerExists = headerExists;
+        }
+
+        @Override
+        public CsvRow next() throws IOException {
+            if (appended == null) {
+                CsvRow row;
+                while ((row = reader.next()) != null) {
+                    recordNumber = row.getRecordNumber();
+                    if ((headerExists && recordNumber == 1) || uidColumn >= row.size()) {
+                        return row;
+                    }
+
+                    String key = snapshot.key(row.get(uidColumn));
+                    if (!snapshot.records.containsKey(key)) {
+                        return row;
+                    }
+
+                    // record with the same uid can be in csv file more times, changed record is returned only once
+                    List<String> record = snapshot.records.get(key);
+                    if (used.add(key) && record != null) {
+                        return CsvRow.of(record, recordNumber);
+                    }
+                }
+
+                appended = snapshot.records.entrySet().iterator();
+            }
+
+            while (appended.hasNext()) {
+                Map.Entry<String, List<String>> entry = appended.next();
+                if (entry.getValue() != null && !used.contains(entry.getKey())) {
+                    return CsvRow.of(entry.getValue(), ++recordNumber);
+                }
+            }
+
+            return null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+    }
+
+    public static List<String> upsert(String uid, List<String> record) {
+        List<String> entry = new ArrayList<>(record.size() + 2);
+        entry.add(UPSERT);
+        entry.add(uid);
+        entry.addAll(record);
+
+        return entry;
+    }
+
+    public static List<String> delete(String uid) {
+        return Arrays.asList(DELETE, uid);
+    }
+
+    /**
+     * @return current state of journal, it's reloaded if journal file was changed by other process
+     */
+    public synchronized Snapshot getSnapshot() throws IOException {
+        if (!file.exists()) {
+            if (loadedSize != 0) {
+                reset();
+            }
+
+            return snapshot;
+        }
+
+        BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        if (attributes.size() != loadedSize || !Objects.equals(attributes.fileKey(), loadedFileKey)) {
+            load();
+        }
+
+        return snapshot;
+    }
+
+    /**
+     * Entries created by {@link #upsert(String, List)} and {@link #delete(String)} are written to journal file
+     * by one write and forced to disk before they're visible to readers.
+     */
+    public synchronized Snapshot append(List<List<String>> entries) throws IOException {
+        Snapshot current = getSnapshot();
+        if (damaged) {
+            repair(current);
+        }
+
+        write(entries, StandardOpenOption.APPEND);
+
+        Map<String, List<String>> records = new LinkedHashMap<>(current.records);
+        for (List<String> entry : entries) {
+            apply(records, entry);
+        }
+
+        snapshot = new Snapshot(records, current.version + entries.size(), current.ignoreCase);
+        return snapshot;
+    }
+
+    /**
+     * Deletes journal file, it has to be called after all changes were merged to csv file.
+     */
+    public synchronized void clear() throws IOException {
+        Files.deleteIfExists(file.toPath());
+        reset();
+    }
+
+    /**
+     * Removes changes which were merged to csv file, changes made after merged snapshot was taken are kept.
+     * Journal file is deleted if there are no such changes.
+     */
+    public synchronized void remove(Snapshot merged) throws IOException {
+        Snapshot current = getSnapshot();
+
+        // record state is copied on every change, so unchanged state is the same instance
+        Map<String, List<String>> remaining = new LinkedHashMap<>();
+        current.records.forEach((key, record) -> {
+            if (!merged.records.containsKey(key) || merged.records.get(key) != record) {
+                remaining.put(key, record);
+            }
+        });
+
+        if (remaining.isEmpty()) {
+            clear();
+            return;
+        }
+
+        rewrite(remaining);
+    }
+
+    /**
+     * Schedules compaction task. If compaction is already scheduled to run sooner, nothing is changed.
+     */
+    public synchronized void scheduleCompaction(ScheduledExecutorService executor, Runnable task, long delay) {
+        if (compaction != null && !compaction.isDone()) {
+            if (compaction.getDelay(TimeUnit.MILLISECONDS) <= delay) {
+                return;
+            }
+            compaction.cancel(false);
+        }
+
+        compaction = executor.schedule(task, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void reset() {
+        snapshot = new Snapshot(new LinkedHashMap<>(), 0, configuration.isIgnoreIdentifierCase());
+        loadedSize = 0;
+        loadedFileKey = null;
+        damaged = false;
+    }
+
+    private void write(List<List<String>> entries, StandardOpenOption mode) throws IOException {
+        loadedSize = write(entries, file, mode);
+        loadedFileKey = Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+    }
+
+    /**
+     * @return size of file after entries were written
+     */
+    private long write(List<List<String>> entries, File target, StandardOpenOption mode) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        CSVPrinter printer = Util.createCsvFormat(configuration).print(sb);
+        for (List<String> entry : entries) {
+            List<String> record = new ArrayList<>(entry);
+            record.add(END);
+            printer.printRecord(record);
+        }
+        printer.flush();
+
+        Charset charset = Charset.forName(configuration.getEncoding());
+        try (FileChannel channel = FileChannel.open(target.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, mode)) {
+
+            ByteBuffer buffer = ByteBuffer.wrap(sb.toString().getBytes(charset));
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+
+            return channel.size();
+        }
+    }
+
+    /**
+     * Rewrites journal file with current state of records, incomplete record at the end of file is removed.
+     */
+    private void repair(Snapshot current) throws IOException {
+        LOG.info("Removing incomplete record from journal {0}", file);
+
+        rewrite(current.records);
+    }
+
+    private void rewrite(Map<String, List<String>> records) throws IOException {
+        List<List<String>> entries = new ArrayList<>();
+        records.forEach((key, record) -> entries.add(record != null ? upsert(key, record) : delete(key)));
+
+        // journal contains changes which aren't in csv file yet, it's never truncated in place, otherwise crash
+        // before new content is on disk would lose them
+        File tmp = File.createTempFile(file.getName() + ".", ".tmp", file.getAbsoluteFile().getParentFile());
+        try {
+            long size = write(entries, tmp, StandardOpenOption.TRUNCATE_EXISTING);
+            Util.replaceFile(tmp, file, Durability.FSYNC);
+
+            loadedSize = size;
+            loadedFileKey = Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+
+        snapshot = new Snapshot(records, entries.size(), configuration.isIgnoreIdentifierCase());
+        damaged = false;
+    }
+
+    private void load() throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+
+        Map<String, List<String>> records = new LinkedHashMap<>();
+        long version = 0;
+        damaged = false;
+
+        try (Reader reader = Util.createReader(file, configuration)) {
+            Iterator<CSVRecord> iterator = Util.createCsvFormat(configuration).parse(reader).iterator();
+            while (true) {
+                CSVRecord record;
+                try {
+                    if (!iterator.hasNext()) {
+                        break;
+                    }
+                    record = iterator.next();
+                } catch (RuntimeException ex) {
+                    // record cut inside quoted value can't be parsed, parser throws unchecked exception
+                    LOG.warn("Journal {0} contains record which can't be parsed after {1} changes, it and following "
+                            + "records are ignored, reason: {2}", file, version, ex.getMessage());
+                    damaged = true;
+                    break;
+                }
+
+                List<String> entry = Util.copyOf(record.iterator());
+
+                int last = entry.size() - 1;
+                if (entry.size() < 3 || !END.equals(entry.get(last))
+                        || !(UPSERT.equals(entry.get(0)) || DELETE.equals(entry.get(0)))) {
+                    LOG.warn("Journal {0} contains incomplete record {1}, it and following records are ignored",
+                            file, record.getRecordNumber());
+                    damaged = true;
+                    break;
+                }
+
+                apply(records, entry.subList(0, last));
+                version++;
+            }
+        }
+
+        snapshot = new Snapshot(records, version, configuration.isIgnoreIdentifierCase());
+        loadedSize = attributes.size();
+        loadedFileKey = attributes.fileKey();
+
+        LOG.ok("Journal {0} loaded, {1} changes of {2} records", file, version, records.size());
+    }
+
+    private void apply(Map<String, List<String>> records, List<String> entry) {
+        String uid = entry.get(1);
+        String key = configuration.isIgnoreIdentifierCase() ? uid.toLowerCase(Locale.ROOT) : uid;
+
+        // new records keep order in which they were created
+        records.put(key, UPSERT.equals(entry.get(0)) ? new ArrayList<>(entry.subList(2, entry.size())) : null);
+    }
+}
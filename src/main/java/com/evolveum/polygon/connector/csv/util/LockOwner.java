@@ -0,0 +1,147 @@
+package com.evolveum.polygon.connector.csv.util;
+
+import org.identityconnectors.common.logging.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Owner of tmp or sync lock file. Owner is written to file next to lock file (lock file with ".owner" suffix),
+ * because content of tmp file becomes csv file. Owner is used to decide whether lock file left behind by process
+ * which crashed can be reclaimed.
+ * <p>
+ * Owner is written only after lock on lock file was obtained and it contains file key of locked file, so owner
+ * left behind by other lock file isn't mistaken for owner of current one.
+ *
+ * @author Viliam Repan (lazyman)
+ */
+public class LockOwner {
+
+    private static final Log LOG = Log.getLog(LockOwner.class);
+
+    public static final String OWNER_EXTENSION = "owner";
+
+    private static final char SEPARATOR = ';';
+
+    // process name in form pid@host
+    private static final String PROCESS = ManagementFactory.getRuntimeMXBean().getName();
+
+    private String pid;
+    private String host;
+    private long timestamp;
+    // file key of locked file, empty if file system doesn't provide file keys
+    private String fileKey;
+
+    public LockOwner(String pid, String host, long timestamp, String fileKey) {
+        this.pid = pid;
+        this.host = host;
+        this.timestamp = timestamp;
+        this.fileKey = fileKey != null ? fileKey : "";
+    }
+
+    /**
+     * @param lockFile file which is locked by this process
+     */
+    public static LockOwner current(File lockFile) throws IOException {
+        String fileKey = getFileKey(lockFile);
+
+        int index = PROCESS.indexOf('@');
+        if (index < 0) {
+            return new LockOwner(PROCESS, "", System.currentTimeMillis(), fileKey);
+        }
+
+        return new LockOwner(PROCESS.substring(0, index), PROCESS.substring(index + 1), System.currentTimeMillis(),
+                fileKey);
+    }
+
+    /**
+     * @return file key of file as string, empty string if file system doesn't provide file keys
+     */
+    public static String getFileKey(File file) throws IOException {
+        Object key = Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+        return key != null ? key.toString() : "";
+    }
+
+    public static File createPath(File lockFile) {
+        return new File(lockFile.getPath() + "." + OWNER_EXTENSION);
+    }
+
+    /**
+     * @return owner of lock file, null if owner wasn't written or it can't be parsed
+     */
+    public static LockOwner read(File lockFile) {
+        String value;
+        try {
+            value = new String(Files.readAllBytes(createPath(lockFile).toPath()), StandardCharsets.UTF_8).trim();
+        } catch (NoSuchFileException ex) {
+            return null;
+        } catch (IOException ex) {
+            LOG.warn("Couldn't read owner of lock file {0}, reason: {1}", lockFile, ex.getMessage());
+            return null;
+        }
+
+        int first = value.indexOf(SEPARATOR);
+        int second = first >= 0 ? value.indexOf(SEPARATOR, first + 1) : -1;
+        int third = second >= 0 ? value.indexOf(SEPARATOR, second + 1) : -1;
+        if (third < 0) {
+            return null;
+        }
+
+        try {
+            return new LockOwner(value.substring(0, first), value.substring(first + 1, second),
+                    Long.parseLong(value.substring(second + 1, third)), value.substring(third + 1));
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+
+    public void write(File lockFile) throws IOException {
+        Files.write(createPath(lockFile).toPath(), toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static void delete(File lockFile) {
+        createPath(lockFile).delete();
+    }
+
+    public String getPid() {
+        return pid;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * @return time when lock was obtained
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public String getFileKey() {
+        return fileKey;
+    }
+
+    /**
+     * @param fileKey file key of lock file, see {@link #getFileKey(File)}
+     * @param created creation time of lock file, used only if file system doesn't provide file keys
+     * @return true if this owner was written for lock file with this file key or creation time
+     */
+    public boolean owns(String fileKey, long created) {
+        if (!fileKey.isEmpty()) {
+            return fileKey.equals(this.fileKey);
+        }
+
+        return this.fileKey.isEmpty() && timestamp >= created;
+    }
+
+    @Override
+    public String toString() {
+        return pid + SEPARATOR + host + SEPARATOR + timestamp + SEPARATOR + fileKey;
+    }
+}
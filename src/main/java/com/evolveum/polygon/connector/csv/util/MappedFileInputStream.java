@@ -0,0 +1,116 @@
+package com.evolveum.polygon.connector.csv.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Input stream which reads file through memory mapped regions instead of read calls, so bytes are taken from
+ * page cache. Regions are mapped one after another, therefore files bigger than 2GB can be read as well.
+ *
+ * @author Viliam Repan (lazyman)
+ */
+public class MappedFileInputStream extends InputStream {
+
+    private static final int DEFAULT_REGION_SIZE = 64 * 1024 * 1024;
+
+    private FileChannel channel;
+    private int regionSize;
+
+    private MappedByteBuffer region;
+    // file offset of next region
+    private long offset;
+
+    public MappedFileInputStream(File file) throws IOException {
+        this(file, DEFAULT_REGION_SIZE);
+    }
+
+    public MappedFileInputStream(File file, int regionSize) throws IOException {
+        this(FileChannel.open(file.toPath(), StandardOpenOption.READ), regionSize);
+    }
+
+    /**
+     * @param channel channel is closed when stream is closed
+     */
+    public MappedFileInputStream(FileChannel channel) {
+        this(channel, DEFAULT_REGION_SIZE);
+    }
+
+    public MappedFileInputStream(FileChannel channel, int regionSize) {
+        if (regionSize <= 0) {
+            Util.closeQuietly(channel);
+            throw new IllegalArgumentException("Region size must be positive, was " + regionSize);
+        }
+
+        this.channel = channel;
+        this.regionSize = regionSize;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!ensureRegion()) {
+            return -1;
+        }
+
+        return region.get() & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+
+        if (!ensureRegion()) {
+            return -1;
+        }
+
+        int count = Math.min(len, region.remaining());
+        region.get(b, off, count);
+
+        return count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0 || !ensureRegion()) {
+            return 0;
+        }
+
+        int count = (int) Math.min(n, region.remaining());
+        region.position(region.position() + count);
+
+        return count;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return region != null ? region.remaining() : 0;
+    }
+
+    private boolean ensureRegion() throws IOException {
+        if (region != null && region.hasRemaining()) {
+            return true;
+        }
+
+        long size = channel.size();
+        if (offset >= size) {
+            return false;
+        }
+
+        long length = Math.min(size - offset, regionSize);
+        region = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+        offset += length;
+
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        region = null;
+        channel.close();
+    }
+}
@@ -0,0 +1,67 @@
+package com.evolveum.polygon.connector.csv.util;
+
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+
+/**
+ * Position in csv file where next page of search results starts. Cookie contains number of last returned record,
+ * offset of next record in file (-1 if file can't be read from offset) and fingerprint of file version, so next
+ * page continues from the same position only if file wasn't changed.
+ *
+ * @author Viliam Repan (lazyman)
+ */
+public class PagedResultsCookie {
+
+    private static final char SEPARATOR = ':';
+
+    private long recordNumber;
+    private long offset;
+    private String fingerprint;
+
+    public PagedResultsCookie(long recordNumber, long offset, String fingerprint) {
+        this.recordNumber = recordNumber;
+        this.offset = offset;
+        this.fingerprint = fingerprint;
+    }
+
+    public static PagedResultsCookie parse(String cookie) {
+        if (cookie == null) {
+            return null;
+        }
+
+        int first = cookie.indexOf(SEPARATOR);
+        int second = first >= 0 ? cookie.indexOf(SEPARATOR, first + 1) : -1;
+        if (second < 0) {
+            throw new ConnectorException("Invalid paged results cookie '" + cookie + "'");
+        }
+
+        try {
+            return new PagedResultsCookie(Long.parseLong(cookie.substring(0, first)),
+                    Long.parseLong(cookie.substring(first + 1, second)), cookie.substring(second + 1));
+        } catch (NumberFormatException ex) {
+            throw new ConnectorException("Invalid paged results cookie '" + cookie + "'", ex);
+        }
+    }
+
+    /**
+     * @return number of last returned record
+     */
+    public long getRecordNumber() {
+        return recordNumber;
+    }
+
+    /**
+     * @return offset of record after last returned record, -1 if it's not known
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    @Override
+    public String toString() {
+        return Long.toString(recordNumber) + SEPARATOR + offset + SEPARATOR + fingerprint;
+    }
+}
@@ -0,0 +1,243 @@
+package com.evolveum.polygon.connector.csv.util;
+
+import com.evolveum.polygon.connector.csv.ObjectClassHandlerConfiguration;
+import org.identityconnectors.common.logging.Log;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Scans whole csv file using multiple threads. File is split to chunks of records, chunk boundaries are found by
+ * {@link RecordScanner}, so quoted values with line terminators are never split. Chunks are read by
+ * {@link CsvTokenizer} and records are mapped to results on fork-join pool, results are passed to handler
+ * in caller thread.
+ * <p>
+ * Only few chunks are processed or waiting for handler at the same time, so memory usage doesn't depend
+ * on file size.
+ *
+ * @author Viliam Repan (lazyman)
+ */
+public class ParallelScanner {
+
+    private static final Log LOG = Log.getLog(ParallelScanner.class);
+
+    private static final long MIN_CHUNK_SIZE = 64 * 1024;
+
+    private static final long MAX_CHUNK_SIZE = 16 * 1024 * 1024;
+
+    // chunks processed or waiting for handler per thread
+    private static final int CHUNKS_PER_THREAD = 2;
+
+    private static final Map<Integer, ForkJoinPool> POOLS = new ConcurrentHashMap<>();
+
+    private PinnedFile file;
+    private ObjectClassHandlerConfiguration configuration;
+    private int threads;
+    private boolean preserveOrder;
+    private long chunkSize;
+
+    public ParallelScanner(PinnedFile file, ObjectClassHandlerConfiguration configuration, int threads,
+                           boolean preserveOrder) {
+        this(file, configuration, threads, preserveOrder, Math.min(MAX_CHUNK_SIZE,
+                Math.max(MIN_CHUNK_SIZE, file.getVersion().getSize() / (threads * 4L))));
+    }
+
+    /**
+     * @param file all chunks are read from pinned version of file
+     */
+    public ParallelScanner(PinnedFile file, ObjectClassHandlerConfiguration configuration, int threads,
+                           boolean preserveOrder, long chunkSize) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("Number of threads must be positive, was " + threads);
+        }
+
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Chunk size must be positive, was " + chunkSize);
+        }
+
+        this.file = file;
+        this.configuration = configuration;
+        this.threads = threads;
+        this.preserveOrder = preserveOrder;
+        this.chunkSize = chunkSize;
+    }
+
+    private static ForkJoinPool getPool(int threads) {
+        return POOLS.computeIfAbsent(threads, ForkJoinPool::new);
+    }
+
+    private static class Chunk<T> {
+
+        private int number;
+        private long start;
+        private long end;
+        private long recordNumber;
+
+        private List<T> results = new ArrayList<>();
+        // rethrown in caller thread, so exception stays the same as in sequential scan
+        private Exception error;
+
+        private Chunk(int number, long start, long end, long recordNumber) {
+            this.number = number;
+            this.start = start;
+            this.end = end;
+            this.recordNumber = recordNumber;
+        }
+    }
+
+    /**
+     * Scans file and passes results to handler. Scan stops when handler returns false.
+     *
+     * @param mapper  creates result for record, returns null if record has to be skipped. Row is valid only during
+     *                call, mapper is called from multiple threads.
+     * @param handler called in caller thread, returns false if scan has to be stopped
+     */
+    public <T> void scan(Function<CsvRow, T> mapper, Predicate<T> handler) throws IOException {
+        long startTime = System.currentTimeMillis();
+
+        AtomicBoolean cancelled = new AtomicBoolean();
+
+        CompletionService<Chunk<T>> service = new ExecutorCompletionService<>(getPool(threads));
+        List<Future<Chunk<T>>> futures = new ArrayList<>();
+        // completed chunks waiting for previous chunks, used only if order is preserved
+        Map<Integer, Chunk<T>> completed = new HashMap<>();
+
+        int submitted = 0;
+        int delivered = 0;
+
+        try (RecordScanner boundaries = new RecordScanner(file.openChannel(), configuration)) {
+
+            boolean hasNext = true;
+            while (true) {
+                while (hasNext && submitted - delivered < threads * CHUNKS_PER_THREAD) {
+                    Chunk<T> chunk = nextChunk(boundaries, submitted);
+                    if (chunk == null) {
+                        hasNext = false;
+                        break;
+                    }
+
+                    futures.add(service.submit(() -> readChunk(chunk, mapper, cancelled)));
+                    submitted++;
+                }
+
+                if (submitted == delivered) {
+                    break;
+                }
+
+                Chunk<T> chunk = take(service);
+                if (!preserveOrder) {
+                    delivered++;
+                    if (!deliver(chunk, handler)) {
+                        break;
+                    }
+                    continue;
+                }
+
+                completed.put(chunk.number, chunk);
+
+                boolean stop = false;
+                while (!stop && (chunk = completed.remove(delivered)) != null) {
+                    delivered++;
+                    stop = !deliver(chunk, handler);
+                }
+
+                if (stop) {
+                    break;
+                }
+            }
+        } finally {
+            cancelled.set(true);
+            for (Future<Chunk<T>> future : futures) {
+                future.cancel(false);
+            }
+        }
+
+        LOG.ok("File {0} scanned in {1} chunks in {2}ms", file.getFile(), submitted,
+                System.currentTimeMillis() - startTime);
+    }
+
+    /**
+     * Moves boundary scanner over records of next chunk.
+     *
+     * @return null if there are no more records
+     */
+    private <T> Chunk<T> nextChunk(RecordScanner boundaries, int number) throws IOException {
+        long start = boundaries.getNextOffset();
+        long recordNumber = boundaries.getRecordNumber();
+
+        if (!boundaries.next()) {
+            return null;
+        }
+
+        while (boundaries.getNextOffset() - start < chunkSize && boundaries.next()) {
+            // only boundaries are needed
+        }
+
+        return new Chunk<>(number, start, boundaries.getNextOffset(), recordNumber);
+    }
+
+    private <T> Chunk<T> readChunk(Chunk<T> chunk, Function<CsvRow, T> mapper, AtomicBoolean cancelled) {
+        try (CsvTokenizer tokenizer = new CsvTokenizer(file.openChannel(),
+                chunk.start, chunk.end, chunk.recordNumber, configuration)) {
+
+            CsvRow row;
+            while (!cancelled.get() && (row = tokenizer.next()) != null) {
+                T result = mapper.apply(row);
+                if (result != null) {
+                    chunk.results.add(result);
+                }
+            }
+        } catch (IOException | RuntimeException ex) {
+            cancelled.set(true);
+            chunk.error = ex;
+        }
+
+        return chunk;
+    }
+
+    private <T> Chunk<T> take(CompletionService<Chunk<T>> service) throws IOException {
+        Chunk<T> chunk;
+        try {
+            chunk = service.take().get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Scan of " + file.getFile() + " was interrupted", ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+
+            throw new IOException(cause);
+        }
+
+        if (chunk.error instanceof IOException) {
+            throw (IOException) chunk.error;
+        }
+        if (chunk.error != null) {
+            throw (RuntimeException) chunk.error;
+        }
+
+        return chunk;
+    }
+
+    private <T> boolean deliver(Chunk<T> chunk, Predicate<T> handler) {
+        for (T result : chunk.results) {
+            if (!handler.test(result)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,422 @@
+package com.evolveum.polygon.connector.csv.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * One version (generation) of csv file pinned by reader. All readers of the same version share one open channel,
+ * so every reader sees the content which file had when it was pinned, even if file is replaced by writer or
+ * records are appended to it in the meantime. Writers don't wait for readers: after file is replaced, next
+ * {@link #pin(File)} opens new generation and old generation is closed when its last reader finishes.
+ * <p>
+ * Channels returned by {@link #openChannel()} are read-only views limited to size of pinned version, each view
+ * has its own position and closing it doesn't close shared channel.
+ *
+ * @author Viliam Repan (lazyman)
+ */
+public class PinnedFile implements Closeable {
+
+    private static final Map<String, Generations> GENERATIONS = new ConcurrentHashMap<>();
+
+    private static final int MAX_OPEN_ATTEMPTS = 10;
+
+    /**
+     * Generations of one file, only the current one can be pinned by new readers.
+     */
+    private static class Generations {
+
+        private Generation current;
+    }
+
+    private static class Generation {
+
+        private FileChannel channel;
+        private FileVersion version;
+
+        private int readers;
+        private boolean retired;
+
+        private Generation(FileChannel channel, FileVersion version) {
+            this.channel = channel;
+            this.version = version;
+        }
+    }
+
+    private File file;
+    private Generations generations;
+    private Generation generation;
+    private boolean closed;
+
+    private PinnedFile(File file, Generations generations, Generation generation) {
+        this.file = file;
+        this.generations = generations;
+        this.generation = generation;
+    }
+
+    /**
+     * Pins current version of file, returned object must be closed when read finishes.
+     */
+    public static PinnedFile pin(File file) throws IOException {
+        Generations generations = GENERATIONS.computeIfAbsent(getKey(file), key -> new Generations());
+
+        synchronized (generations) {
+            Generation current = generations.current;
+            if (current != null && !current.version.equals(FileVersion.of(file))) {
+                // file was replaced or changed by other process
+                retire(current);
+                current = null;
+            }
+
+            if (current == null) {
+                current = open(file);
+                generations.current = current;
+            }
+
+            current.readers++;
+
+            return new PinnedFile(file, generations, current);
+        }
+    }
+
+    /**
+     * Called by writer after it replaced or changed file. Current generation isn't pinned by new readers anymore,
+     * readers which already pinned it continue to read it.
+     */
+    public static void publish(File file) {
+        Generations generations = GENERATIONS.get(getKey(file));
+        if (generations == null) {
+            return;
+        }
+
+        synchronized (generations) {
+            if (generations.current != null) {
+                retire(generations.current);
+                generations.current = null;
+            }
+        }
+    }
+
+    private static String getKey(File file) {
+        try {
+            return file.getCanonicalPath();
+        } catch (IOException ex) {
+            return file.getAbsolutePath();
+        }
+    }
+
+    /**
+     * Version is read before and after channel is opened, so it's known which version channel points to.
+     */
+    private static Generation open(File file) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            FileVersion before = FileVersion.of(file);
+            FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+
+            FileVersion after;
+            try {
+                after = FileVersion.of(file);
+            } catch (IOException | RuntimeException ex) {
+                channel.close();
+                throw ex;
+            }
+
+            if (before.equals(after) || attempt == MAX_OPEN_ATTEMPTS) {
+                return new Generation(channel, after);
+            }
+
+            channel.close();
+        }
+    }
+
+    private static void retire(Generation generation) {
+        generation.retired = true;
+        if (generation.readers == 0) {
+            Util.closeQuietly(generation.channel);
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return version of file which is read by this reader
+     */
+    public FileVersion getVersion() {
+        return generation.version;
+    }
+
+    /**
+     * @return true if pinned version is still the current version of file
+     */
+    public boolean isCurrent() throws IOException {
+        synchronized (generations) {
+            if (generation.retired) {
+                return false;
+            }
+        }
+
+        return generation.version.equals(FileVersion.of(file));
+    }
+
+    /**
+     * @return new read-only view of pinned version, it starts at position 0
+     */
+    public FileChannel openChannel() {
+        if (closed) {
+            throw new IllegalStateException("File " + file + " is not pinned anymore");
+        }
+
+        return new View(generation.channel, generation.version.getSize());
+    }
+
+    @Override
+    public void close() {
+        synchronized (generations) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+
+            generation.readers--;
+            if (generation.retired && generation.readers == 0) {
+                Util.closeQuietly(generation.channel);
+            }
+        }
+    }
+
+    /**
+     * Read-only view of shared channel. All reads are positional reads of shared channel, therefore views can be
+     * used concurrently. Data after size of pinned version aren't visible.
+     */
+    private static class View extends FileChannel {
+
+        private FileChannel channel;
+        private long size;
+        private long position;
+
+        // locks acquired through this view, released when view is closed
+        private List<FileLock> locks = new CopyOnWriteArrayList<>();
+
+        private View(FileChannel channel, long size) {
+            this.channel = channel;
+            this.size = size;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            int read = read(dst, position);
+            if (read > 0) {
+                position += read;
+            }
+
+            return read;
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            long total = 0;
+            for (int i = offset; i < offset + length; i++) {
+                if (!dsts[i].hasRemaining()) {
+                    continue;
+                }
+
+                int read = read(dsts[i]);
+                if (read < 0) {
+                    return total > 0 ? total : -1;
+                }
+
+                total += read;
+                if (dsts[i].hasRemaining()) {
+                    break;
+                }
+            }
+
+            return total;
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            ensureOpen();
+
+            if (position >= size) {
+                return -1;
+            }
+
+            long available = size - position;
+            if (dst.remaining() <= available) {
+                return channel.read(dst, position);
+            }
+
+            // read only up to size of pinned version
+            ByteBuffer limited = dst.duplicate();
+            limited.limit(limited.position() + (int) available);
+
+            int read = channel.read(limited, position);
+            if (read > 0) {
+                dst.position(dst.position() + read);
+            }
+
+            return read;
+        }
+
+        @Override
+        public long position() throws IOException {
+            ensureOpen();
+            return position;
+        }
+
+        @Override
+        public FileChannel position(long newPosition) throws IOException {
+            ensureOpen();
+            if (newPosition < 0) {
+                throw new IllegalArgumentException("Negative position " + newPosition);
+            }
+
+            position = newPosition;
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            ensureOpen();
+            return size;
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            ensureOpen();
+            if (position >= size) {
+                return 0;
+            }
+
+            return channel.transferTo(position, Math.min(count, size - position), target);
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+            ensureOpen();
+            if (mode != MapMode.READ_ONLY) {
+                throw new NonWritableChannelException();
+            }
+
+            return channel.map(mode, position, size);
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public FileChannel truncate(long size) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public void force(boolean metaData) {
+            // nothing to force, view is read-only
+        }
+
+        /**
+         * Shared lock is acquired by shared channel, exclusive lock requires channel open for writing.
+         */
+        @Override
+        public FileLock lock(long position, long size, boolean shared) throws IOException {
+            ensureOpen();
+            if (!shared) {
+                throw new NonWritableChannelException();
+            }
+
+            return addLock(channel.lock(position, size, true));
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+            ensureOpen();
+            if (!shared) {
+                throw new NonWritableChannelException();
+            }
+
+            FileLock lock = channel.tryLock(position, size, true);
+
+            return lock != null ? addLock(lock) : null;
+        }
+
+        private FileLock addLock(FileLock lock) {
+            FileLock viewLock = new ViewLock(this, lock);
+            locks.add(viewLock);
+
+            return viewLock;
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            // shared channel is closed when generation is retired, only locks of this view are released
+            for (FileLock lock : locks) {
+                if (lock.isValid()) {
+                    lock.release();
+                }
+            }
+            locks.clear();
+        }
+
+        private void ensureOpen() throws IOException {
+            if (!isOpen()) {
+                throw new ClosedChannelException();
+            }
+        }
+    }
+
+    /**
+     * Lock of shared channel, {@link #channel()} returns view which acquired it.
+     */
+    private static class ViewLock extends FileLock {
+
+        private FileLock lock;
+
+        private ViewLock(View view, FileLock lock) {
+            super(view, lock.position(), lock.size(), lock.isShared());
+            this.lock = lock;
+        }
+
+        @Override
+        public boolean isValid() {
+            return lock.isValid();
+        }
+
+        @Override
+        public void release() throws IOException {
+            lock.release();
+        }
+    }
+}
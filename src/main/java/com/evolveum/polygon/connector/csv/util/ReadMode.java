@@ -0,0 +1,20 @@
+package com.evolveum.polygon.connector.csv.util;
+
+/**
+ * Defines how csv file is read.
+ *
+ * @author Viliam Repan (lazyman)
+ */
+public enum ReadMode {
+
+    /**
+     * File is read to heap buffers.
+     */
+    STREAM,
+
+    /**
+     * File is read from memory mapped regions. Mapped region is released by garbage collector, on some platforms
+     * (e.g. Windows) file can't be replaced while it's mapped.
+     */
+    MAPPED
+}
@@ -0,0 +1,202 @@
+package com.evolveum.polygon.connector.csv.util;
+
+import com.evolveum.polygon.connector.csv.ObjectClassHandlerConfiguration;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.identityconnectors.common.StringUtil;
+import org.identityconnectors.common.logging.Log;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+/**
+ * Maps values of one csv column to byte offset and length of records in file. Index is valid only for
+ * {@link FileVersion} it was built from. If identifier case is ignored, values are stored in lower case, therefore
+ * records found through index have to be checked by caller.
+ * <p>
+ * Index can be updated while it's used for lookups, updates must be serialized by caller.
+ *
+ * @author Viliam Repan (lazyman)
+ */
+public class RecordIndex {
+
+    private static final Log LOG = Log.getLog(RecordIndex.class);
+
+    public static class Location {
+
+        private long offset;
+        private int length;
+        // next record with the same key, csv file doesn't have to be consistent
+        private volatile Location next;
+
+        public Location(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        public Location getNext() {
+            return next;
+        }
+    }
+
+    private volatile FileVersion version;
+
+    private boolean ignoreCase;
+
+    private Map<String, Location> locations = new ConcurrentHashMap<>();
+
+    public RecordIndex(FileVersion version, boolean ignoreCase) {
+        this.version = version;
+        this.ignoreCase = ignoreCase;
+    }
+
+    public FileVersion getVersion() {
+        return version;
+    }
+
+    public void setVersion(FileVersion version) {
+        this.version = version;
+    }
+
+    public boolean isIgnoreCase() {
+        return ignoreCase;
+    }
+
+    public int size() {
+        return locations.size();
+    }
+
+    public List<Location> find(String value) {
+        if (value == null) {
+            return Collections.emptyList();
+        }
+
+        List<Location> result = new ArrayList<>();
+
+        Location location = locations.get(createKey(value));
+        while (location != null) {
+            result.add(location);
+            location = location.next;
+        }
+
+        return result;
+    }
+
+    /**
+     * @return true if both values are stored under the same key in this index
+     */
+    public boolean keyMatches(String value, String other) {
+        if (value == null || other == null) {
+            return value == other;
+        }
+
+        return createKey(value).equals(createKey(other));
+    }
+
+    public void add(String value, Location location) {
+        String key = createKey(value);
+
+        Location existing = locations.get(key);
+        if (existing == null) {
+            locations.put(key, location);
+            return;
+        }
+
+        while (existing.next != null) {
+            existing = existing.next;
+        }
+        existing.next = location;
+    }
+
+    /**
+     * Visits all locations, locations with the same key are visited in file order.
+     */
+    public void forEach(BiConsumer<String, Location> consumer) {
+        locations.forEach((key, location) -> {
+            while (location != null) {
+                consumer.accept(key, location);
+                location = location.next;
+            }
+        });
+    }
+
+    /**
+     * Creates copy of this index for file changed by splice. Locations of replaced records are not copied,
+     * other locations are moved to their new offsets.
+     */
+    public RecordIndex splice(FileSplice splice, FileVersion version) {
+        RecordIndex index = new RecordIndex(version, ignoreCase);
+
+        locations.forEach((key, location) -> {
+
+            while (location != null) {
+                if (!splice.isReplaced(location.offset)) {
+                    index.add(key, new Location(splice.map(location.offset), location.length));
+                }
+                location = location.next;
+            }
+        });
+
+        return index;
+    }
+
+    private String createKey(String value) {
+        return ignoreCase ? value.toLowerCase(Locale.ROOT) : value;
+    }
+
+    /**
+     * Scans whole csv file and creates index for values in column with specified index. Empty records and records
+     * without value in this column are not indexed.
+     */
+    public static RecordIndex build(PinnedFile file, int column, ObjectClassHandlerConfiguration configuration)
+            throws IOException {
+
+        LOG.ok("Building index for column {0} in {1}", column, file.getFile());
+        long start = System.currentTimeMillis();
+
+        // index is built from pinned version, so it matches that version even if file is replaced meanwhile
+        RecordIndex index = new RecordIndex(file.getVersion(), configuration.isIgnoreIdentifierCase());
+
+        try (CsvTokenizer tokenizer = new CsvTokenizer(file.openChannel(), configuration)) {
+
+            // only value of indexed column is decoded
+            CsvRow row;
+            while ((row = tokenizer.next()) != null) {
+                if (configuration.isHeaderExists() && row.getRecordNumber() == 1) {
+                    continue;
+                }
+
+                String value = column < row.size() ? row.get(column) : null;
+                if (StringUtil.isEmpty(value)) {
+                    continue;
+                }
+
+                index.add(value, new Location(tokenizer.getRecordOffset(), tokenizer.getRecordLength()));
+            }
+        }
+
+        LOG.ok("Index for {0} with {1} values built in {2}ms", file.getFile(), index.size(),
+                System.currentTimeMillis() - start);
+
+        return index;
+    }
+
+    public static CSVRecord parseRecord(String record, CSVFormat csv) throws IOException {
+        CSVParser parser = csv.parse(new StringReader(record));
+        Iterator<CSVRecord> iterator = parser.iterator();
+
+        return iterator.hasNext() ? iterator.next() : null;
+    }
+}
@@ -0,0 +1,468 @@
+package com.evolveum.polygon.connector.csv.util;
+
+import com.evolveum.polygon.connector.csv.ObjectClassHandlerConfiguration;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Finds boundaries of csv records directly in file bytes without decoding them. Scanner understands quote,
+ * escape and comment marker characters the same way as commons-csv lexer does, so line breaks inside quoted or
+ * escaped values don't end record. Record bytes don't contain line terminator.
+ * <p>
+ * Scanner can be used only for encodings where special characters are encoded as single ascii byte which can't
+ * be part of other multibyte character, see {@link #isSupported(Charset)}.
+ * <p>
+ * Boundaries of fields in current record are tracked as well, they're used by {@link CsvTokenizer}.
+ * <p>
+ * In {@link ReadMode#MAPPED} mode file is not read to heap buffer, scanner works directly with mapped regions
+ * of file, next region is mapped when scanner reaches end of current one.
+ *
+ * @author Viliam Repan (lazyman)
+ */
+public class RecordScanner implements Closeable {
+
+    private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private static final int MAPPED_REGION_SIZE = 64 * 1024 * 1024;
+
+    private static final int CR = '\r';
+    private static final int LF = '\n';
+
+    private static final String SPECIAL_CHARACTERS = "\r\n\t ;,|\"'\\#";
+
+    private FileChannel channel;
+    private long end;
+
+    private int delimiter;
+    private int quote;
+    private int escape;
+    private int commentMarker;
+    private boolean ignoreEmptyLines;
+    private boolean ignoreSurroundingSpaces;
+
+    private boolean mapped;
+
+    private ByteBuffer buffer;
+    // file offset of first byte in buffer
+    private long bufferOffset;
+    private int position;
+    private int limit;
+    // start of data which must be kept in buffer when refilling
+    private int mark;
+    private boolean eof;
+
+    private int recordStart;
+    private int recordEnd;
+    private long recordNumber;
+
+    // fields of current record, start and end are indexes to buffer
+    private int fieldCount;
+    private int[] fieldStarts = new int[16];
+    private int[] fieldEnds = new int[16];
+    private boolean[] fieldQuoted = new boolean[16];
+    // field contains escape character or doubled quote, so its bytes can't be decoded directly
+    private boolean[] fieldEscaped = new boolean[16];
+
+    public RecordScanner(FileChannel channel, ObjectClassHandlerConfiguration configuration) {
+        this(channel, 0, Long.MAX_VALUE, 0, configuration);
+    }
+
+    /**
+     * @param start        offset in file where scanning starts, it must be start of record
+     * @param end          records starting at this offset or after it will not be returned
+     * @param recordNumber number of records before start, record numbers continue from it
+     */
+    public RecordScanner(FileChannel channel, long start, long end, long recordNumber,
+                         ObjectClassHandlerConfiguration configuration) {
+        this.channel = channel;
+        this.end = end;
+        this.recordNumber = recordNumber;
+
+        this.delimiter = toByte(configuration.getFieldDelimiter());
+        this.quote = toByte(configuration.getQuote());
+        this.escape = toByte(configuration.getEscape());
+        this.commentMarker = toByte(configuration.getCommentMarker());
+        this.ignoreEmptyLines = configuration.isIgnoreEmptyLines();
+        this.ignoreSurroundingSpaces = configuration.isIgnoreSurroundingSpaces();
+
+        this.mapped = ReadMode.MAPPED.name().equalsIgnoreCase(configuration.getReadMode());
+        this.buffer = mapped ? ByteBuffer.allocate(0) : ByteBuffer.allocate(DEFAULT_BUFFER_SIZE);
+        this.bufferOffset = start;
+    }
+
+    public static boolean isSupported(Charset charset) {
+        if (StandardCharsets.UTF_8.equals(charset)) {
+            return true;
+        }
+
+        if (!charset.canEncode() || charset.newEncoder().maxBytesPerChar() != 1) {
+            return false;
+        }
+
+        byte[] bytes = SPECIAL_CHARACTERS.getBytes(charset);
+        if (bytes.length != SPECIAL_CHARACTERS.length()) {
+            return false;
+        }
+
+        for (int i = 0; i < bytes.length; i++) {
+            if (bytes[i] != SPECIAL_CHARACTERS.charAt(i)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    static boolean isWhitespace(int c) {
+        return c < 128 && Character.isWhitespace(c);
+    }
+
+    private static int toByte(String value) {
+        Character c = Util.toCharacter(value);
+        if (c == null) {
+            return -1;
+        }
+
+        if (c > 127) {
+            throw new IllegalArgumentException("Character '" + c + "' can't be used by record scanner");
+        }
+
+        return c;
+    }
+
+    /**
+     * Moves to next record, comments and ignored empty lines are skipped.
+     *
+     * @return false if there are no more records
+     */
+    public boolean next() throws IOException {
+        while (true) {
+            mark = position;
+            if (getFileOffset(position) >= end || peek() == -1) {
+                return false;
+            }
+
+            int c = peek();
+            if (c == CR || c == LF) {
+                recordStart = mark;
+                recordEnd = position;
+
+                fieldCount = 0;
+                startField(position);
+                endField(position);
+
+                skipLineTerminator();
+
+                if (ignoreEmptyLines) {
+                    continue;
+                }
+
+                recordNumber++;
+                return true;
+            }
+
+            if (c == commentMarker) {
+                skipLine();
+                continue;
+            }
+
+            scanRecord();
+            recordNumber++;
+
+            return true;
+        }
+    }
+
+    /**
+     * @return offset of current record start in file
+     */
+    public long getRecordOffset() {
+        return getFileOffset(recordStart);
+    }
+
+    /**
+     * @return length of current record in bytes, without line terminator
+     */
+    public int getRecordLength() {
+        return recordEnd - recordStart;
+    }
+
+    /**
+     * @return offset in file where next record (or comment, empty line) starts
+     */
+    public long getNextOffset() {
+        return getFileOffset(position);
+    }
+
+    /**
+     * @return number of record, comments and ignored empty lines are not counted, first record has number 1
+     */
+    public long getRecordNumber() {
+        return recordNumber;
+    }
+
+    public String getRecord(Charset charset) {
+        return decode(recordStart, recordEnd, charset);
+    }
+
+    /**
+     * @return byte from current buffer, index is relative to buffer (the same as field start and end)
+     */
+    int getByte(int index) {
+        return buffer.get(index) & 0xff;
+    }
+
+    /**
+     * Decodes bytes from current buffer, mapped bytes are copied only for this range.
+     */
+    String decode(int start, int end, Charset charset) {
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + start, end - start, charset);
+        }
+
+        byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(start + i);
+        }
+
+        return new String(bytes, charset);
+    }
+
+    int getFieldCount() {
+        return fieldCount;
+    }
+
+    int getFieldStart(int index) {
+        return fieldStarts[index];
+    }
+
+    int getFieldEnd(int index) {
+        return fieldEnds[index];
+    }
+
+    boolean isFieldQuoted(int index) {
+        return fieldQuoted[index];
+    }
+
+    boolean isFieldEscaped(int index) {
+        return fieldEscaped[index];
+    }
+
+    private void startField(int index) {
+        if (fieldCount == fieldStarts.length) {
+            int size = fieldStarts.length * 2;
+            fieldStarts = Arrays.copyOf(fieldStarts, size);
+            fieldEnds = Arrays.copyOf(fieldEnds, size);
+            fieldQuoted = Arrays.copyOf(fieldQuoted, size);
+            fieldEscaped = Arrays.copyOf(fieldEscaped, size);
+        }
+
+        fieldStarts[fieldCount] = index;
+        fieldQuoted[fieldCount] = false;
+        fieldEscaped[fieldCount] = false;
+    }
+
+    private void endField(int index) {
+        fieldEnds[fieldCount] = index;
+        fieldCount++;
+    }
+
+    private long getFileOffset(int index) {
+        return bufferOffset + index;
+    }
+
+    private void scanRecord() throws IOException {
+        boolean fieldStart = true;
+        boolean quoted = false;
+
+        fieldCount = 0;
+        startField(position);
+
+        while (true) {
+            int c = read();
+            if (c == -1) {
+                recordEnd = position;
+                endField(position);
+                break;
+            }
+
+            if (quoted) {
+                if (c == escape) {
+                    read();
+                    fieldEscaped[fieldCount] = true;
+                } else if (c == quote) {
+                    if (peek() == quote) {
+                        read();
+                        fieldEscaped[fieldCount] = true;
+                    } else {
+                        quoted = false;
+                    }
+                }
+                continue;
+            }
+
+            if (c == CR || c == LF) {
+                recordEnd = position - 1;
+                endField(position - 1);
+                if (c == CR && peek() == LF) {
+                    read();
+                }
+                break;
+            }
+
+            if (c == delimiter) {
+                endField(position - 1);
+                startField(position);
+                fieldStart = true;
+                continue;
+            }
+
+            if (fieldStart) {
+                if (ignoreSurroundingSpaces && isWhitespace(c)) {
+                    fieldStarts[fieldCount] = position;
+                    continue;
+                }
+
+                fieldStart = false;
+                if (c == quote) {
+                    quoted = true;
+                    fieldQuoted[fieldCount] = true;
+                    continue;
+                }
+            }
+
+            if (c == escape) {
+                read();
+                fieldEscaped[fieldCount] = true;
+            }
+        }
+
+        recordStart = mark;
+    }
+
+    private void skipLine() throws IOException {
+        int c;
+        while ((c = read()) != -1) {
+            if (c == CR || c == LF) {
+                if (c == CR && peek() == LF) {
+                    read();
+                }
+                break;
+            }
+        }
+    }
+
+    private void skipLineTerminator() throws IOException {
+        int c = read();
+        if (c == CR && peek() == LF) {
+            read();
+        }
+    }
+
+    private int read() throws IOException {
+        if (position == limit && !fill()) {
+            return -1;
+        }
+
+        return buffer.get(position++) & 0xff;
+    }
+
+    private int peek() throws IOException {
+        if (position == limit && !fill()) {
+            return -1;
+        }
+
+        return buffer.get(position) & 0xff;
+    }
+
+    /**
+     * Reads more data to buffer, data from mark are preserved (buffer is compacted or enlarged if needed).
+     */
+    private boolean fill() throws IOException {
+        if (eof) {
+            return false;
+        }
+
+        return mapped ? map() : read(buffer.array());
+    }
+
+    private boolean read(byte[] array) throws IOException {
+        if (mark > 0) {
+            System.arraycopy(array, mark, array, 0, limit - mark);
+            shift(mark);
+        }
+
+        if (limit == array.length) {
+            byte[] bigger = new byte[array.length * 2];
+            System.arraycopy(array, 0, bigger, 0, limit);
+            array = bigger;
+            buffer = ByteBuffer.wrap(array);
+        }
+
+        ByteBuffer bb = ByteBuffer.wrap(array, limit, array.length - limit);
+        int read = channel.read(bb, bufferOffset + limit);
+        if (read <= 0) {
+            eof = true;
+            return false;
+        }
+
+        limit += read;
+
+        return true;
+    }
+
+    /**
+     * Maps next region of file, region starts at mark so current record stays in buffer. Regions are smaller
+     * than 2GB, bigger files are mapped region by region.
+     */
+    private boolean map() throws IOException {
+        long offset = bufferOffset + mark;
+        long kept = limit - mark;
+
+        long remaining = channel.size() - offset;
+        if (remaining <= kept) {
+            eof = true;
+            return false;
+        }
+
+        long size = Math.min(remaining, Math.max(MAPPED_REGION_SIZE, kept * 2));
+        size = Math.min(size, Integer.MAX_VALUE);
+        if (size <= kept) {
+            throw new IOException("Record at offset " + offset + " is too big to be mapped");
+        }
+
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+        shift(mark);
+        limit = (int) size;
+
+        return true;
+    }
+
+    /**
+     * Moves indexes after data before mark were removed from buffer.
+     */
+    private void shift(int mark) {
+        bufferOffset += mark;
+        position -= mark;
+        limit -= mark;
+        recordStart = Math.max(0, recordStart - mark);
+        recordEnd = Math.max(0, recordEnd - mark);
+        // fields of record which is being scanned, including started one
+        for (int i = 0; i <= fieldCount && i < fieldStarts.length; i++) {
+            fieldStarts[i] = Math.max(0, fieldStarts[i] - mark);
+            fieldEnds[i] = Math.max(0, fieldEnds[i] - mark);
+        }
+        this.mark = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
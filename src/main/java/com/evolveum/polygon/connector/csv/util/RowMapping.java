@@ -0,0 +1,135 @@
+package com.evolveum.polygon.connector.csv.util;
+
+import com.evolveum.polygon.connector.csv.ObjectClassHandlerConfiguration;
+import org.identityconnectors.framework.common.objects.Name;
+import org.identityconnectors.framework.common.objects.OperationalAttributes;
+import org.identityconnectors.framework.common.objects.Uid;
+
+import java.util.*;
+
+/**
+ * Immutable plan describing how values of csv record are mapped to connector object. It's created once from
+ * header, so record materialization doesn't have to build maps or compare column names.
+ *
+ * @author Viliam Repan (lazyman)
+ */
+public class RowMapping {
+
+    public enum Role {
+
+        UID, UID_AND_NAME, NAME, PASSWORD, ATTRIBUTE,
+
+        /**
+         * Column is not returned, its value is not decoded.
+         */
+        SKIP;
+    }
+
+    private final Role[] roles;
+
+    private final String[] names;
+
+    // connector object attribute name -> column index
+    private final Map<String, Integer> indexes;
+
+    public RowMapping(Map<String, Column> header, ObjectClassHandlerConfiguration configuration) {
+        roles = new Role[header.size()];
+        names = new String[header.size()];
+        indexes = new HashMap<>();
+
+        String unique = configuration.getUniqueAttribute();
+        String name = configuration.getNameAttribute();
+        String password = configuration.getPasswordAttribute();
+
+        header.forEach((key, column) -> {
+
+            int index = column.getIndex();
+            names[index] = key;
+
+            if (key.equals(unique)) {
+                roles[index] = key.equals(name) ? Role.UID_AND_NAME : Role.UID;
+                indexes.put(Uid.NAME, index);
+                if (key.equals(name)) {
+                    indexes.put(Name.NAME, index);
+                }
+            } else if (key.equals(name)) {
+                roles[index] = Role.NAME;
+                indexes.put(Name.NAME, index);
+            } else if (key.equals(password)) {
+                roles[index] = Role.PASSWORD;
+                indexes.put(OperationalAttributes.PASSWORD_NAME, index);
+            } else {
+                roles[index] = Role.ATTRIBUTE;
+                indexes.put(key, index);
+            }
+        });
+    }
+
+    private RowMapping(Role[] roles, String[] names, Map<String, Integer> indexes) {
+        this.roles = roles;
+        this.names = names;
+        this.indexes = indexes;
+    }
+
+    /**
+     * Creates mapping which returns all attributes except password, password is not returned by default.
+     */
+    public RowMapping withoutPassword() {
+        Role[] projected = Arrays.copyOf(roles, roles.length);
+        for (int i = 0; i < projected.length; i++) {
+            if (projected[i] == Role.PASSWORD) {
+                projected[i] = Role.SKIP;
+            }
+        }
+
+        return new RowMapping(projected, names, indexes);
+    }
+
+    /**
+     * Creates mapping which returns only specified attributes, uid and name are always returned.
+     *
+     * @param attributes names of connector object attributes
+     */
+    public RowMapping project(Collection<String> attributes) {
+        Role[] projected = Arrays.copyOf(roles, roles.length);
+        for (int i = 0; i < projected.length; i++) {
+            switch (projected[i]) {
+                case PASSWORD:
+                    if (!attributes.contains(OperationalAttributes.PASSWORD_NAME)) {
+                        projected[i] = Role.SKIP;
+                    }
+                    break;
+                case ATTRIBUTE:
+                    if (!attributes.contains(names[i])) {
+                        projected[i] = Role.SKIP;
+                    }
+                    break;
+            }
+        }
+
+        return new RowMapping(projected, names, indexes);
+    }
+
+    public int size() {
+        return roles.length;
+    }
+
+    public Role getRole(int index) {
+        return roles[index];
+    }
+
+    /**
+     * @return attribute name (column name from header) for column with specified index
+     */
+    public String getName(int index) {
+        return names[index];
+    }
+
+    /**
+     * @return index of column which contains value of connector object attribute, -1 if there's no such column
+     */
+    public int getIndex(String attributeName) {
+        Integer index = indexes.get(attributeName);
+        return index != null ? index : -1;
+    }
+}
@@ -0,0 +1,178 @@
+package com.evolveum.polygon.connector.csv.util;
+
+import com.evolveum.polygon.connector.csv.ObjectClassHandlerConfiguration;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.csv.CSVRecord;
+import org.identityconnectors.common.StringUtil;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Sync snapshot which contains only unique attribute value and 64-bit hash of record values for every record,
+ * ordered by unique attribute value. First record of manifest contains marker, version and column names of csv file.
+ *
+ * @author Viliam Repan (lazyman)
+ */
+public class SyncManifest {
+
+    public static final String MARKER = "csv-sync-manifest";
+
+    public static final String VERSION = "1";
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    /**
+     * FNV-1a hash of record values, value lengths are included so values can't be shifted between columns.
+     */
+    public static long hash(CsvRow values) {
+        long hash = FNV_OFFSET;
+        for (int index = 0; index < values.size(); index++) {
+            String value = values.get(index);
+
+            int length = value != null ? value.length() : -1;
+            hash = mix(hash, length);
+
+            for (int i = 0; i < length; i++) {
+                hash = mix(hash, value.charAt(i));
+            }
+        }
+
+        return hash;
+    }
+
+    private static long mix(long hash, int value) {
+        for (int i = 0; i < 4; i++) {
+            hash ^= (value >>> (i * 8)) & 0xff;
+            hash *= FNV_PRIME;
+        }
+
+        return hash;
+    }
+
+    public static boolean isManifest(File file, ObjectClassHandlerConfiguration configuration) throws IOException {
+        try (Reader reader = Util.createReader(file, configuration)) {
+            Iterator<CSVRecord> iterator = Util.createCsvFormat(configuration).parse(reader).iterator();
+            if (!iterator.hasNext()) {
+                return false;
+            }
+
+            CSVRecord first = iterator.next();
+            return first.size() >= 2 && MARKER.equals(first.get(0)) && VERSION.equals(first.get(1));
+        }
+    }
+
+    /**
+     * Writes manifest for csv file sorted by unique attribute. Records without unique attribute value are skipped.
+     *
+     * @param sorted csv file sorted by unique attribute
+     * @param filter returns true for records which have to be skipped (header, empty records)
+     */
+    public static void write(File sorted, File manifest, List<String> columns, int uidColumn,
+                             ObjectClassHandlerConfiguration configuration, RecordFilter filter) throws IOException {
+
+        File tmp = new File(manifest.getPath() + ".tmp");
+        try (CsvRowReader reader = Util.createRowReader(sorted, configuration);
+             Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp),
+                     configuration.getEncoding()))) {
+
+            CSVPrinter printer = Util.createCsvFormat(configuration).print(writer);
+
+            List<String> first = new ArrayList<>();
+            first.add(MARKER);
+            first.add(VERSION);
+            first.addAll(columns);
+            printer.printRecord(first);
+
+            CsvRow record;
+            while ((record = reader.next()) != null) {
+                if (filter.skip(record) || uidColumn >= record.size() || StringUtil.isEmpty(record.get(uidColumn))) {
+                    continue;
+                }
+
+                printer.printRecord(record.get(uidColumn), Long.toHexString(hash(record)));
+            }
+
+            printer.flush();
+        }
+
+        try {
+            Files.move(tmp.toPath(), manifest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    public interface RecordFilter {
+
+        boolean skip(CsvRow record);
+    }
+
+    /**
+     * Reads entries of manifest in file order.
+     */
+    public static class ManifestReader implements Closeable {
+
+        private Reader reader;
+        private Iterator<CSVRecord> iterator;
+        private List<String> columns = new ArrayList<>();
+
+        private String uid;
+        private long hash;
+
+        public ManifestReader(File manifest, ObjectClassHandlerConfiguration configuration) throws IOException {
+            reader = Util.createReader(manifest, configuration);
+            iterator = Util.createCsvFormat(configuration).parse(reader).iterator();
+
+            CSVRecord first = iterator.hasNext() ? iterator.next() : null;
+            if (first == null || first.size() < 2 || !MARKER.equals(first.get(0))) {
+                throw new ConnectorException("File " + manifest.getName() + " is not sync manifest");
+            }
+
+            if (!VERSION.equals(first.get(1))) {
+                throw new ConnectorException("Unsupported sync manifest version " + first.get(1) + " in "
+                        + manifest.getName());
+            }
+
+            for (int i = 2; i < first.size(); i++) {
+                columns.add(first.get(i));
+            }
+        }
+
+        public List<String> getColumns() {
+            return columns;
+        }
+
+        public boolean next() {
+            if (!iterator.hasNext()) {
+                uid = null;
+                return false;
+            }
+
+            CSVRecord record = iterator.next();
+            uid = record.get(0);
+            hash = Long.parseUnsignedLong(record.get(1), 16);
+
+            return true;
+        }
+
+        public String getUid() {
+            return uid;
+        }
+
+        public long getHash() {
+            return hash;
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+    }
+}
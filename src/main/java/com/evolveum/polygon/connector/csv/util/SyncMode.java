@@ -0,0 +1,25 @@
+package com.evolveum.polygon.connector.csv.util;
+
+/**
+ * Defines how sync snapshots (.sync.timestamp files) are created and compared.
+ *
+ * @author Viliam Repan (lazyman)
+ */
+public enum SyncMode {
+
+    /**
+     * Snapshot is copy of csv file, old snapshot is loaded to memory during sync.
+     */
+    COPY,
+
+    /**
+     * Snapshot is sorted by unique attribute, deltas are computed by merging old and new snapshot record by record.
+     */
+    SORTED,
+
+    /**
+     * Snapshot contains only unique attribute value and hash of every record, sorted by unique attribute.
+     * Deltas are computed by merging sorted csv file with old manifest, delete deltas contain only uid.
+     */
+    MANIFEST
+}
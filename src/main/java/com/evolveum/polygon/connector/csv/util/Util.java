@@ -15,10 +15,17 @@ import org.identityconnectors.framework.common.exceptions.ConnectorIOException;
 import org.identityconnectors.framework.common.objects.Attribute;
 
 import java.io.*;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.*;
@@ -35,6 +42,17 @@ public class Util {
 
     public static final String SYNC_LOCK_EXTENSION = "sync.lock";
 
+    public static final String JOURNAL_EXTENSION = "journal";
+
+    public static final String INDEX_EXTENSION = "idx";
+
+    /**
+     * Time in milliseconds after which lock file is considered stale if it can't be proven that its owner is gone,
+     * i.e. file system doesn't support locks or owner wasn't written for lock file. Owner creates lock file first
+     * and locks it and writes owner afterwards, lease has to be much longer than any pause between these steps.
+     */
+    private static final long STALE_LOCK_LEASE = 10 * 60 * 1000;
+
     public static final String DEFAULT_COLUMN_NAME = "col";
 
     public static void closeQuietly(Closeable closeable) {
@@ -68,21 +86,61 @@ public class Util {
         return new File(config.getTmpFolder(), fileName);
     }
 
+    public static File createJournalPath(ObjectClassHandlerConfiguration config) {
+        return new File(config.getFilePath().getPath() + "." + JOURNAL_EXTENSION);
+    }
+
+    /**
+     * @param column index of indexed column
+     */
+    public static File createIndexPath(ObjectClassHandlerConfiguration config, int column) {
+        String fileName = config.getFilePath().getName() + "." + column + "." + INDEX_EXTENSION;
+        return new File(config.getTmpFolder(), fileName);
+    }
+
     public static FileLock obtainTmpFileLock(ObjectClassHandlerConfiguration config) {
         File tmp = createTmpPath(config);
 
         return obtainTmpFileLock(tmp);
     }
 
+    /**
+     * Threads of this JVM wait for {@link InProcessLock} first, so tmp file is created without retries unless it
+     * was created by other process. Lock has to be released by {@link #releaseTmpFileLock(FileLock, File)}.
+     */
     public static FileLock obtainTmpFileLock(File file) {
         LOG.ok("Obtaining file lock for {0}", file.getPath());
 
+        final long MAX_WAIT = 5 * 1000; // 5 seconds
+
+        long start = System.currentTimeMillis();
+
+        InProcessLock inProcessLock = InProcessLock.of(file);
+        try {
+            if (!inProcessLock.acquire(MAX_WAIT)) {
+                throw new ConnectorIOException("Timeout, couldn't obtain lock for tmp file '" + file.getPath()
+                        + "', " + inProcessLock.getQueueLength() + " threads are waiting");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new ConnectorException(ex);
+        }
+
+        long waited = System.currentTimeMillis() - start;
+
+        try {
+            return obtainTmpFileLock(file, start, MAX_WAIT, waited);
+        } catch (RuntimeException ex) {
+            inProcessLock.release();
+            throw ex;
+        }
+    }
+
+    private static FileLock obtainTmpFileLock(File file, long start, long maxWait, long waited) {
         int attempts = 0;
 
-        final long MAX_WAIT = 5 * 1000; // 5 seconds
         Path path = file.toPath();
 
-        long start = System.currentTimeMillis();
         FileChannel channel;
         while (true) {
             try {
@@ -93,7 +151,12 @@ public class Util {
 
                 break;
             } catch (IOException ex) {
-                if (System.currentTimeMillis() > (start + MAX_WAIT)) {
+                // tmp file was created by other process, which could crash before it deleted tmp file
+                if (file.exists() && reclaimStaleLock(file)) {
+                    continue;
+                }
+
+                if (System.currentTimeMillis() > (start + maxWait)) {
                     throw new ConnectorIOException("Timeout, couldn't create tmp file '" + file.getPath()
                             + "', reason: " + ex.getMessage(), ex);
                 }
@@ -122,11 +185,135 @@ public class Util {
                     + "', reason: " + ex.getMessage(), ex);
         }
 
-        LOG.ok("Lock for file {0} obtained (attempts: {1})", file.getPath(), attempts);
+        try {
+            LockOwner.current(file).write(file);
+        } catch (IOException ex) {
+            LOG.warn("Couldn't write owner of lock file {0}, reason: {1}", file, ex.getMessage());
+        }
+
+        LOG.ok("Lock for file {0} obtained (attempts: {1}, waited in process: {2}ms)", file.getPath(), attempts,
+                waited);
 
         return lock;
     }
 
+    /**
+     * Lock file is stale if no process holds lock on it and its owner was written, OS releases lock also when process
+     * crashes. Owner is written only while lock is held, so lock file without owner could be just created by other
+     * process which didn't lock it yet. Such lock file, or lock file on file system which doesn't support locks,
+     * is stale only when its lease expired. Stale lock file is deleted while it's locked, so no other process can
+     * create new lock file in the meantime.
+     *
+     * @return true if stale lock file was deleted
+     */
+    private static boolean reclaimStaleLock(File file) {
+        Path path = file.toPath();
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            Object fileKey = attributes.fileKey();
+
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                boolean locksSupported = true;
+                try {
+                    if (channel.tryLock() == null) {
+                        return false;
+                    }
+                } catch (OverlappingFileLockException ex) {
+                    // locked in this JVM, e.g. by connector loaded by other class loader
+                    return false;
+                } catch (IOException ex) {
+                    locksSupported = false;
+                }
+
+                if (!Objects.equals(fileKey, Files.readAttributes(path, BasicFileAttributes.class).fileKey())) {
+                    // lock file was replaced before it was opened
+                    return false;
+                }
+
+                long created = attributes.creationTime().toMillis();
+
+                // owner left behind by previous lock file isn't owner of this one
+                LockOwner owner = LockOwner.read(file);
+                if (owner != null && !owner.owns(fileKey != null ? fileKey.toString() : "", created)) {
+                    owner = null;
+                }
+
+                long timestamp = owner != null ? owner.getTimestamp() : created;
+                if ((owner == null || !locksSupported) && System.currentTimeMillis() - timestamp < STALE_LOCK_LEASE) {
+                    return false;
+                }
+
+                LOG.warn("Reclaiming stale lock file {0} created on {1} by {2}", file.getPath(), printDate(timestamp),
+                        owner != null ? owner : "unknown owner");
+
+                LockOwner.delete(file);
+                Files.deleteIfExists(path);
+
+                return true;
+            }
+        } catch (NoSuchFileException ex) {
+            // lock file was deleted by its owner
+            return true;
+        } catch (IOException ex) {
+            LOG.warn("Couldn't check whether lock file {0} is stale, reason: {1}", file.getPath(), ex.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Closes lock obtained by {@link #obtainTmpFileLock(File)}, deletes tmp file and hands in-process lock to next
+     * waiting thread.
+     */
+    public static void releaseTmpFileLock(FileLock lock, File file) {
+        if (lock == null) {
+            return;
+        }
+
+        // file is deleted while it's locked if file system allows it, otherwise after it's closed
+        LockOwner.delete(file);
+        boolean deleted = !file.exists() || file.delete();
+        closeQuietly(lock);
+        if (!deleted) {
+            file.delete();
+        }
+
+        InProcessLock.of(file).release();
+    }
+
+    /**
+     * Replaces target file by source file. Durability defines whether source file and directories are forced
+     * to disk before and after rename.
+     */
+    public static void replaceFile(File source, File target, Durability durability) throws IOException {
+        if (durability != Durability.NONE) {
+            try (FileChannel channel = FileChannel.open(source.toPath(), StandardOpenOption.WRITE)) {
+                channel.force(durability == Durability.FSYNC);
+            }
+        }
+
+        if (durability == Durability.FSYNC) {
+            // directory entry of source file has to be on disk before it's renamed
+            forceDirectory(source.getAbsoluteFile().getParentFile());
+        }
+
+        Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        if (durability == Durability.FSYNC) {
+            forceDirectory(target.getAbsoluteFile().getParentFile());
+        }
+    }
+
+    /**
+     * Directory can't be opened on some platforms (e.g. Windows), rename isn't forced there.
+     */
+    private static void forceDirectory(File directory) {
+        try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException ex) {
+            LOG.ok("Couldn't force directory {0} to disk, reason: {1}", directory, ex.getMessage());
+        }
+    }
+
     public static <T> T getSafeValue(Map<String, Object> map, String key, T defValue, Class<T> type) {
         if (map == null) {
             return defValue;
@@ -156,11 +343,81 @@ public class Util {
     }
 
     public static BufferedReader createReader(File path, ObjectClassHandlerConfiguration configuration) throws IOException {
-        FileInputStream fis = new FileInputStream(path);
+        InputStream fis = ReadMode.MAPPED.name().equalsIgnoreCase(configuration.getReadMode()) ?
+                new MappedFileInputStream(path) : new FileInputStream(path);
         InputStreamReader in = new InputStreamReader(fis, configuration.getEncoding());
         return new BufferedReader(in);
     }
 
+    /**
+     * @param channel channel is closed when reader is closed, e.g. view of {@link PinnedFile}
+     */
+    public static BufferedReader createReader(FileChannel channel, ObjectClassHandlerConfiguration configuration)
+            throws IOException {
+
+        InputStream in = ReadMode.MAPPED.name().equalsIgnoreCase(configuration.getReadMode()) ?
+                new MappedFileInputStream(channel) : Channels.newInputStream(channel);
+        return new BufferedReader(new InputStreamReader(in, configuration.getEncoding()));
+    }
+
+    /**
+     * Creates reader which uses {@link CsvTokenizer} if it's enabled and encoding is supported by it,
+     * otherwise commons-csv parser is used.
+     */
+    public static CsvRowReader createRowReader(File path, ObjectClassHandlerConfiguration configuration)
+            throws IOException {
+
+        if (configuration.isByteTokenizer()
+                && RecordScanner.isSupported(Charset.forName(configuration.getEncoding()))) {
+            return new CsvTokenizer(FileChannel.open(path.toPath(), StandardOpenOption.READ), configuration);
+        }
+
+        return createRowReader(createReader(path, configuration), configuration);
+    }
+
+    /**
+     * @param channel channel is closed when reader is closed, e.g. view of {@link PinnedFile}
+     */
+    public static CsvRowReader createRowReader(FileChannel channel, ObjectClassHandlerConfiguration configuration)
+            throws IOException {
+
+        if (configuration.isByteTokenizer()
+                && RecordScanner.isSupported(Charset.forName(configuration.getEncoding()))) {
+            return new CsvTokenizer(channel, configuration);
+        }
+
+        return createRowReader(createReader(channel, configuration), configuration);
+    }
+
+    private static CsvRowReader createRowReader(Reader reader, ObjectClassHandlerConfiguration configuration)
+            throws IOException {
+
+        try {
+            return CsvRowReader.of(createCsvFormatReader(configuration).parse(reader), reader);
+        } catch (IOException | RuntimeException ex) {
+            closeQuietly(reader);
+            throw ex;
+        }
+    }
+
+    /**
+     * Compares password with raw value from csv file, value isn't wrapped to {@link GuardedString}.
+     * Time of comparison doesn't depend on position of first different character.
+     */
+    public static boolean passwordMatches(GuardedString password, String value) {
+        boolean[] result = new boolean[1];
+        password.access(chars -> {
+
+            int diff = chars.length ^ value.length();
+            for (int i = 0; i < chars.length && i < value.length(); i++) {
+                diff |= chars[i] ^ value.charAt(i);
+            }
+            result[0] = diff == 0;
+        });
+
+        return result[0];
+    }
+
     public static void checkCanReadFile(File file) {
         if (file == null) {
             throw new ConfigurationException("File path is not defined");
@@ -387,10 +644,7 @@ public class Util {
                                         ObjectClassHandlerConfiguration config) {
         Util.closeQuietly(writer);
         Util.closeQuietly(reader);
-        Util.closeQuietly(lock);
-
-        File tmp = Util.createTmpPath(config);
-        tmp.delete();
+        Util.releaseTmpFileLock(lock, Util.createTmpPath(config));
     }
 
     public static String[] listTokenFiles(ObjectClassHandlerConfiguration config) {
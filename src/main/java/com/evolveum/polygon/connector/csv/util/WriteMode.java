@@ -0,0 +1,38 @@
+package com.evolveum.polygon.connector.csv.util;
+
+/**
+ * Defines how create, update and delete operations change csv file.
+ *
+ * @author Viliam Repan (lazyman)
+ */
+public enum WriteMode {
+
+    /**
+     * Whole csv file is rewritten through tmp file for every change.
+     */
+    REWRITE,
+
+    /**
+     * Changed records are appended to journal file next to csv file and overlaid on csv records during reads.
+     * Journal is merged to csv file in background when it's too big or too old.
+     */
+    JOURNAL,
+
+    /**
+     * Changes made concurrently by more threads are collected for a short time and written by one rewrite,
+     * every thread waits until its change is written.
+     */
+    GROUP_COMMIT,
+
+    /**
+     * Changes are queued for dedicated writer thread of csv file, which applies all queued changes as one batch.
+     * Every thread waits until its change is written.
+     */
+    WRITER_THREAD,
+
+    /**
+     * Changes are appended to journal like in {@link #JOURNAL} mode, but journal is flushed to csv file without
+     * blocking writers, changes made during flush stay in journal for next flush.
+     */
+    WRITE_BEHIND
+}
@@ -1,8 +1,11 @@
 package com.evolveum.polygon.connector.csv;
 
 import com.evolveum.polygon.connector.csv.util.CsvTestUtil;
+import com.evolveum.polygon.connector.csv.util.Util;
+import com.evolveum.polygon.connector.csv.util.WriteMode;
 import org.identityconnectors.common.security.GuardedString;
 import org.identityconnectors.framework.api.ConnectorFacade;
+import org.identityconnectors.framework.common.exceptions.AlreadyExistsException;
 import org.identityconnectors.framework.common.exceptions.ConfigurationException;
 import org.identityconnectors.framework.common.exceptions.ConnectorException;
 import org.identityconnectors.framework.common.exceptions.InvalidAttributeValueException;
@@ -10,13 +13,14 @@ import org.identityconnectors.framework.common.objects.*;
 import org.testng.annotations.Test;
 
 import java.io.File;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static org.testng.AssertJUnit.assertEquals;
 import static org.testng.AssertJUnit.assertNotNull;
+import static org.testng.AssertJUnit.fail;
 
 /**
  * Created by Viliam Repan (lazyman).
@@ -70,7 +74,6 @@ public class CreateOpTest extends BaseTest {
         attributes.add(createAttribute(Uid.NAME, NEW_UID));
         attributes.add(createAttribute(ATTR_FIRST_NAME, NEW_FIRST_NAME));
         attributes.add(createAttribute(ATTR_LAST_NAME, NEW_LAST_NAME));
-        attributes.add(AttributeBuilder.buildPassword(new GuardedString(NEW_PASSWORD.toCharArray())));
         assertConnectorObject(attributes, newObject);
 
         Map<String, String> expectedRecord = new HashMap<>();
@@ -117,7 +120,6 @@ public class CreateOpTest extends BaseTest {
         attributes.add(new Name(NEW_UID));
         attributes.add(createAttribute(ATTR_FIRST_NAME, NEW_FIRST_NAME));
         attributes.add(createAttribute(ATTR_LAST_NAME, NEW_LAST_NAME));
-        attributes.add(AttributeBuilder.buildPassword(new GuardedString(NEW_PASSWORD.toCharArray())));
         attributes.add(createAttribute(Uid.NAME, NEW_UID));
         assertConnectorObject(attributes, newObject);
 
@@ -164,7 +166,6 @@ public class CreateOpTest extends BaseTest {
         attributes.add(createAttribute(ATTR_FIRST_NAME, NEW_FIRST_NAME));
         attributes.add(createAttribute(ATTR_LAST_NAME, NEW_LAST_NAME));
         attributes.add(new Name(NEW_UID));
-        attributes.add(AttributeBuilder.buildPassword(new GuardedString(NEW_PASSWORD.toCharArray())));
         assertConnectorObject(attributes, newObject);
 
         Map<String, String> expectedRecord = new HashMap<>();
@@ -210,7 +211,6 @@ public class CreateOpTest extends BaseTest {
         attributes.add(new Name(NEW_LAST_NAME));
         attributes.add(createAttribute(Uid.NAME, NEW_UID));
         attributes.add(createAttribute(ATTR_FIRST_NAME, NEW_FIRST_NAME));
-        attributes.add(AttributeBuilder.buildPassword(new GuardedString(NEW_PASSWORD.toCharArray())));
         assertConnectorObject(attributes, newObject);
 
         Map<String, String> expectedRecord = new HashMap<>();
@@ -248,7 +248,6 @@ public class CreateOpTest extends BaseTest {
         attributes.add(createAttribute(Uid.NAME, NEW_UID));
         attributes.add(createAttribute(ATTR_FIRST_NAME, NEW_FIRST_NAME));
         attributes.add(createAttribute(ATTR_LAST_NAME, NEW_LAST_NAME, SECOND_LAST_NAME));
-        attributes.add(AttributeBuilder.buildPassword(new GuardedString(NEW_PASSWORD.toCharArray())));
         assertConnectorObject(attributes, newObject);
 
         Map<String, String> expectedRecord = new HashMap<>();
@@ -260,4 +259,145 @@ public class CreateOpTest extends BaseTest {
         Map<String, String> realRecord = CsvTestUtil.findRecord(createConfigurationNameEqualsUid(), NEW_UID);
         assertEquals(expectedRecord, realRecord);
     }
+
+    @Test
+    public void createAccountAppendOnCreate() throws Exception {
+        CsvConfiguration config = createConfigurationNameEqualsUid();
+        config.setAppendOnCreate(true);
+        ConnectorFacade connector = setupConnector("/create.csv", config);
+
+        Uid uid = connector.create(ObjectClass.ACCOUNT, createNewAccountAttributes(NEW_UID), null);
+        assertNotNull(uid);
+        assertEquals(NEW_UID, uid.getUidValue());
+
+        ConnectorObject newObject = connector.getObject(ObjectClass.ACCOUNT, uid, null);
+        assertNotNull(newObject);
+        assertEquals(NEW_UID, newObject.getName().getNameValue());
+
+        // record was appended to file without trailing line separator
+        Map<String, String> realRecord = CsvTestUtil.findRecord(createConfigurationNameEqualsUid(), NEW_UID);
+        assertEquals(NEW_LAST_NAME, realRecord.get(ATTR_LAST_NAME));
+
+        ConnectorObject existing = connector.getObject(ObjectClass.ACCOUNT, new Uid("123"), null);
+        assertNotNull(existing);
+    }
+
+    @Test
+    public void createAccountAppendOnCreateMoreAccounts() throws Exception {
+        CsvConfiguration config = createConfigurationNameEqualsUid();
+        config.setAppendOnCreate(true);
+        config.setUidIndex(true);
+        ConnectorFacade connector = setupConnector("/create-empty.csv", config);
+
+        String secondUid = "uid=john,dc=example,dc=com";
+        connector.create(ObjectClass.ACCOUNT, createNewAccountAttributes(NEW_UID), null);
+        connector.create(ObjectClass.ACCOUNT, createNewAccountAttributes(secondUid), null);
+
+        assertNotNull(connector.getObject(ObjectClass.ACCOUNT, new Uid(NEW_UID), null));
+        assertNotNull(connector.getObject(ObjectClass.ACCOUNT, new Uid(secondUid), null));
+
+        assertNotNull(CsvTestUtil.findRecord(createConfigurationNameEqualsUid(), NEW_UID));
+        assertNotNull(CsvTestUtil.findRecord(createConfigurationNameEqualsUid(), secondUid));
+    }
+
+    @Test(expectedExceptions = AlreadyExistsException.class)
+    public void createAccountAppendOnCreateAlreadyExists() throws Exception {
+        CsvConfiguration config = createConfigurationNameEqualsUid();
+        config.setAppendOnCreate(true);
+        ConnectorFacade connector = setupConnector("/create.csv", config);
+
+        connector.create(ObjectClass.ACCOUNT, createNewAccountAttributes(NEW_UID), null);
+        connector.create(ObjectClass.ACCOUNT, createNewAccountAttributes(NEW_UID), null);
+    }
+
+    @Test
+    public void createAccountAppendOnCreateIgnoreCaseAlreadyExists() throws Exception {
+        CsvConfiguration config = createConfigurationNameEqualsUid();
+        config.setAppendOnCreate(true);
+        config.setIgnoreIdentifierCase(true);
+        ConnectorFacade connector = setupConnector("/create.csv", config);
+
+        connector.create(ObjectClass.ACCOUNT, createNewAccountAttributes(NEW_UID), null);
+        try {
+            connector.create(ObjectClass.ACCOUNT, createNewAccountAttributes(NEW_UID.toUpperCase()), null);
+            fail("Account created twice");
+        } catch (AlreadyExistsException ex) {
+            // expected
+        }
+
+        assertNotNull(CsvTestUtil.findRecord(createConfigurationNameEqualsUid(), NEW_UID));
+        assertEquals(null, CsvTestUtil.findRecord(createConfigurationNameEqualsUid(), NEW_UID.toUpperCase()));
+    }
+
+    @Test
+    public void createAccountJournalIgnoreCaseAlreadyExists() throws Exception {
+        CsvConfiguration config = createConfigurationNameEqualsUid();
+        config.setWriteMode(WriteMode.JOURNAL.name());
+        config.setIgnoreIdentifierCase(true);
+        ConnectorFacade connector = setupConnector("/create.csv", config);
+
+        File journal = new File(CSV_FILE_PATH + "." + Util.JOURNAL_EXTENSION);
+        try {
+            connector.create(ObjectClass.ACCOUNT, createNewAccountAttributes(NEW_UID), null);
+
+            try {
+                connector.create(ObjectClass.ACCOUNT, createNewAccountAttributes(NEW_UID.toUpperCase()), null);
+                fail("Account created twice");
+            } catch (AlreadyExistsException ex) {
+                // expected
+            }
+
+            ConnectorObject object = connector.getObject(ObjectClass.ACCOUNT, new Uid(NEW_UID), null);
+            // existing record wasn't replaced by record with upper case uid
+            assertEquals(NEW_UID, object.getUid().getUidValue());
+        } finally {
+            journal.delete();
+        }
+    }
+
+    @Test
+    public void createAccountGroupCommit() throws Exception {
+        CsvConfiguration config = createConfigurationNameEqualsUid();
+        config.setWriteMode(WriteMode.GROUP_COMMIT.name());
+        config.setGroupCommitWindow(50);
+        ConnectorFacade connector = setupConnector("/create-empty.csv", config);
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Uid>> futures = new ArrayList<>();
+            for (int i = 0; i < 16; i++) {
+                String uid = "uid=user" + i + ",dc=example,dc=com";
+                futures.add(executor.submit(() ->
+                        connector.create(ObjectClass.ACCOUNT, createNewAccountAttributes(uid), null)));
+            }
+
+            for (int i = 0; i < futures.size(); i++) {
+                assertEquals("uid=user" + i + ",dc=example,dc=com", futures.get(i).get().getUidValue());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        for (int i = 0; i < 16; i++) {
+            String uid = "uid=user" + i + ",dc=example,dc=com";
+            assertNotNull(CsvTestUtil.findRecord(createConfigurationNameEqualsUid(), uid));
+        }
+
+        try {
+            connector.create(ObjectClass.ACCOUNT, createNewAccountAttributes("uid=user0,dc=example,dc=com"), null);
+            fail("Account created twice");
+        } catch (AlreadyExistsException ex) {
+            // expected
+        }
+    }
+
+    private Set<Attribute> createNewAccountAttributes(String uid) {
+        Set<Attribute> attributes = new HashSet<>();
+        attributes.add(new Name(uid));
+        attributes.add(createAttribute(ATTR_UID, uid));
+        attributes.add(createAttribute(ATTR_FIRST_NAME, NEW_FIRST_NAME));
+        attributes.add(createAttribute(ATTR_LAST_NAME, NEW_LAST_NAME));
+
+        return attributes;
+    }
 }
@@ -10,6 +10,7 @@ import org.testng.AssertJUnit;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import static org.testng.AssertJUnit.assertNotNull;
 import static org.testng.AssertJUnit.assertNull;
 
 /**
@@ -48,4 +49,30 @@ public class DeleteOpTest extends BaseTest {
 
         AssertJUnit.assertEquals(0, handler.getObjects().size());
     }
+
+    @Test
+    public void correctDeleteWithUidIndex() throws Exception {
+        CsvConfiguration config = createConfigurationNameEqualsUid();
+        config.setUidIndex(true);
+        ConnectorFacade connector = setupConnector("/update.csv", config);
+
+        connector.delete(ObjectClass.ACCOUNT, new Uid("miso"), null);
+
+        assertNull(connector.getObject(ObjectClass.ACCOUNT, new Uid("miso"), null));
+        assertNotNull(connector.getObject(ObjectClass.ACCOUNT, new Uid("vilo"), null));
+
+        ListResultHandler handler = new ListResultHandler();
+        connector.search(ObjectClass.ACCOUNT, null, handler, null);
+
+        AssertJUnit.assertEquals(1, handler.getObjects().size());
+    }
+
+    @Test(expectedExceptions = UnknownUidException.class)
+    public void notExistingUidWithUidIndex() throws Exception {
+        CsvConfiguration config = createConfigurationNameEqualsUid();
+        config.setUidIndex(true);
+        ConnectorFacade connector = setupConnector("/delete.csv", config);
+
+        connector.delete(ObjectClass.ACCOUNT, new Uid("unknown"), null);
+    }
 }
@@ -51,4 +51,50 @@ public class ResolveUsernameOpTest extends BaseTest {
         assertNotNull(uid);
         assertEquals(uid.getUidValue(), "vilo");
     }
+
+    @Test
+    public void resolveUsernameNameIndex() throws Exception {
+        CsvConfiguration config = createConfigurationDifferent();
+        config.setNameIndex(true);
+        connector = setupConnector("/authenticate.csv", config);
+
+        Uid uid = connector.resolveUsername(ObjectClass.ACCOUNT, "repan", null);
+
+        assertNotNull(uid);
+        assertEquals(uid.getUidValue(), "vilo");
+    }
+
+    @Test
+    public void resolveUsernameNameIndexIgnoreCase() throws Exception {
+        CsvConfiguration config = createConfigurationDifferent();
+        config.setNameIndex(true);
+        config.setIgnoreIdentifierCase(true);
+        connector = setupConnector("/authenticate.csv", config);
+
+        Uid uid = connector.resolveUsername(ObjectClass.ACCOUNT, "REPAN", null);
+
+        assertNotNull(uid);
+        assertEquals(uid.getUidValue(), "vilo");
+    }
+
+    @Test(expectedExceptions = InvalidCredentialException.class)
+    public void nonExistingUsernameNameIndex() throws Exception {
+        CsvConfiguration config = createConfigurationDifferent();
+        config.setNameIndex(true);
+        connector = setupConnector("/authenticate.csv", config);
+
+        connector.resolveUsername(ObjectClass.ACCOUNT, "unexisting", null);
+    }
+
+    @Test
+    public void resolveUsernameByteTokenizer() throws Exception {
+        CsvConfiguration config = createConfigurationDifferent();
+        config.setByteTokenizer(true);
+        connector = setupConnector("/authenticate.csv", config);
+
+        Uid uid = connector.resolveUsername(ObjectClass.ACCOUNT, "repan", null);
+
+        assertNotNull(uid);
+        assertEquals(uid.getUidValue(), "vilo");
+    }
 }
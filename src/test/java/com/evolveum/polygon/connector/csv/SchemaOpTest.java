@@ -154,6 +154,8 @@ public class SchemaOpTest extends BaseTest {
             }
 
             assertEquals(nativeName, info.getNativeName());
+            // password is returned only if it's requested
+            assertEquals(!password, info.isReturnedByDefault());
         }
 
         assertTrue(found);
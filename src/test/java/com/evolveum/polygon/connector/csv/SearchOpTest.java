@@ -1,15 +1,39 @@
 package com.evolveum.polygon.connector.csv;
 
+import com.evolveum.polygon.connector.csv.util.IndexFile;
 import com.evolveum.polygon.connector.csv.util.ListResultHandler;
+import com.evolveum.polygon.connector.csv.util.PagedResultsCookie;
+import com.evolveum.polygon.connector.csv.util.PinnedFile;
+import com.evolveum.polygon.connector.csv.util.ReadMode;
+import com.evolveum.polygon.connector.csv.util.RecordIndex;
+import com.evolveum.polygon.connector.csv.util.Util;
+import org.identityconnectors.common.security.GuardedString;
 import org.identityconnectors.framework.api.ConnectorFacade;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.objects.AttributeBuilder;
+import org.identityconnectors.framework.common.objects.AttributeUtil;
 import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.Name;
 import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.OperationOptions;
+import org.identityconnectors.framework.common.objects.OperationOptionsBuilder;
+import org.identityconnectors.framework.common.objects.OperationalAttributes;
+import org.identityconnectors.framework.common.objects.SearchResult;
+import org.identityconnectors.framework.common.objects.SortKey;
 import org.identityconnectors.framework.common.objects.Uid;
 import org.identityconnectors.framework.common.objects.filter.EqualsFilter;
+import org.identityconnectors.framework.common.objects.filter.Filter;
+import org.identityconnectors.framework.common.objects.filter.FilterBuilder;
 import org.testng.AssertJUnit;
 import org.testng.annotations.Test;
 
 import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 
 /**
@@ -62,4 +86,360 @@ public class SearchOpTest extends BaseTest {
 
         //todo asserts
     }
+
+    @Test
+    public void findOneWithUidIndex() throws Exception {
+        CsvConfiguration config = createConfiguration();
+        config.setUidIndex(true);
+        ConnectorFacade connector = setupConnector("/search.csv", config);
+
+        ConnectorObject object = connector.getObject(ObjectClass.ACCOUNT, new Uid("vilo"), null);
+        AssertJUnit.assertNotNull(object);
+        AssertJUnit.assertEquals("vilo", object.getUid().getUidValue());
+        AssertJUnit.assertEquals("repan", object.getAttributeByName(ATTR_LAST_NAME).getValue().get(0));
+
+        object = connector.getObject(ObjectClass.ACCOUNT, new Uid("unknown"), null);
+        AssertJUnit.assertNull(object);
+    }
+
+    @Test
+    public void findOneWithUidIndexIgnoreCase() throws Exception {
+        CsvConfiguration config = createConfiguration();
+        config.setUidIndex(true);
+        config.setIgnoreIdentifierCase(true);
+        ConnectorFacade connector = setupConnector("/search.csv", config);
+
+        ConnectorObject object = connector.getObject(ObjectClass.ACCOUNT, new Uid("VILO"), null);
+        AssertJUnit.assertNotNull(object);
+        AssertJUnit.assertEquals("vilo", object.getUid().getUidValue());
+    }
+
+    @Test
+    public void findNotEqualsIgnoreCase() throws Exception {
+        CsvConfiguration config = createConfiguration();
+        config.setIgnoreIdentifierCase(true);
+        ConnectorFacade connector = setupConnector("/search.csv", config);
+
+        // negation isn't translated, framework compares uid case sensitively
+        assertFound(connector, FilterBuilder.not(new EqualsFilter(new Uid("VILO"))), "miso", "vilo");
+        assertFound(connector, FilterBuilder.not(new EqualsFilter(new Uid("vilo"))), "miso");
+    }
+
+    @Test
+    public void findOneWithUidIndexFileChanged() throws Exception {
+        CsvConfiguration config = createConfiguration();
+        config.setUidIndex(true);
+        ConnectorFacade connector = setupConnector("/search.csv", config);
+
+        ConnectorObject object = connector.getObject(ObjectClass.ACCOUNT, new Uid("vilo"), null);
+        AssertJUnit.assertNotNull(object);
+
+        File csv = new File(CSV_FILE_PATH);
+        String content = "firstName;uid;lastName;password\r\n"
+                + "\"john\";\"jdoe\";\"doe\";\"asdf\"\r\n"
+                + "\"viliam\";\"vilo\";\"changed\";\"Z29vZA==\"\r\n";
+        Files.write(csv.toPath(), content.getBytes(StandardCharsets.UTF_8));
+
+        object = connector.getObject(ObjectClass.ACCOUNT, new Uid("vilo"), null);
+        AssertJUnit.assertNotNull(object);
+        AssertJUnit.assertEquals("changed", object.getAttributeByName(ATTR_LAST_NAME).getValue().get(0));
+    }
+
+    @Test
+    public void findWithAttributeFilters() throws Exception {
+        ConnectorFacade connector = setupConnector("/search.csv");
+
+        assertFound(connector, FilterBuilder.startsWith(createAttribute(ATTR_LAST_NAME, "rep")), "vilo");
+        assertFound(connector, FilterBuilder.endsWith(createAttribute(ATTR_LAST_NAME, "df")), "miso");
+        assertFound(connector, FilterBuilder.contains(createAttribute(ATTR_FIRST_NAME, "ich")), "miso");
+        assertFound(connector, FilterBuilder.equalTo(createAttribute(Name.NAME, "vilo")), "vilo");
+        assertFound(connector, FilterBuilder.not(new EqualsFilter(new Uid("vilo"))), "miso");
+        assertFound(connector, FilterBuilder.or(
+                FilterBuilder.equalTo(createAttribute(ATTR_FIRST_NAME, "michal")),
+                FilterBuilder.endsWith(createAttribute(ATTR_LAST_NAME, "pan"))), "miso", "vilo");
+        assertFound(connector, FilterBuilder.and(
+                new EqualsFilter(new Uid("vilo")),
+                FilterBuilder.startsWith(createAttribute(ATTR_FIRST_NAME, "mi"))));
+    }
+
+    @Test
+    public void findWithAttributeFiltersUidIndex() throws Exception {
+        CsvConfiguration config = createConfiguration();
+        config.setUidIndex(true);
+        ConnectorFacade connector = setupConnector("/search.csv", config);
+
+        assertFound(connector, FilterBuilder.and(
+                new EqualsFilter(new Uid("vilo")),
+                FilterBuilder.startsWith(createAttribute(ATTR_FIRST_NAME, "vil"))), "vilo");
+        assertFound(connector, FilterBuilder.and(
+                new EqualsFilter(new Uid("vilo")),
+                FilterBuilder.startsWith(createAttribute(ATTR_FIRST_NAME, "mi"))));
+    }
+
+    @Test
+    public void findWithAttributesToGet() throws Exception {
+        ConnectorFacade connector = setupConnector("/search.csv");
+
+        OperationOptions options = new OperationOptionsBuilder().setAttributesToGet(ATTR_FIRST_NAME).build();
+
+        // filter attribute isn't requested, but objects still have to pass filter
+        ListResultHandler handler = new ListResultHandler();
+        connector.search(ObjectClass.ACCOUNT, FilterBuilder.startsWith(createAttribute(ATTR_LAST_NAME, "rep")),
+                handler, options);
+
+        AssertJUnit.assertEquals(1, handler.getObjects().size());
+
+        ConnectorObject object = handler.getObjects().get(0);
+        AssertJUnit.assertEquals("vilo", object.getUid().getUidValue());
+        AssertJUnit.assertEquals("viliam", object.getAttributeByName(ATTR_FIRST_NAME).getValue().get(0));
+        AssertJUnit.assertNull(object.getAttributeByName(ATTR_LAST_NAME));
+        AssertJUnit.assertNull(object.getAttributeByName(OperationalAttributes.PASSWORD_NAME));
+    }
+
+    @Test
+    public void findPasswordOnlyIfRequested() throws Exception {
+        ConnectorFacade connector = setupConnector("/search.csv");
+
+        ConnectorObject object = connector.getObject(ObjectClass.ACCOUNT, new Uid("vilo"), null);
+        AssertJUnit.assertNull(object.getAttributeByName(OperationalAttributes.PASSWORD_NAME));
+
+        OperationOptions options = new OperationOptionsBuilder()
+                .setAttributesToGet(ATTR_FIRST_NAME, OperationalAttributes.PASSWORD_NAME).build();
+        object = connector.getObject(ObjectClass.ACCOUNT, new Uid("vilo"), options);
+        AssertJUnit.assertEquals(new GuardedString("Z29vZA==".toCharArray()),
+                object.getAttributeByName(OperationalAttributes.PASSWORD_NAME).getValue().get(0));
+    }
+
+    @Test
+    public void findWithPersistentIndex() throws Exception {
+        CsvConfiguration config = createConfiguration();
+        config.setUidIndex(true);
+        config.setPersistentIndex(true);
+        ConnectorFacade connector = setupConnector("/search.csv", config);
+
+        // uid is the second column
+        File index = new File(CSV_FILE_PATH + ".1." + Util.INDEX_EXTENSION);
+        try {
+            assertFound(connector, new EqualsFilter(new Uid("vilo")), "vilo");
+            AssertJUnit.assertTrue(index.exists());
+
+            File csv = new File(CSV_FILE_PATH);
+            try (PinnedFile pinned = PinnedFile.pin(csv)) {
+                RecordIndex loaded = IndexFile.read(index, 1, pinned, false);
+                AssertJUnit.assertNotNull(loaded);
+                AssertJUnit.assertEquals(2, loaded.size());
+            }
+
+            // stored index doesn't match changed csv file, index is rebuilt
+            Files.write(csv.toPath(), "\r\n\"jan\";\"jano\";\"novak\";\"x\"\r\n".getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.APPEND);
+            try (PinnedFile pinned = PinnedFile.pin(csv)) {
+                AssertJUnit.assertNull(IndexFile.read(index, 1, pinned, false));
+            }
+
+            assertFound(connector, new EqualsFilter(new Uid("jano")), "jano");
+        } finally {
+            index.delete();
+        }
+    }
+
+    @Test
+    public void findAllAccountsPaged() throws Exception {
+        ConnectorFacade connector = setupConnector("/search.csv");
+
+        OperationOptions options = new OperationOptionsBuilder().setPageSize(1).build();
+        ListResultHandler handler = new ListResultHandler();
+        SearchResult result = connector.search(ObjectClass.ACCOUNT, null, handler, options);
+
+        AssertJUnit.assertEquals(1, handler.getObjects().size());
+        AssertJUnit.assertEquals("miso", handler.getObjects().get(0).getUid().getUidValue());
+        AssertJUnit.assertNotNull(result.getPagedResultsCookie());
+        // next page starts at offset, also if byte tokenizer isn't enabled
+        AssertJUnit.assertTrue(PagedResultsCookie.parse(result.getPagedResultsCookie()).getOffset() >= 0);
+
+        options = new OperationOptionsBuilder().setPageSize(1)
+                .setPagedResultsCookie(result.getPagedResultsCookie()).build();
+        handler = new ListResultHandler();
+        result = connector.search(ObjectClass.ACCOUNT, null, handler, options);
+
+        AssertJUnit.assertEquals(1, handler.getObjects().size());
+        AssertJUnit.assertEquals("vilo", handler.getObjects().get(0).getUid().getUidValue());
+        AssertJUnit.assertTrue(PagedResultsCookie.parse(result.getPagedResultsCookie()).getOffset() >= 0);
+
+        // only empty records are left
+        options = new OperationOptionsBuilder().setPageSize(1)
+                .setPagedResultsCookie(result.getPagedResultsCookie()).build();
+        handler = new ListResultHandler();
+        result = connector.search(ObjectClass.ACCOUNT, null, handler, options);
+
+        AssertJUnit.assertEquals(0, handler.getObjects().size());
+        AssertJUnit.assertNull(result.getPagedResultsCookie());
+        AssertJUnit.assertEquals(0, result.getRemainingPagedResults());
+    }
+
+    @Test
+    public void findAllAccountsPagedWithOffset() throws Exception {
+        ConnectorFacade connector = setupConnector("/search.csv");
+
+        OperationOptions options = new OperationOptionsBuilder().setPageSize(5).setPagedResultsOffset(2).build();
+        ListResultHandler handler = new ListResultHandler();
+        SearchResult result = connector.search(ObjectClass.ACCOUNT, null, handler, options);
+
+        AssertJUnit.assertEquals(1, handler.getObjects().size());
+        AssertJUnit.assertEquals("vilo", handler.getObjects().get(0).getUid().getUidValue());
+        AssertJUnit.assertNull(result.getPagedResultsCookie());
+        AssertJUnit.assertEquals(0, result.getRemainingPagedResults());
+    }
+
+    @Test(expectedExceptions = ConnectorException.class)
+    public void findPagedAfterFileChange() throws Exception {
+        ConnectorFacade connector = setupConnector("/search.csv");
+
+        OperationOptions options = new OperationOptionsBuilder().setPageSize(1).build();
+        SearchResult result = connector.search(ObjectClass.ACCOUNT, null, new ListResultHandler(), options);
+
+        connector.delete(ObjectClass.ACCOUNT, new Uid("vilo"), null);
+
+        options = new OperationOptionsBuilder().setPageSize(1)
+                .setPagedResultsCookie(result.getPagedResultsCookie()).build();
+        connector.search(ObjectClass.ACCOUNT, null, new ListResultHandler(), options);
+    }
+
+    @Test
+    public void findDuringFileChange() throws Exception {
+        ConnectorFacade connector = setupConnector("/search.csv");
+
+        List<ConnectorObject> objects = new ArrayList<>();
+        connector.search(ObjectClass.ACCOUNT, null, object -> {
+            if (objects.isEmpty()) {
+                // file is replaced while search reads it
+                connector.update(ObjectClass.ACCOUNT, new Uid("vilo"),
+                        new HashSet<>(Arrays.asList(AttributeBuilder.build(ATTR_LAST_NAME, "changed"))), null);
+            }
+            return objects.add(object);
+        }, null);
+
+        // search reads version of file which was current when search started
+        AssertJUnit.assertEquals(2, objects.size());
+        AssertJUnit.assertEquals("repan",
+                AttributeUtil.getStringValue(objects.get(1).getAttributeByName(ATTR_LAST_NAME)));
+
+        ListResultHandler handler = new ListResultHandler();
+        connector.search(ObjectClass.ACCOUNT, new EqualsFilter(new Uid("vilo")), handler, null);
+        AssertJUnit.assertEquals("changed",
+                AttributeUtil.getStringValue(handler.getObjects().get(0).getAttributeByName(ATTR_LAST_NAME)));
+    }
+
+    @Test
+    public void findAllAccountsSorted() throws Exception {
+        CsvConfiguration config = createConfiguration();
+        // every record is sorted in separate run
+        config.setSortBufferSize(1);
+        ConnectorFacade connector = setupConnector("/search.csv", config);
+
+        OperationOptions options = new OperationOptionsBuilder()
+                .setSortKeys(new SortKey(ATTR_LAST_NAME, false)).build();
+        ListResultHandler handler = new ListResultHandler();
+        connector.search(ObjectClass.ACCOUNT, null, handler, options);
+
+        List<String> uids = new ArrayList<>();
+        for (ConnectorObject object : handler.getObjects()) {
+            uids.add(object.getUid().getUidValue());
+        }
+        AssertJUnit.assertEquals(Arrays.asList("vilo", "miso"), uids);
+
+        // next page is read from the same sorted copy
+        options = new OperationOptionsBuilder().setPageSize(1)
+                .setSortKeys(new SortKey(ATTR_LAST_NAME, false)).build();
+        handler = new ListResultHandler();
+        SearchResult result = connector.search(ObjectClass.ACCOUNT, null, handler, options);
+        AssertJUnit.assertEquals("vilo", handler.getObjects().get(0).getUid().getUidValue());
+
+        options = new OperationOptionsBuilder().setPageSize(1).setPagedResultsCookie(result.getPagedResultsCookie())
+                .setSortKeys(new SortKey(ATTR_LAST_NAME, false)).build();
+        handler = new ListResultHandler();
+        connector.search(ObjectClass.ACCOUNT, null, handler, options);
+        AssertJUnit.assertEquals(1, handler.getObjects().size());
+        AssertJUnit.assertEquals("miso", handler.getObjects().get(0).getUid().getUidValue());
+    }
+
+    private void assertFound(ConnectorFacade connector, Filter filter, String... uids) {
+        ListResultHandler handler = new ListResultHandler();
+        connector.search(ObjectClass.ACCOUNT, filter, handler, null);
+
+        List<String> found = new ArrayList<>();
+        for (ConnectorObject object : handler.getObjects()) {
+            found.add(object.getUid().getUidValue());
+        }
+
+        AssertJUnit.assertEquals(Arrays.asList(uids), found);
+    }
+
+    @Test
+    public void findAllAccountsByteTokenizer() throws Exception {
+        ConnectorFacade connector = setupConnector("/search.csv");
+
+        ListResultHandler expected = new ListResultHandler();
+        connector.search(ObjectClass.ACCOUNT, null, expected, null);
+
+        CsvConfiguration config = createConfiguration();
+        config.setByteTokenizer(true);
+        connector = setupConnector("/search.csv", config);
+
+        ListResultHandler handler = new ListResultHandler();
+        connector.search(ObjectClass.ACCOUNT, null, handler, null);
+
+        AssertJUnit.assertEquals(2, handler.getObjects().size());
+        AssertJUnit.assertEquals(expected.getObjects(), handler.getObjects());
+    }
+
+    @Test
+    public void findAllAccountsMappedReadMode() throws Exception {
+        ConnectorFacade connector = setupConnector("/search.csv");
+
+        ListResultHandler expected = new ListResultHandler();
+        connector.search(ObjectClass.ACCOUNT, null, expected, null);
+
+        CsvConfiguration config = createConfiguration();
+        config.setReadMode(ReadMode.MAPPED.name());
+        connector = setupConnector("/search.csv", config);
+
+        ListResultHandler handler = new ListResultHandler();
+        connector.search(ObjectClass.ACCOUNT, null, handler, null);
+        AssertJUnit.assertEquals(expected.getObjects(), handler.getObjects());
+
+        config = createConfiguration();
+        config.setReadMode(ReadMode.MAPPED.name());
+        config.setByteTokenizer(true);
+        connector = setupConnector("/search.csv", config);
+
+        handler = new ListResultHandler();
+        connector.search(ObjectClass.ACCOUNT, null, handler, null);
+        AssertJUnit.assertEquals(expected.getObjects(), handler.getObjects());
+    }
+
+    @Test
+    public void findAllAccountsParallelScan() throws Exception {
+        ConnectorFacade connector = setupConnector("/search.csv");
+
+        ListResultHandler expected = new ListResultHandler();
+        connector.search(ObjectClass.ACCOUNT, null, expected, null);
+
+        CsvConfiguration config = createConfiguration();
+        config.setScanThreads(4);
+        connector = setupConnector("/search.csv", config);
+
+        ListResultHandler handler = new ListResultHandler();
+        connector.search(ObjectClass.ACCOUNT, null, handler, null);
+        AssertJUnit.assertEquals(expected.getObjects(), handler.getObjects());
+
+        config = createConfiguration();
+        config.setScanThreads(4);
+        config.setPreserveScanOrder(false);
+        connector = setupConnector("/search.csv", config);
+
+        handler = new ListResultHandler();
+        connector.search(ObjectClass.ACCOUNT, null, handler, null);
+        AssertJUnit.assertEquals(new HashSet<>(expected.getObjects()), new HashSet<>(handler.getObjects()));
+    }
 }
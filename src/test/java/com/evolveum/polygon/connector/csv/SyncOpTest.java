@@ -1,6 +1,10 @@
 package com.evolveum.polygon.connector.csv;
 
 import com.evolveum.polygon.connector.csv.util.CsvTestUtil;
+import com.evolveum.polygon.connector.csv.util.LockOwner;
+import com.evolveum.polygon.connector.csv.util.ReadMode;
+import com.evolveum.polygon.connector.csv.util.SyncManifest;
+import com.evolveum.polygon.connector.csv.util.SyncMode;
 import com.evolveum.polygon.connector.csv.util.Util;
 import org.apache.commons.io.FileUtils;
 import org.identityconnectors.common.security.GuardedString;
@@ -12,10 +16,9 @@ import org.testng.AssertJUnit;
 import org.testng.annotations.Test;
 
 import java.io.File;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
 
 import static org.testng.Assert.assertTrue;
 import static org.testng.AssertJUnit.assertEquals;
@@ -34,8 +37,10 @@ public class SyncOpTest extends BaseTest {
         File oldSyncFile = new File("./target/data.csv.sync.1300734815289");
         FileUtils.copyFile(new File(TEMPLATE_FOLDER_PATH, "sync.csv.1300734815289"), oldSyncFile);
 
+        // lock file is locked, as if it was held by other process
         File lock = new File("./target/data.csv." + Util.SYNC_LOCK_EXTENSION);
-        lock.createNewFile();
+        FileChannel channel = FileChannel.open(lock.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        channel.lock();
 
         try {
             SyncToken oldToken = connector.getLatestSyncToken(ObjectClass.ACCOUNT);
@@ -43,9 +48,69 @@ public class SyncOpTest extends BaseTest {
 
             final List<SyncDelta> deltas = new ArrayList<>();
             connector.sync(ObjectClass.ACCOUNT, oldToken, delta -> true, null);
+        } finally {
+            CsvTestUtil.deleteAllSyncFiles();
+            channel.close();
+            lock.delete();
+        }
+    }
+
+    @Test
+    public void syncStaleLock() throws Exception {
+        CsvConfiguration config = createConfiguration();
+        config.setTrim(true);
+        ConnectorFacade connector = setupConnector("/sync.csv", config);
+
+        File oldSyncFile = new File("./target/data.csv.sync.1300734815289");
+        FileUtils.copyFile(new File(TEMPLATE_FOLDER_PATH, "sync.csv.1300734815289"), oldSyncFile);
+
+        // lock file left by process which crashed, nobody holds lock on it
+        File lock = new File("./target/data.csv." + Util.SYNC_LOCK_EXTENSION);
+        lock.createNewFile();
+        new LockOwner("1", "crashed", System.currentTimeMillis() - 60000, LockOwner.getFileKey(lock)).write(lock);
+
+        try {
+            SyncToken oldToken = connector.getLatestSyncToken(ObjectClass.ACCOUNT);
+
+            long start = System.currentTimeMillis();
+
+            final List<SyncDelta> deltas = new ArrayList<>();
+            connector.sync(ObjectClass.ACCOUNT, oldToken, delta -> deltas.add(delta), null);
+
+            AssertJUnit.assertEquals(3, deltas.size());
+            assertTrue(System.currentTimeMillis() - start < 5000, "sync waited for lock timeout");
+            assertTrue(!lock.exists(), "stale lock file wasn't deleted");
+            assertTrue(!LockOwner.createPath(lock).exists(), "stale lock owner wasn't deleted");
         } finally {
             CsvTestUtil.deleteAllSyncFiles();
             lock.delete();
+            LockOwner.delete(lock);
+        }
+    }
+
+    @Test(expectedExceptions = ConnectorException.class)
+    public void syncLockWithoutOwner() throws Exception {
+        CsvConfiguration config = createConfiguration();
+        config.setTrim(true);
+        ConnectorFacade connector = setupConnector("/sync.csv", config);
+
+        File oldSyncFile = new File("./target/data.csv.sync.1300734815289");
+        FileUtils.copyFile(new File(TEMPLATE_FOLDER_PATH, "sync.csv.1300734815289"), oldSyncFile);
+
+        // lock file was just created by other process, which didn't lock it yet, owner is left by previous lock file
+        File lock = new File("./target/data.csv." + Util.SYNC_LOCK_EXTENSION);
+        new LockOwner("1", "previous", System.currentTimeMillis() - 60000, "").write(lock);
+        lock.createNewFile();
+
+        try {
+            SyncToken oldToken = connector.getLatestSyncToken(ObjectClass.ACCOUNT);
+            connector.sync(ObjectClass.ACCOUNT, oldToken, delta -> true, null);
+        } finally {
+            assertTrue(lock.exists(), "lock file of live owner was reclaimed");
+
+            CsvTestUtil.deleteAllSyncFiles();
+            lock.delete();
+            LockOwner.delete(lock);
         }
     }
 
@@ -74,6 +139,131 @@ public class SyncOpTest extends BaseTest {
     public void syncTest() throws Exception {
         CsvConfiguration config = createConfiguration();
         config.setTrim(true);
+
+        syncTest(config);
+    }
+
+    @Test
+    public void syncTestSorted() throws Exception {
+        CsvConfiguration config = createConfiguration();
+        config.setTrim(true);
+        config.setSyncMode(SyncMode.SORTED.name());
+
+        syncTest(config);
+    }
+
+    @Test
+    public void syncTestSortedSmallBuffer() throws Exception {
+        CsvConfiguration config = createConfiguration();
+        config.setTrim(true);
+        config.setSyncMode(SyncMode.SORTED.name());
+        // every record is sorted in separate run
+        config.setSortBufferSize(1);
+
+        syncTest(config);
+    }
+
+    @Test
+    public void syncTestSortedByteTokenizer() throws Exception {
+        CsvConfiguration config = createConfiguration();
+        config.setTrim(true);
+        config.setSyncMode(SyncMode.SORTED.name());
+        config.setByteTokenizer(true);
+
+        syncTest(config);
+    }
+
+    @Test
+    public void syncTestMappedReadMode() throws Exception {
+        CsvConfiguration config = createConfiguration();
+        config.setTrim(true);
+        config.setReadMode(ReadMode.MAPPED.name());
+
+        syncTest(config);
+    }
+
+    @Test
+    public void syncTestManifest() throws Exception {
+        CsvConfiguration config = createConfiguration();
+        config.setTrim(true);
+        config.setSyncMode(SyncMode.MANIFEST.name());
+        ConnectorFacade connector = setupConnector("/sync.csv", config);
+
+        File oldSyncFile = new File("./target/data.csv.sync.1300734815289");
+        FileUtils.copyFile(new File(TEMPLATE_FOLDER_PATH, "sync.csv.1300734815289"), oldSyncFile);
+
+        try {
+            SyncToken oldToken = connector.getLatestSyncToken(ObjectClass.ACCOUNT);
+
+            // old snapshot is copy of csv file, it's converted to manifest
+            final List<SyncDelta> deltas = new ArrayList<>();
+            connector.sync(ObjectClass.ACCOUNT, oldToken, delta -> deltas.add(delta), null);
+
+            AssertJUnit.assertEquals(3, deltas.size());
+
+            SyncToken token = connector.getLatestSyncToken(ObjectClass.ACCOUNT);
+            File manifest = new File("./target/data.csv.sync." + token.getValue());
+            assertTrue(FileUtils.readFileToString(manifest).startsWith(SyncManifest.MARKER), "not a manifest");
+
+            Map<String, SyncDelta> deltaMap = createSyncDeltaTestMap(token);
+            for (SyncDelta delta : deltas) {
+                SyncDelta expected = deltaMap.remove(delta.getUid().getUidValue());
+                if (SyncDeltaType.DELETE == delta.getDeltaType()) {
+                    // manifest doesn't contain deleted record values
+                    assertEquals(expected.getDeltaType(), delta.getDeltaType());
+                    assertEquals(null, delta.getObject());
+                } else {
+                    assertEquals(expected, delta);
+                }
+            }
+            assertTrue(deltaMap.isEmpty(), "deltas didn't match");
+
+            // next sync uses manifest created by previous one
+            connector.delete(ObjectClass.ACCOUNT, new Uid("apple"), null);
+
+            deltas.clear();
+            connector.sync(ObjectClass.ACCOUNT, token, delta -> deltas.add(delta), null);
+
+            AssertJUnit.assertEquals(1, deltas.size());
+            assertEquals(SyncDeltaType.DELETE, deltas.get(0).getDeltaType());
+            assertEquals(new Uid("apple"), deltas.get(0).getUid());
+        } finally {
+            CsvTestUtil.deleteAllSyncFiles();
+        }
+    }
+
+    @Test
+    public void syncTestAttributesToGet() throws Exception {
+        CsvConfiguration config = createConfiguration();
+        config.setTrim(true);
+        ConnectorFacade connector = setupConnector("/sync.csv", config);
+
+        File oldSyncFile = new File("./target/data.csv.sync.1300734815289");
+        FileUtils.copyFile(new File(TEMPLATE_FOLDER_PATH, "sync.csv.1300734815289"), oldSyncFile);
+
+        try {
+            SyncToken oldToken = connector.getLatestSyncToken(ObjectClass.ACCOUNT);
+
+            OperationOptions options = new OperationOptionsBuilder().setAttributesToGet(ATTR_FIRST_NAME).build();
+
+            final List<SyncDelta> deltas = new ArrayList<>();
+            connector.sync(ObjectClass.ACCOUNT, oldToken, delta -> deltas.add(delta), options);
+
+            AssertJUnit.assertEquals(3, deltas.size());
+            for (SyncDelta delta : deltas) {
+                Set<String> names = new HashSet<>();
+                for (Attribute attribute : delta.getObject().getAttributes()) {
+                    names.add(attribute.getName());
+                }
+
+                assertEquals(new HashSet<>(Arrays.asList(Uid.NAME, Name.NAME, ATTR_FIRST_NAME)), names);
+            }
+        } finally {
+            CsvTestUtil.deleteAllSyncFiles();
+        }
+    }
+
+    private void syncTest(CsvConfiguration config) throws Exception {
         ConnectorFacade connector = setupConnector("/sync.csv", config);
 
         File oldSyncFile = new File("./target/data.csv.sync.1300734815289");
@@ -120,7 +310,6 @@ public class SyncOpTest extends BaseTest {
         cBuilder.setObjectClass(ObjectClass.ACCOUNT);
         cBuilder.addAttribute(ATTR_FIRST_NAME, "viliam");
         cBuilder.addAttribute(ATTR_LAST_NAME, "repan");
-        cBuilder.addAttribute(OperationalAttributes.PASSWORD_NAME, new GuardedString("Z29vZA==".toCharArray()));
         builder.setObject(cBuilder.build());
 
         map.put("vilo", builder.build());
@@ -138,7 +327,6 @@ public class SyncOpTest extends BaseTest {
         cBuilder.setObjectClass(ObjectClass.ACCOUNT);
         cBuilder.addAttribute(ATTR_FIRST_NAME, "michal");
         cBuilder.addAttribute(ATTR_LAST_NAME, "LastnameChange");
-        cBuilder.addAttribute(OperationalAttributes.PASSWORD_NAME, new GuardedString("Z29vZA==".toCharArray()));
 
         builder.setObject(cBuilder.build());
         map.put("miso", builder.build());
@@ -156,7 +344,6 @@ public class SyncOpTest extends BaseTest {
         cBuilder.setObjectClass(ObjectClass.ACCOUNT);
         cBuilder.addAttribute(ATTR_FIRST_NAME, "small");
         cBuilder.addAttribute(ATTR_LAST_NAME, "smallAppleChange");
-        cBuilder.addAttribute(OperationalAttributes.PASSWORD_NAME, new GuardedString("Z29vZA==".toCharArray()));
 
         builder.setObject(cBuilder.build());
         map.put("apple", builder.build());
@@ -54,7 +54,6 @@ public class UpdateAttributeValuesOpTest extends UpdateOpTest {
         attributes.add(createAttribute(Uid.NAME, VILO_UID));
         attributes.add(createAttribute(ATTR_FIRST_NAME, VILO_FIRST_NAME));
         attributes.add(createAttribute(ATTR_LAST_NAME, VILO_LAST_NAME, CHANGED_VALUE));
-        attributes.add(AttributeBuilder.buildPassword(new GuardedString(VILO_PASSWORD.toCharArray())));
         assertConnectorObject(attributes, object);
 
         Map<String, String> expectedRecord = new HashMap<>();
@@ -89,7 +88,6 @@ public class UpdateAttributeValuesOpTest extends UpdateOpTest {
         attributes.add(createAttribute(Uid.NAME, VILO_UID));
         attributes.add(createAttribute(ATTR_FIRST_NAME, VILO_FIRST_NAME));
         attributes.add(createAttribute(ATTR_LAST_NAME, VILO_LAST_NAME));
-        attributes.add(AttributeBuilder.buildPassword(new GuardedString(VILO_PASSWORD.toCharArray())));
         assertConnectorObject(attributes, object);
 
         Map<String, String> expectedRecord = new HashMap<>();
@@ -123,7 +121,6 @@ public class UpdateAttributeValuesOpTest extends UpdateOpTest {
         attributes.add(new Name(VILO_UID));
         attributes.add(createAttribute(Uid.NAME, VILO_UID));
         attributes.add(createAttribute(ATTR_FIRST_NAME, VILO_FIRST_NAME));
-        attributes.add(AttributeBuilder.buildPassword(new GuardedString(VILO_PASSWORD.toCharArray())));
         assertConnectorObject(attributes, object);
 
         Map<String, String> expectedRecord = new HashMap<>();
@@ -158,7 +155,6 @@ public class UpdateAttributeValuesOpTest extends UpdateOpTest {
         attributes.add(createAttribute(Uid.NAME, VILO_UID));
         attributes.add(createAttribute(ATTR_FIRST_NAME, VILO_FIRST_NAME));
         attributes.add(createAttribute(ATTR_LAST_NAME, VILO_LAST_NAME));
-        attributes.add(AttributeBuilder.buildPassword(new GuardedString(VILO_PASSWORD.toCharArray())));
         assertConnectorObject(attributes, object);
 
         Map<String, String> expectedRecord = new HashMap<>();
@@ -1,9 +1,15 @@
 package com.evolveum.polygon.connector.csv;
 
 import com.evolveum.polygon.connector.csv.util.CsvTestUtil;
+import com.evolveum.polygon.connector.csv.util.Durability;
+import com.evolveum.polygon.connector.csv.util.InProcessLock;
+import com.evolveum.polygon.connector.csv.util.Util;
+import com.evolveum.polygon.connector.csv.util.WriteMode;
 import org.identityconnectors.common.Base64;
+import org.identityconnectors.common.logging.Log;
 import org.identityconnectors.common.security.GuardedString;
 import org.identityconnectors.framework.api.ConnectorFacade;
+import org.identityconnectors.framework.common.exceptions.AlreadyExistsException;
 import org.identityconnectors.framework.common.exceptions.ConnectorException;
 import org.identityconnectors.framework.common.exceptions.InvalidAttributeValueException;
 import org.identityconnectors.framework.common.exceptions.UnknownUidException;
@@ -11,13 +17,21 @@ import org.identityconnectors.framework.common.objects.*;
 import org.testng.AssertJUnit;
 import org.testng.annotations.Test;
 
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
 import static org.testng.AssertJUnit.assertNotNull;
+import static org.testng.AssertJUnit.assertNull;
+import static org.testng.AssertJUnit.assertTrue;
 import static org.testng.AssertJUnit.fail;
 
 /**
@@ -25,6 +39,8 @@ import static org.testng.AssertJUnit.fail;
  */
 public class UpdateOpTest extends BaseTest {
 
+    private static final Log LOG = Log.getLog(UpdateOpTest.class);
+
     public static final String TEMPLATE_UPDATE = "/update.csv";
 
     public static final String VILO_UID = "vilo";
@@ -82,7 +98,6 @@ public class UpdateOpTest extends BaseTest {
         attributes.add(createAttribute(Uid.NAME, CHANGED_VALUE));
         attributes.add(createAttribute(ATTR_FIRST_NAME, VILO_FIRST_NAME));
         attributes.add(createAttribute(ATTR_LAST_NAME, VILO_LAST_NAME));
-        attributes.add(AttributeBuilder.buildPassword(new GuardedString(VILO_PASSWORD.toCharArray())));
         assertConnectorObject(attributes, object);
 
         Map<String, String> expectedRecord = new HashMap<>();
@@ -95,6 +110,255 @@ public class UpdateOpTest extends BaseTest {
         assertEquals(expectedRecord, realRecord);
     }
 
+    @Test
+    public void updateConcurrently() throws Exception {
+        ConnectorFacade connector = setupConnector(TEMPLATE_UPDATE, createConfigurationNameEqualsUid());
+
+        InProcessLock lock = InProcessLock.of(new File(CSV_FILE_PATH + "." + Util.TMP_EXTENSION));
+        long acquisitions = lock.getAcquisitions();
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Uid>> futures = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                Set<Attribute> attributes = new HashSet<>();
+                attributes.add(AttributeBuilder.build(ATTR_FIRST_NAME, "name" + i));
+
+                futures.add(executor.submit(() ->
+                        connector.update(ObjectClass.ACCOUNT, new Uid(VILO_UID), attributes, null)));
+            }
+
+            // threads wait in queue for lock, none of them times out
+            for (Future<Uid> future : futures) {
+                assertEquals(new Uid(VILO_UID), future.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertTrue(lock.getAcquisitions() >= acquisitions + 20);
+        assertEquals(0, lock.getQueueLength());
+        assertEquals(VILO_LAST_NAME, CsvTestUtil.findRecord(createConfigurationNameEqualsUid(), VILO_UID)
+                .get(ATTR_LAST_NAME));
+    }
+
+    @Test
+    public void updateWriterThread() throws Exception {
+        CsvConfiguration config = createConfigurationNameEqualsUid();
+        config.setWriteMode(WriteMode.WRITER_THREAD.name());
+        ConnectorFacade connector = setupConnector(TEMPLATE_UPDATE, config);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Uid>> futures = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                Set<Attribute> attributes = new HashSet<>();
+                attributes.add(AttributeBuilder.build(ATTR_FIRST_NAME, "name" + i));
+
+                futures.add(executor.submit(() ->
+                        connector.update(ObjectClass.ACCOUNT, new Uid(VILO_UID), attributes, null)));
+            }
+
+            for (Future<Uid> future : futures) {
+                assertEquals(new Uid(VILO_UID), future.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Map<String, String> record = CsvTestUtil.findRecord(createConfigurationNameEqualsUid(), VILO_UID);
+        assertTrue(record.get(ATTR_FIRST_NAME).startsWith("name"));
+        assertEquals(VILO_LAST_NAME, record.get(ATTR_LAST_NAME));
+
+        // failure of change is reported to thread which submitted it
+        try {
+            connector.update(ObjectClass.ACCOUNT, new Uid("unknown"), new HashSet<>(Arrays.asList(
+                    AttributeBuilder.build(ATTR_FIRST_NAME, CHANGED_VALUE))), null);
+            fail("Unknown uid updated");
+        } catch (UnknownUidException ex) {
+            // expected
+        }
+    }
+
+    /**
+     * Compares cost of durability levels, time of creates and updates is logged for every level.
+     */
+    @Test
+    public void updateDurabilityLevels() throws Exception {
+        int count = 20;
+        for (Durability durability : Durability.values()) {
+            CsvConfiguration config = createConfigurationNameEqualsUid();
+            config.setDurability(durability.name());
+            ConnectorFacade connector = setupConnector(TEMPLATE_UPDATE, config);
+
+            long start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                Set<Attribute> account = new HashSet<>();
+                account.add(new Name("user" + i));
+                account.add(AttributeBuilder.build(ATTR_FIRST_NAME, "first" + i));
+                connector.create(ObjectClass.ACCOUNT, account, null);
+            }
+            long created = System.nanoTime();
+
+            for (int i = 0; i < count; i++) {
+                Set<Attribute> attributes = new HashSet<>();
+                attributes.add(AttributeBuilder.build(ATTR_LAST_NAME, CHANGED_VALUE + i));
+                connector.update(ObjectClass.ACCOUNT, new Uid(VILO_UID), attributes, null);
+            }
+            long updated = System.nanoTime();
+
+            LOG.info("Durability {0}: {1} creates in {2}ms, {1} updates in {3}ms", durability, count,
+                    TimeUnit.NANOSECONDS.toMillis(created - start), TimeUnit.NANOSECONDS.toMillis(updated - created));
+
+            assertNotNull(CsvTestUtil.findRecord(createConfigurationNameEqualsUid(), "user" + (count - 1)));
+            assertEquals(CHANGED_VALUE + (count - 1),
+                    CsvTestUtil.findRecord(createConfigurationNameEqualsUid(), VILO_UID).get(ATTR_LAST_NAME));
+        }
+    }
+
+    @Test
+    public void updateBatch() throws Exception {
+        CsvConfiguration config = createConfigurationNameEqualsUid();
+        setupConnector(TEMPLATE_UPDATE, config);
+
+        CsvConnector connector = new CsvConnector();
+        connector.init(config);
+
+        Set<Attribute> account = new HashSet<>();
+        account.add(AttributeBuilder.build(ATTR_UID, "jano"));
+        account.add(AttributeBuilder.build(ATTR_FIRST_NAME, "jan"));
+
+        Set<Attribute> lastName = new HashSet<>();
+        lastName.add(AttributeBuilder.build(ATTR_LAST_NAME, CHANGED_VALUE));
+
+        List<CsvBatch.Result> results = connector.createBatch(ObjectClass.ACCOUNT)
+                .update(new Uid(VILO_UID), lastName)
+                .create(account)
+                .delete(new Uid("miso"))
+                .update(new Uid("unknown"), lastName)
+                .update(new Uid("jano"), lastName)
+                .execute();
+
+        assertEquals(5, results.size());
+        assertTrue(results.get(0).isSuccess());
+        assertEquals(new Uid("jano"), results.get(1).getUid());
+        assertTrue(results.get(2).isSuccess());
+        assertTrue(results.get(3).getError() instanceof UnknownUidException);
+        // changes of the same record are applied in order, created record is updated as well
+        assertTrue(results.get(4).isSuccess());
+
+        assertEquals(CHANGED_VALUE, CsvTestUtil.findRecord(config, VILO_UID).get(ATTR_LAST_NAME));
+        assertNull(CsvTestUtil.findRecord(config, "miso"));
+
+        Map<String, String> created = CsvTestUtil.findRecord(config, "jano");
+        assertEquals("jan", created.get(ATTR_FIRST_NAME));
+        assertEquals(CHANGED_VALUE, created.get(ATTR_LAST_NAME));
+
+        results = connector.createBatch(ObjectClass.ACCOUNT).create(account).execute();
+        assertTrue(results.get(0).getError() instanceof AlreadyExistsException);
+
+        connector.dispose();
+    }
+
+    @Test
+    public void updateJournal() throws Exception {
+        CsvConfiguration config = createConfigurationNameEqualsUid();
+        config.setWriteMode(WriteMode.JOURNAL.name());
+        ConnectorFacade connector = setupConnector(TEMPLATE_UPDATE, config);
+
+        File journal = new File(CSV_FILE_PATH + "." + Util.JOURNAL_EXTENSION);
+        try {
+            Set<Attribute> attributes = new HashSet<>();
+            attributes.add(AttributeBuilder.build(ATTR_LAST_NAME, CHANGED_VALUE));
+            connector.update(ObjectClass.ACCOUNT, new Uid(VILO_UID), attributes, null);
+            connector.delete(ObjectClass.ACCOUNT, new Uid("miso"), null);
+
+            // changes are visible, but csv file wasn't rewritten yet
+            ConnectorObject object = connector.getObject(ObjectClass.ACCOUNT, new Uid(VILO_UID), null);
+            assertEquals(CHANGED_VALUE, AttributeUtil.getStringValue(object.getAttributeByName(ATTR_LAST_NAME)));
+            assertNull(connector.getObject(ObjectClass.ACCOUNT, new Uid("miso"), null));
+
+            assertTrue(journal.exists());
+            assertEquals(VILO_LAST_NAME,
+                    CsvTestUtil.findRecord(createConfigurationNameEqualsUid(), VILO_UID).get(ATTR_LAST_NAME));
+
+            // sync snapshot is created from csv file, so journal is merged first
+            connector.getLatestSyncToken(ObjectClass.ACCOUNT);
+
+            assertFalse(journal.exists());
+            assertEquals(CHANGED_VALUE,
+                    CsvTestUtil.findRecord(createConfigurationNameEqualsUid(), VILO_UID).get(ATTR_LAST_NAME));
+            assertNull(CsvTestUtil.findRecord(createConfigurationNameEqualsUid(), "miso"));
+        } finally {
+            CsvTestUtil.deleteAllSyncFiles();
+            journal.delete();
+        }
+    }
+
+    @Test
+    public void updateJournalWithIncompleteRecord() throws Exception {
+        CsvConfiguration config = createConfigurationNameEqualsUid();
+        config.setWriteMode(WriteMode.JOURNAL.name());
+        ConnectorFacade connector = setupConnector(TEMPLATE_UPDATE, config);
+
+        File journal = new File(CSV_FILE_PATH + "." + Util.JOURNAL_EXTENSION);
+        try {
+            // write of second change was interrupted inside quoted value
+            String content = "\"U\";\"vilo\";\"viliam\";\"vilo\";\"" + CHANGED_VALUE + "\";\"Z29vZA==\";\".\"\r\n"
+                    + "\"U\";\"miso\";\"mic";
+            Files.write(journal.toPath(), content.getBytes(StandardCharsets.UTF_8));
+
+            // complete change is applied, incomplete one is ignored
+            ConnectorObject vilo = connector.getObject(ObjectClass.ACCOUNT, new Uid(VILO_UID), null);
+            assertEquals(CHANGED_VALUE, AttributeUtil.getStringValue(vilo.getAttributeByName(ATTR_LAST_NAME)));
+            ConnectorObject miso = connector.getObject(ObjectClass.ACCOUNT, new Uid("miso"), null);
+            assertEquals("asdf", AttributeUtil.getStringValue(miso.getAttributeByName(ATTR_LAST_NAME)));
+
+            // journal is repaired before next change is appended
+            Set<Attribute> attributes = new HashSet<>();
+            attributes.add(AttributeBuilder.build(ATTR_LAST_NAME, "michal"));
+            connector.update(ObjectClass.ACCOUNT, new Uid("miso"), attributes, null);
+
+            miso = connector.getObject(ObjectClass.ACCOUNT, new Uid("miso"), null);
+            assertEquals("michal", AttributeUtil.getStringValue(miso.getAttributeByName(ATTR_LAST_NAME)));
+            vilo = connector.getObject(ObjectClass.ACCOUNT, new Uid(VILO_UID), null);
+            assertEquals(CHANGED_VALUE, AttributeUtil.getStringValue(vilo.getAttributeByName(ATTR_LAST_NAME)));
+        } finally {
+            journal.delete();
+        }
+    }
+
+    @Test
+    public void updateWriteBehind() throws Exception {
+        CsvConfiguration config = createConfigurationNameEqualsUid();
+        config.setWriteMode(WriteMode.WRITE_BEHIND.name());
+        config.setJournalMaxAge(100);
+        ConnectorFacade connector = setupConnector(TEMPLATE_UPDATE, config);
+
+        File journal = new File(CSV_FILE_PATH + "." + Util.JOURNAL_EXTENSION);
+        try {
+            Set<Attribute> attributes = new HashSet<>();
+            attributes.add(AttributeBuilder.build(ATTR_LAST_NAME, CHANGED_VALUE));
+            connector.update(ObjectClass.ACCOUNT, new Uid(VILO_UID), attributes, null);
+
+            // change is visible before it's flushed to csv file
+            ConnectorObject object = connector.getObject(ObjectClass.ACCOUNT, new Uid(VILO_UID), null);
+            assertEquals(CHANGED_VALUE, AttributeUtil.getStringValue(object.getAttributeByName(ATTR_LAST_NAME)));
+
+            // journal is flushed in background after journal max age
+            long end = System.currentTimeMillis() + 10000;
+            while (journal.exists() && System.currentTimeMillis() < end) {
+                Thread.sleep(50);
+            }
+
+            assertFalse(journal.exists());
+            assertEquals(CHANGED_VALUE,
+                    CsvTestUtil.findRecord(createConfigurationNameEqualsUid(), VILO_UID).get(ATTR_LAST_NAME));
+        } finally {
+            journal.delete();
+        }
+    }
+
     @Test
     public void updateNameAttribute() throws Exception {
         ConnectorFacade connector = setupConnector(TEMPLATE_UPDATE, createConfigurationNameEqualsUid());
@@ -113,7 +377,6 @@ public class UpdateOpTest extends BaseTest {
         attributes.add(createAttribute(Uid.NAME, CHANGED_VALUE));
         attributes.add(createAttribute(ATTR_FIRST_NAME, VILO_FIRST_NAME));
         attributes.add(createAttribute(ATTR_LAST_NAME, VILO_LAST_NAME));
-        attributes.add(AttributeBuilder.buildPassword(new GuardedString(VILO_PASSWORD.toCharArray())));
         assertConnectorObject(attributes, object);
 
         Map<String, String> expectedRecord = new HashMap<>();
@@ -145,7 +408,6 @@ public class UpdateOpTest extends BaseTest {
         attributes.add(new Name(CHANGED_VALUE));
         attributes.add(createAttribute(Uid.NAME, VILO_UID));
         attributes.add(createAttribute(ATTR_FIRST_NAME, VILO_FIRST_NAME));
-        attributes.add(AttributeBuilder.buildPassword(new GuardedString(VILO_PASSWORD.toCharArray())));
         assertConnectorObject(attributes, object);
 
         Map<String, String> expectedRecord = new HashMap<>();
@@ -178,7 +440,6 @@ public class UpdateOpTest extends BaseTest {
         attributes.add(createAttribute(Uid.NAME, VILO_UID));
         attributes.add(createAttribute(ATTR_FIRST_NAME, VILO_FIRST_NAME));
         attributes.add(createAttribute(ATTR_LAST_NAME, CHANGED_VALUE));
-        attributes.add(AttributeBuilder.buildPassword(new GuardedString(VILO_PASSWORD.toCharArray())));
         assertConnectorObject(attributes, object);
 
         Map<String, String> expectedRecord = new HashMap<>();
@@ -237,7 +498,6 @@ public class UpdateOpTest extends BaseTest {
         attributes.add(new Name(VILO_LAST_NAME));
         attributes.add(createAttribute(Uid.NAME, VILO_UID));
         attributes.add(createAttribute(ATTR_FIRST_NAME, CHANGED_VALUE, SECOND_VALUE));
-        attributes.add(AttributeBuilder.buildPassword(new GuardedString(VILO_PASSWORD.toCharArray())));
         assertConnectorObject(attributes, object);
 
         Map<String, String> expectedRecord = new HashMap<>();
@@ -249,4 +509,58 @@ public class UpdateOpTest extends BaseTest {
         Map<String, String> realRecord = CsvTestUtil.findRecord(createConfigurationNameEqualsUid(), VILO_UID);
         assertEquals(expectedRecord, realRecord);
     }
+
+    @Test
+    public void updateWithUidIndex() throws Exception {
+        CsvConfiguration config = createConfigurationNameEqualsUid();
+        config.setUidIndex(true);
+        ConnectorFacade connector = setupConnector(TEMPLATE_UPDATE, config);
+
+        Uid expected = new Uid("miso");
+
+        Set<Attribute> attributes = new HashSet<>();
+        attributes.add(AttributeBuilder.build(ATTR_LAST_NAME, CHANGED_VALUE));
+        Uid real = connector.update(ObjectClass.ACCOUNT, expected, attributes, null);
+        assertEquals(expected, real);
+
+        ConnectorObject object = connector.getObject(ObjectClass.ACCOUNT, real, null);
+        assertNotNull(object);
+        assertEquals(CHANGED_VALUE, AttributeUtil.getStringValue(object.getAttributeByName(ATTR_LAST_NAME)));
+
+        // other records are copied without change, including quotes
+        String content = new String(Files.readAllBytes(Paths.get(CSV_FILE_PATH)), StandardCharsets.UTF_8);
+        assertTrue(content.endsWith("\"viliam\";\"vilo\";\"repan\";\"Z29vZA==\""));
+
+        // index was moved after splice, record after changed one is still found
+        object = connector.getObject(ObjectClass.ACCOUNT, new Uid(VILO_UID), null);
+        assertNotNull(object);
+        assertEquals(VILO_LAST_NAME, AttributeUtil.getStringValue(object.getAttributeByName(ATTR_LAST_NAME)));
+    }
+
+    @Test
+    public void updateAttributeUidWithUidIndex() throws Exception {
+        CsvConfiguration config = createConfigurationNameEqualsUid();
+        config.setUidIndex(true);
+        ConnectorFacade connector = setupConnector(TEMPLATE_UPDATE, config);
+
+        Set<Attribute> attributes = new HashSet<>();
+        attributes.add(AttributeBuilder.build(ATTR_UID, CHANGED_VALUE));
+        Uid real = connector.update(ObjectClass.ACCOUNT, new Uid("miso"), attributes, null);
+        assertEquals(new Uid(CHANGED_VALUE), real);
+
+        assertNotNull(connector.getObject(ObjectClass.ACCOUNT, real, null));
+        assertNull(connector.getObject(ObjectClass.ACCOUNT, new Uid("miso"), null));
+        assertNotNull(connector.getObject(ObjectClass.ACCOUNT, new Uid(VILO_UID), null));
+    }
+
+    @Test(expectedExceptions = UnknownUidException.class)
+    public void notExistingUidWithUidIndex() throws Exception {
+        CsvConfiguration config = createConfigurationNameEqualsUid();
+        config.setUidIndex(true);
+        ConnectorFacade connector = setupConnector(TEMPLATE_UPDATE, config);
+
+        Set<Attribute> attributes = new HashSet<>();
+        attributes.add(AttributeBuilder.build(ATTR_LAST_NAME, CHANGED_VALUE));
+        connector.update(ObjectClass.ACCOUNT, new Uid("unknown"), attributes, null);
+    }
 }